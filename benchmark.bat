@@ -0,0 +1,2 @@
+@echo off
+java -jar benchmarks/target/benchmarks.jar -prof gc %*
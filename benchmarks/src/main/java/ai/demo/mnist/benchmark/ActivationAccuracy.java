@@ -0,0 +1,56 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.activation.Activation;
+
+/**
+ * Validates the fast activation functions against the exact versions
+ * Prints the maximum absolute error of the forward function (on [-20, 20]) and of the gradient (on the output range),
+ * and fails if any of them is above the documented bound
+ * Usage: java -cp benchmarks/target/benchmarks.jar ai.demo.mnist.benchmark.ActivationAccuracy
+ */
+public class ActivationAccuracy
+{
+    private static final int SAMPLES = 4_000_001;
+
+    public static void main(String[] args)
+    {
+        boolean isValid = true;
+
+        // Activation, forward error bound (relative to max(1, |x|)), gradient error bound
+        isValid &= validate("SIGMOID", 1.2e-5, 0);
+        isValid &= validate("TANH", 2.4e-5, 0);
+        isValid &= validate("GELU", 1.2e-5, 2e-5);
+
+        if (!isValid) throw new RuntimeException("A fast activation function is out of the documented error bound");
+    }
+
+    private static boolean validate(String name, double forwardBound, double gradientBound)
+    {
+        Activation exact = Activation.getInstance(name, "EXACT");
+        Activation fast = Activation.getInstance(name, "FAST");
+
+        double forwardError = 0;
+        double gradientError = 0;
+
+        for (int i = 0; i < SAMPLES; i++)
+        {
+            float x = -20 + 40f * i / (SAMPLES - 1);
+
+            forwardError = Math.max(forwardError, Math.abs(exact.forward(x) - fast.forward(x)) / Math.max(1, Math.abs(x)));
+
+            // The gradient is calculated on the output of the layer, checked on the relevant range
+            float output = exact.forward(x);
+            if (Math.abs(output) <= 8)
+            {
+                gradientError = Math.max(gradientError, Math.abs(exact.gradient(output) - fast.gradient(output)));
+            }
+        }
+
+        boolean isValid = forwardError <= forwardBound && gradientError <= gradientBound;
+
+        System.out.println(String.format("%-8s forward error: %.2e (bound: %.1e), gradient error: %.2e (bound: %.1e) %s",
+                name, forwardError, forwardBound, gradientError, gradientBound, isValid ? "OK" : "FAILED"));
+
+        return isValid;
+    }
+}
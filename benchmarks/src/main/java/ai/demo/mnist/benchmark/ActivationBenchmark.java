@@ -0,0 +1,84 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.activation.Activation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Activation functions applied on a layer-sized array (the throughput is measured in arrays)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActivationBenchmark
+{
+    @Param({"SIGMOID", "TANH", "GELU"})
+    public String activation;
+
+    @Param({"EXACT", "FAST"})
+    public String mode;
+
+    @Param({"400", "1024"})
+    public int size;
+
+    private Activation function;
+
+    private float[] inputs;
+    private float[] outputs;
+
+    @Setup
+    public void setup()
+    {
+        function = Activation.getInstance(activation, mode);
+
+        Random random = new Random(42);
+        inputs = new float[size];
+        for (int i = 0; i < size; i++)
+        {
+            inputs[i] = (float) random.nextGaussian() * 4;
+        }
+
+        outputs = new float[size];
+    }
+
+    @Benchmark
+    public float[] forward()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            outputs[i] = function.forward(inputs[i]);
+        }
+
+        return outputs;
+    }
+
+    @Benchmark
+    public float[] gradient()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            outputs[i] = function.gradient(inputs[i]);
+        }
+
+        return outputs;
+    }
+
+    @Benchmark
+    public float[] forwardArray()
+    {
+        function.forward(inputs, outputs, size);
+        return outputs;
+    }
+
+    @Benchmark
+    public float[] gradientArray()
+    {
+        function.gradient(inputs, outputs, size);
+        return outputs;
+    }
+}
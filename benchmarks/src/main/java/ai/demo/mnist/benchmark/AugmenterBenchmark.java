@@ -0,0 +1,67 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.Augmenter;
+import ai.demo.mnist.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Augmentation of a block of images (to compare the augmentation throughput with the training throughput)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AugmenterBenchmark
+{
+    private static final int BLOCK_SIZE = 1024;
+
+    // Shift and rotation only, with elastic distortion, with elastic distortion and noise
+    @Param({"AFFINE", "ELASTIC", "ELASTIC_NOISE"})
+    public String augmentation;
+
+    private Augmenter augmenter;
+    private byte[] records;
+    private byte[] original;
+    private Random random;
+    private long seed;
+
+    @Setup
+    public void setup()
+    {
+        random = new Random(42);
+
+        float elasticAlpha = augmentation.startsWith("ELASTIC") ? 2 : 0;
+        float noise = augmentation.endsWith("NOISE") ? 0.05f : 0;
+        augmenter = new Augmenter(1.5f, 10, elasticAlpha, 4, noise);
+
+        // Sparse images, like the MNIST digits
+        original = new byte[BLOCK_SIZE * FileUtil.RECORD_SIZE];
+        for (int i = 0; i < original.length; i++)
+        {
+            original[i] = random.nextFloat() < 0.2 ? (byte) random.nextInt(256) : 0;
+        }
+
+        records = new byte[original.length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public byte[] augment()
+    {
+        System.arraycopy(original, 0, records, 0, records.length);
+
+        // Seeded per example, like in the training pipeline
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            random.setSeed(seed++);
+            augmenter.augmentRecord(records, i, random);
+        }
+
+        return records;
+    }
+}
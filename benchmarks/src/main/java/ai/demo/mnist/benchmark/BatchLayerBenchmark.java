@@ -0,0 +1,89 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.NeuronLayer;
+import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mini-batch kernels of a single layer (the throughput is measured in batches)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchLayerBenchmark
+{
+    // Layers of models/test (784 - 400 - 205 - 10), and bigger ones (inputCount x neuronCount)
+    @Param({"784x400", "400x205", "205x10", "784x1024", "1024x1024"})
+    public String layerSize;
+
+    @Param({"SIGMOID"})
+    public String activation;
+
+    @Param({"32", "128"})
+    public int batchSize;
+
+    // The VECTOR backend needs the JVM option: -jvmArgsAppend --add-modules=jdk.incubator.vector
+    @Param({"SCALAR"})
+    public String backend;
+
+    private NeuronLayer layer;
+
+    private float[] inputs;
+    private float[] outputErrors;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(42);
+
+        int inputCount = BenchmarkUtil.getInputCount(layerSize);
+        int neuronCount = BenchmarkUtil.getNeuronCount(layerSize);
+
+        layer = new NeuronLayer(inputCount, neuronCount,
+                BenchmarkUtil.randomArray(inputCount * neuronCount, random),
+                BenchmarkUtil.randomArray(neuronCount, random),
+                Activation.getInstance(activation),
+                Kernels.getInstance(backend));
+
+        inputs = BenchmarkUtil.randomArray(batchSize * inputCount, random);
+        outputErrors = BenchmarkUtil.randomArray(batchSize * neuronCount, random);
+
+        // Saves the inputs and outputs for the back-propagation
+        layer.feedForward(inputs, batchSize);
+        layer.backPropagateErrors(outputErrors, batchSize);
+    }
+
+    @Benchmark
+    public float[] feedForward()
+    {
+        return layer.feedForward(inputs, batchSize);
+    }
+
+    @Benchmark
+    public float[] backPropagateErrors()
+    {
+        return layer.backPropagateErrors(outputErrors, batchSize);
+    }
+
+    @Benchmark
+    public float[] updateParameters()
+    {
+        // A tiny learning rate, so the weights practically don't change during the measurement
+        layer.updateParameters(1e-9, batchSize);
+        return layer.getWeights();
+    }
+
+    @Benchmark
+    public float[] backPropagateErrorsAndUpdate()
+    {
+        // A tiny learning rate, so the weights practically don't change during the measurement
+        return layer.backPropagateErrorsAndUpdate(outputErrors, 1e-9, batchSize, true);
+    }
+}
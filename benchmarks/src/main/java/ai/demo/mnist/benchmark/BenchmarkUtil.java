@@ -0,0 +1,40 @@
+package ai.demo.mnist.benchmark;
+
+import java.util.Random;
+
+/**
+ * Helper methods of the benchmarks
+ */
+class BenchmarkUtil
+{
+    /**
+     * Returns the input count of a layer size parameter (inputCount x neuronCount)
+     */
+    static int getInputCount(String layerSize)
+    {
+        return Integer.parseInt(layerSize.split("x")[0]);
+    }
+
+    /**
+     * Returns the neuron count of a layer size parameter (inputCount x neuronCount)
+     */
+    static int getNeuronCount(String layerSize)
+    {
+        return Integer.parseInt(layerSize.split("x")[1]);
+    }
+
+    /**
+     * Generates random values (between -1 and 1)
+     */
+    static float[] randomArray(int size, Random random)
+    {
+        float[] array = new float[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            array[i] = 2 * random.nextFloat() - 1;
+        }
+
+        return array;
+    }
+}
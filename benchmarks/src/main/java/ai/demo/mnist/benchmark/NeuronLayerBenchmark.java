@@ -0,0 +1,107 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.NeuronLayer;
+import ai.demo.mnist.QuantizedLayer;
+import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-example kernels of a single layer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NeuronLayerBenchmark
+{
+    // Layers of models/test (784 - 400 - 205 - 10), and bigger ones (inputCount x neuronCount)
+    @Param({"784x400", "400x205", "205x10", "784x1024", "1024x1024"})
+    public String layerSize;
+
+    @Param({"SIGMOID", "TANH", "GELU"})
+    public String activation;
+
+    // The VECTOR backend needs the JVM option: -jvmArgsAppend --add-modules=jdk.incubator.vector
+    @Param({"SCALAR"})
+    public String backend;
+
+    private NeuronLayer layer;
+    private QuantizedLayer quantizedLayer;
+
+    private float[] inputs;
+    private float[] outputs;
+    private float[] outputErrors;
+    private byte[] quantizedInputs;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(42);
+
+        int inputCount = BenchmarkUtil.getInputCount(layerSize);
+        int neuronCount = BenchmarkUtil.getNeuronCount(layerSize);
+
+        layer = new NeuronLayer(inputCount, neuronCount,
+                BenchmarkUtil.randomArray(inputCount * neuronCount, random),
+                BenchmarkUtil.randomArray(neuronCount, random),
+                Activation.getInstance(activation),
+                Kernels.getInstance(backend));
+
+        inputs = BenchmarkUtil.randomArray(inputCount, random);
+        outputs = new float[neuronCount];
+        outputErrors = BenchmarkUtil.randomArray(neuronCount, random);
+
+        // Saves the inputs and outputs for the back-propagation
+        layer.feedForward(inputs);
+
+        quantizedLayer = QuantizedLayer.quantize(layer);
+        quantizedInputs = new byte[inputCount];
+    }
+
+    @Benchmark
+    public float[] feedForward()
+    {
+        return layer.feedForward(inputs);
+    }
+
+    @Benchmark
+    public float[] feedForwardStateless()
+    {
+        layer.feedForward(inputs, outputs);
+        return outputs;
+    }
+
+    @Benchmark
+    public float[] feedForwardQuantized()
+    {
+        quantizedLayer.feedForward(inputs, quantizedInputs, outputs);
+        return outputs;
+    }
+
+    @Benchmark
+    public float[] backPropagateErrors()
+    {
+        return layer.backPropagateErrors(outputErrors);
+    }
+
+    @Benchmark
+    public float[] updateParameters()
+    {
+        // A tiny learning rate, so the weights practically don't change during the measurement
+        layer.updateParameters(1e-9);
+        return layer.getWeights();
+    }
+
+    @Benchmark
+    public float[] backPropagateErrorsAndUpdate()
+    {
+        // A tiny learning rate, so the weights practically don't change during the measurement
+        return layer.backPropagateErrorsAndUpdate(outputErrors, 1e-9, true);
+    }
+}
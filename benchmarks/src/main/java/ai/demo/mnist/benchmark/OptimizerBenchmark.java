@@ -0,0 +1,73 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.NeuronLayer;
+import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.optimizer.Optimizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parameter updates of a single layer with the different optimizers (the cost of the optimizer state per step)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OptimizerBenchmark
+{
+    @Param({"784x400", "400x205"})
+    public String layerSize;
+
+    // SGD is the plain update built into the layer
+    @Param({"SGD", "MOMENTUM", "NESTEROV", "ADAM"})
+    public String optimizer;
+
+    private static final int BATCH_SIZE = 32;
+
+    private NeuronLayer layer;
+    private float[] outputErrors;
+    private float[] batchOutputErrors;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(42);
+
+        int inputCount = BenchmarkUtil.getInputCount(layerSize);
+        int neuronCount = BenchmarkUtil.getNeuronCount(layerSize);
+
+        layer = new NeuronLayer(inputCount, neuronCount,
+                BenchmarkUtil.randomArray(inputCount * neuronCount, random),
+                BenchmarkUtil.randomArray(neuronCount, random),
+                Activation.getInstance("SIGMOID"));
+
+        if (!optimizer.equals("SGD"))
+        {
+            layer.setOptimizer(Optimizer.getInstance(optimizer, inputCount * neuronCount + neuronCount, 0.9f, 0.9f, 0.999f, 1e-8f));
+        }
+
+        outputErrors = BenchmarkUtil.randomArray(neuronCount, random);
+        batchOutputErrors = BenchmarkUtil.randomArray(BATCH_SIZE * neuronCount, random);
+
+        // Saves the inputs and outputs for the back-propagation (per example and mini-batch)
+        layer.feedForward(BenchmarkUtil.randomArray(inputCount, random));
+        layer.feedForward(BenchmarkUtil.randomArray(BATCH_SIZE * inputCount, random), BATCH_SIZE);
+    }
+
+    @Benchmark
+    public float[] backPropagateErrorsAndUpdate()
+    {
+        // A tiny learning rate, so the weights practically don't change during the measurement
+        return layer.backPropagateErrorsAndUpdate(outputErrors, 1e-9, true);
+    }
+
+    @Benchmark
+    public float[] backPropagateErrorsAndUpdateBatch()
+    {
+        return layer.backPropagateErrorsAndUpdate(batchOutputErrors, 1e-9, BATCH_SIZE, true);
+    }
+}
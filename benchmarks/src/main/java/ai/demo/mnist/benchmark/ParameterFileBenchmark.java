@@ -0,0 +1,103 @@
+package ai.demo.mnist.benchmark;
+
+import ai.demo.mnist.FileUtil;
+import ai.demo.mnist.ModelBundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing the parameter files of a single layer (per-layer files and single-layer model bundle)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParameterFileBenchmark
+{
+    // Layers of models/test (784 - 400 - 205 - 10), and bigger ones (inputCount x neuronCount)
+    @Param({"784x400", "400x205", "205x10", "784x1024", "1024x1024"})
+    public String layerSize;
+
+    private int inputCount;
+    private int neuronCount;
+
+    private float[] weights;
+    private float[] biases;
+
+    private File folder;
+    private String weightFile;
+    private String biasFile;
+    private File bundleFile;
+    private ModelBundle bundle;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        Random random = new Random(42);
+
+        inputCount = BenchmarkUtil.getInputCount(layerSize);
+        neuronCount = BenchmarkUtil.getNeuronCount(layerSize);
+
+        weights = BenchmarkUtil.randomArray(inputCount * neuronCount, random);
+        biases = BenchmarkUtil.randomArray(neuronCount, random);
+
+        folder = Files.createTempDirectory("mnist-benchmark").toFile();
+        weightFile = new File(folder, "layer.0.w.dat").getPath();
+        biasFile = new File(folder, "layer.0.b.dat").getPath();
+
+        FileUtil.createWeightFile(weightFile, weights);
+        FileUtil.createBiasFile(biasFile, biases);
+
+        bundleFile = new File(folder, ModelBundle.FILE_NAME);
+        bundle = new ModelBundle("SIGMOID", 0.1f, inputCount, new float[][]{weights}, new float[][]{biases});
+        bundle.write(bundleFile);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        new File(weightFile).delete();
+        new File(biasFile).delete();
+        bundleFile.delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public float[] readWeightFile()
+    {
+        return FileUtil.readWeightFile(weightFile, neuronCount, inputCount);
+    }
+
+    @Benchmark
+    public float[] readBiasFile()
+    {
+        return FileUtil.readBiasFile(biasFile, neuronCount);
+    }
+
+    @Benchmark
+    public void writeLayerFiles() throws Exception
+    {
+        // The files of a layer in the older parameter folders
+        FileUtil.createWeightFile(weightFile, weights);
+        FileUtil.createBiasFile(biasFile, biases);
+    }
+
+    @Benchmark
+    public ModelBundle readBundle()
+    {
+        return ModelBundle.read(bundleFile);
+    }
+
+    @Benchmark
+    public void writeBundle() throws Exception
+    {
+        // The same file as FileUtil.saveParameters writes (for a single layer)
+        bundle.write(bundleFile);
+    }
+}
@@ -0,0 +1,2 @@
+@echo off
+java -jar target/demo-mnist-app.jar --score %*
@@ -0,0 +1,22 @@
+package ai.demo.mnist.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a checkpoint write (on the background thread)
+ */
+@Name("ai.demo.mnist.Checkpoint")
+@Label("Checkpoint")
+@Category("MNIST")
+@Description("Writing a checkpoint of the parameters")
+class CheckpointEvent extends jdk.jfr.Event
+{
+    @Label("Examples")
+    long exampleCount;
+
+    @Label("File")
+    String fileName;
+}
@@ -0,0 +1,37 @@
+package ai.demo.mnist.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of a training epoch (the duration is the training time, without the test)
+ */
+@Name("ai.demo.mnist.Epoch")
+@Label("Training Epoch")
+@Category("MNIST")
+@Description("A training epoch")
+class EpochEvent extends jdk.jfr.Event
+{
+    @Label("Epoch")
+    int epoch;
+
+    @Label("Examples")
+    long exampleCount;
+
+    @Label("Examples per Second")
+    double examplesPerSecond;
+
+    @Label("Accuracy")
+    double accuracy;
+
+    @Label("Reading Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long loadTime;
+
+    @Label("Input Wait Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long inputWaitTime;
+}
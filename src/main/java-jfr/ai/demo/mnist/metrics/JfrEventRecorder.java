@@ -0,0 +1,60 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Java Flight Recorder implementation of the event recorder (Java 11+)
+ * The events can be recorded for example by: java -XX:StartFlightRecording=filename=training.jfr ...
+ */
+public class JfrEventRecorder implements EventRecorder
+{
+    @Override
+    public Object beginEpoch()
+    {
+        EpochEvent event = new EpochEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endEpoch(Object event)
+    {
+        ((EpochEvent) event).end();
+    }
+
+    @Override
+    public void commitEpoch(Object event, EpochMetrics metrics)
+    {
+        EpochEvent epochEvent = (EpochEvent) event;
+
+        if (epochEvent.shouldCommit())
+        {
+            epochEvent.epoch = metrics.getEpoch();
+            epochEvent.exampleCount = metrics.getExampleCount();
+            epochEvent.examplesPerSecond = metrics.getExamplesPerSecond();
+            epochEvent.accuracy = metrics.getAccuracy();
+            epochEvent.loadTime = metrics.getLoadTime();
+            epochEvent.inputWaitTime = metrics.getInputWaitTime();
+            epochEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginCheckpoint()
+    {
+        CheckpointEvent event = new CheckpointEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitCheckpoint(Object event, long exampleCount, String fileName)
+    {
+        CheckpointEvent checkpointEvent = (CheckpointEvent) event;
+
+        if (checkpointEvent.shouldCommit())
+        {
+            checkpointEvent.exampleCount = exampleCount;
+            checkpointEvent.fileName = fileName;
+            checkpointEvent.commit();
+        }
+    }
+}
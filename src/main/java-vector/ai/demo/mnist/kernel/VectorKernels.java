@@ -0,0 +1,158 @@
+package ai.demo.mnist.kernel;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of the kernels using the Java Vector API (SIMD instructions, for example AVX2 or AVX-512)
+ * Needs Java 16+ and the jdk.incubator.vector module (--add-modules jdk.incubator.vector)
+ * The update is calculated in float (the scalar kernel uses double), so the results can slightly differ
+ * The sparse kernels aren't used: the dense vector kernels are faster than the scalar sparse ones,
+ * even with the sparsity of the MNIST images (about 20% non-zero pixels)
+ */
+public class VectorKernels extends ScalarKernels
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public float dot(float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        FloatVector sum = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+        {
+            FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            FloatVector yv = FloatVector.fromArray(SPECIES, y, yOffset + i);
+            sum = xv.fma(yv, sum);
+        }
+
+        float result = sum.reduceLanes(VectorOperators.ADD);
+
+        for (; i < length; i++)
+        {
+            result += x[xOffset + i] * y[yOffset + i];
+        }
+
+        return result;
+    }
+
+    public void dot4(float[] x, int xOffset, float[] y, int y0, int y1, int y2, int y3, int length, float[] results)
+    {
+        FloatVector s0 = FloatVector.zero(SPECIES);
+        FloatVector s1 = FloatVector.zero(SPECIES);
+        FloatVector s2 = FloatVector.zero(SPECIES);
+        FloatVector s3 = FloatVector.zero(SPECIES);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+        {
+            FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            s0 = xv.fma(FloatVector.fromArray(SPECIES, y, y0 + i), s0);
+            s1 = xv.fma(FloatVector.fromArray(SPECIES, y, y1 + i), s1);
+            s2 = xv.fma(FloatVector.fromArray(SPECIES, y, y2 + i), s2);
+            s3 = xv.fma(FloatVector.fromArray(SPECIES, y, y3 + i), s3);
+        }
+
+        float r0 = s0.reduceLanes(VectorOperators.ADD);
+        float r1 = s1.reduceLanes(VectorOperators.ADD);
+        float r2 = s2.reduceLanes(VectorOperators.ADD);
+        float r3 = s3.reduceLanes(VectorOperators.ADD);
+
+        for (; i < length; i++)
+        {
+            float value = x[xOffset + i];
+            r0 += value * y[y0 + i];
+            r1 += value * y[y1 + i];
+            r2 += value * y[y2 + i];
+            r3 += value * y[y3 + i];
+        }
+
+        results[0] = r0;
+        results[1] = r1;
+        results[2] = r2;
+        results[3] = r3;
+    }
+
+    public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        FloatVector av = FloatVector.broadcast(SPECIES, a);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+        {
+            FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            FloatVector yv = FloatVector.fromArray(SPECIES, y, yOffset + i);
+            xv.fma(av, yv).intoArray(y, yOffset + i);
+        }
+
+        for (; i < length; i++)
+        {
+            y[yOffset + i] += x[xOffset + i] * a;
+        }
+    }
+
+    public void axpy4(float a0, float a1, float a2, float a3, float[] x, int xOffset,
+                      float[] y, int y0, int y1, int y2, int y3, int length)
+    {
+        FloatVector av0 = FloatVector.broadcast(SPECIES, a0);
+        FloatVector av1 = FloatVector.broadcast(SPECIES, a1);
+        FloatVector av2 = FloatVector.broadcast(SPECIES, a2);
+        FloatVector av3 = FloatVector.broadcast(SPECIES, a3);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+        {
+            FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            xv.fma(av0, FloatVector.fromArray(SPECIES, y, y0 + i)).intoArray(y, y0 + i);
+            xv.fma(av1, FloatVector.fromArray(SPECIES, y, y1 + i)).intoArray(y, y1 + i);
+            xv.fma(av2, FloatVector.fromArray(SPECIES, y, y2 + i)).intoArray(y, y2 + i);
+            xv.fma(av3, FloatVector.fromArray(SPECIES, y, y3 + i)).intoArray(y, y3 + i);
+        }
+
+        for (; i < length; i++)
+        {
+            float value = x[xOffset + i];
+            y[y0 + i] += value * a0;
+            y[y1 + i] += value * a1;
+            y[y2 + i] += value * a2;
+            y[y3 + i] += value * a3;
+        }
+    }
+
+    public void update(double rate, float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        axpy((float) -rate, x, xOffset, y, yOffset, length);
+    }
+
+    public boolean isSparseFaster(int nonZeroCount, int length)
+    {
+        return false;
+    }
+
+    public void backPropagateAndUpdate(float a, float[] w, int wOffset, float[] prev, int prevOffset,
+                                       double rate, float[] x, int xOffset, int length)
+    {
+        FloatVector av = FloatVector.broadcast(SPECIES, a);
+        FloatVector rv = FloatVector.broadcast(SPECIES, (float) -rate);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+        {
+            FloatVector wv = FloatVector.fromArray(SPECIES, w, wOffset + i);
+            FloatVector pv = FloatVector.fromArray(SPECIES, prev, prevOffset + i);
+            FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+
+            wv.fma(av, pv).intoArray(prev, prevOffset + i);
+            xv.fma(rv, wv).intoArray(w, wOffset + i);
+        }
+
+        for (; i < length; i++)
+        {
+            float weight = w[wOffset + i];
+
+            prev[prevOffset + i] += weight * a;
+            w[wOffset + i] = weight - (float) rate * x[xOffset + i];
+        }
+    }
+}
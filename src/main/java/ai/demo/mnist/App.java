@@ -1,132 +1,531 @@
 package ai.demo.mnist;
 
+import ai.demo.mnist.kernel.Kernels;
+import ai.demo.mnist.metrics.EventRecorder;
+import ai.demo.mnist.metrics.MetricsSink;
+import ai.demo.mnist.server.InferenceServer;
+import ai.demo.mnist.server.LoadGenerator;
+
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The MNIST demo app
  */
 public class App
 {
+	// Number of examples between the learning rate updates of a variable schedule (rounded up to whole mini-batches)
+	private static final int LEARNING_RATE_STEP = 1024;
+
 	public static void main(String[] args) throws Exception
 	{
 		if (args != null && args.length > 0)
 		{
+			if (args[0].equalsIgnoreCase("--serve"))
+			{
+				if (args.length < 3) throw new Exception("Not enough parameters. Usage: serve <modelFolder> <parametersFolder>");
+
+				new App().serve(args[1], args[2]);
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--score"))
+			{
+				if (args.length < 4) throw new Exception("Not enough parameters. Usage: score <modelFolder> <parametersFolder> <inputFile> [<outputFile>]");
+
+				new App().score(args[1], args[2], args[3], args.length > 4 ? args[4] : args[3] + ".scores.csv");
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--sweep"))
+			{
+				if (args.length < 2) throw new Exception("Not enough parameters. Usage: sweep <modelFolder> [<sweepFile>]");
+
+				String modelPath = "models/" + args[1];
+				System.out.println("MNIST demo app.");
+				System.out.println("Model: " + args[1]);
+
+				new SweepRunner(modelPath, args.length > 2 ? args[2] : modelPath + "/sweep.properties").run();
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--distributed"))
+			{
+				if (args.length < 2) throw new Exception("Not enough parameters. Usage: distributed <modelFolder> [<parametersFolder>]");
+
+				new App().trainDistributed(args[1], args.length > 2 ? args[2] : null);
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--worker"))
+			{
+				new DistributedWorker(args.length > 1 ? args[1] : "localhost:9090").run();
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--scaling"))
+			{
+				if (args.length < 2) throw new Exception("Not enough parameters. Usage: scaling <modelFolder> [<maxWorkers>]");
+
+				new App().measureScaling(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 4);
+				return;
+			}
+
+			if (args[0].equalsIgnoreCase("--loadtest"))
+			{
+				String address = args.length > 1 ? args[1] : "localhost:8080";
+				int clients = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+				int requests = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+				new LoadGenerator(address, clients, requests).run();
+				return;
+			}
+
 			// Reading command line parameters
 			String model = args[0];
 			String parameters = null;
 			boolean isTrain = true;
+			boolean isQuantize = false;
 
-			if (args[0].equalsIgnoreCase("--testOnly"))
+			if (args[0].equalsIgnoreCase("--testOnly") || args[0].equalsIgnoreCase("--quantize"))
 			{
 				isTrain = false;
+				isQuantize = args[0].equalsIgnoreCase("--quantize");
 				model = args[1];
 
 				if (args.length > 2) parameters = args[2];
-				else throw new RuntimeException("Not enough parameters for test. Usage: run --test <modelFolder> <parametersFolder>");
+				else if (!isQuantize && model.endsWith(".bundle"))
+				{
+					// A model bundle is self-describing, it can be tested without the model folder
+					new App().testBundle(model);
+					return;
+				}
+				else throw new RuntimeException("Not enough parameters for test. Usage: run " + args[0] + " <modelFolder> <parametersFolder>");
 			}
 			else if (args.length > 1) parameters = args[1];
 
 			// Execute the test and train
-			new App().execute(model, parameters, isTrain);
+			new App().execute(model, parameters, isTrain, isQuantize);
 		}
 		else
 		{
-			throw new Exception("Not enough parameters. Usage: run <modelPath> [<parametersFolder>]");
+			throw new Exception("Not enough parameters. Usage: run <modelPath> [<parametersFolder> | --resume]");
 		}
 	}
 
 	/**
 	 * Creates a neural network (new or loaded from parameter files), performs an initial test,
 	 * and optionally trains the network in multiple epochs
+	 * Without training the int8 quantized network is also tested (and saved if isQuantize is set)
 	 */
-	private void execute(String model, String parameters, boolean isTrain) throws Exception
+	private void execute(String model, String parameters, boolean isTrain, boolean isQuantize) throws Exception
 	{
+		String modelPath = "models/" + model;
+
+		// Continue an interrupted training from the latest checkpoint
+		long exampleCount = 0;
+		boolean isResume = "--resume".equalsIgnoreCase(parameters);
+		if (isResume)
+		{
+			parameters = Checkpointer.findLatest(modelPath);
+			if (parameters == null) throw new Exception("There is no checkpoint to resume the training from.");
+
+			exampleCount = Checkpointer.getExampleCount(parameters);
+		}
+
 		System.out.println("MNIST demo app.");
 		System.out.println("Model: " + model + (parameters == null ? "" : "(" + parameters + ")"));
 
 		// Read settings
-		String modelPath = "models/" + model;
 		Settings settings = new Settings(modelPath);
 
 		// Build neural network
 		NeuralNetwork neuralNetwork = NeuralNetwork.createNeuralNetwork(settings, modelPath, parameters);
 
 		// Read test examples
-		List<Example> testExamples = FileUtil.readTestExamples();
+		Dataset testExamples = FileUtil.readTestExamples();
 
 		// Test (measure the percentage of recognition on the test dataset)
-		test(neuralNetwork, testExamples);
+		ConfusionMatrix matrix = test(neuralNetwork, testExamples);
 
-		if (isTrain)
+		if (!isTrain)
+		{
+			// Compare to the int8 quantized network
+			testQuantized(neuralNetwork, modelPath + "/" + parameters, testExamples, matrix, isQuantize);
+		}
+		else
 		{
 			// Training the network
 
-			List<Example> trainExamples = FileUtil.readTrainExamples();
+			// The optimizers continue with their state at the checkpoint if the training is resumed
+			neuralNetwork.createOptimizers(settings);
+			if (isResume) Checkpointer.restoreOptimizers(neuralNetwork, modelPath + "/" + parameters, settings.getOptimizerName());
+
+			Dataset trainExamples = FileUtil.readTrainExamples();
+
+			// Multi-threaded training if more than one thread is configured
+			ParallelTrainer parallelTrainer = null;
+			if (settings.getTrainingThreads() > 1)
+			{
+				parallelTrainer = new ParallelTrainer(neuralNetwork, settings.getTrainingThreads(),
+						settings.getParallelStrategy(), settings.getBatchSize());
+			}
+
+			// Periodic checkpoints (written in the background)
+			Checkpointer checkpointer = null;
+			if (settings.getCheckpointInterval() != Settings.NO_CHECKPOINTS)
+			{
+				checkpointer = new Checkpointer(modelPath, settings.getActivationName(), settings.getOptimizerName(),
+						settings.getCheckpointKeep());
+			}
+
+			int checkpointInterval = settings.getCheckpointInterval() > 0
+					? settings.getCheckpointInterval() : trainExamples.size();
+
+			// Shuffled or augmented examples are delivered by a prefetching pipeline (otherwise the mapped dataset is read in order)
+			TrainingPipeline pipeline = null;
+			if (settings.isShuffle() || settings.getAugmenter() != null)
+			{
+				pipeline = new TrainingPipeline(trainExamples, settings.isShuffle(), settings.getAugmenter(),
+						settings.getBatchSize(), settings.getPipelineThreads(), settings.getPipelinePrefetch());
+			}
+
+			// Per-epoch measurements (reported to the configured sinks, and as JFR events if a recording is running)
+			List<MetricsSink> sinks = new ArrayList<>();
+			for (String sink : settings.getMetricsSinks()) sinks.add(MetricsSink.getInstance(sink, modelPath));
+
+			TrainingMonitor monitor = new TrainingMonitor(neuralNetwork, parallelTrainer, pipeline, sinks,
+					EventRecorder.getInstance());
+
+			// Learning rate schedule and stop conditions
+			TrainingScheduler scheduler = settings.getScheduler();
+			scheduler.start(neuralNetwork, matrix.getAccuracy(), exampleCount / trainExamples.size());
+
+			Scanner scanner = scheduler.isInteractive() ? new Scanner(System.in) : null;
 
 			while (true)
 			{
 				// Train an epoch
-				trainEpoch(neuralNetwork, trainExamples);
+				monitor.startEpoch(exampleCount);
+				exampleCount = trainEpoch(neuralNetwork, trainExamples, pipeline, settings.getBatchSize(), parallelTrainer,
+						checkpointer, checkpointInterval, scheduler, exampleCount);
+				monitor.endEpoch(exampleCount);
 
 				// Test (measure the percentage of recognition on the test dataset)
-				test(neuralNetwork, testExamples);
+				matrix = test(neuralNetwork, testExamples);
+				monitor.report(matrix.getAccuracy());
 
-				System.out.println("Do you want to continue the training with the next epoch? (Y/N) ");
-				if (!"Y".equalsIgnoreCase(new Scanner(System.in).next())) break;
+				if (scanner != null)
+				{
+					System.out.println("Do you want to continue the training with the next epoch? (Y/N) ");
+					if (!"Y".equalsIgnoreCase(scanner.next())) break;
+				}
+				else if (scheduler.isFinished(neuralNetwork, matrix.getAccuracy(), exampleCount / trainExamples.size())) break;
 			}
 
+			monitor.close();
+			if (parallelTrainer != null) parallelTrainer.shutdown();
+			if (checkpointer != null) checkpointer.close();
+			if (pipeline != null) pipeline.shutdown();
+
 			// Save the parameters
-			FileUtil.saveParameters(neuralNetwork, modelPath);
+			FileUtil.saveParameters(neuralNetwork, settings, modelPath);
 		}
 	}
 
-	private void trainEpoch(NeuralNetwork neuralNetwork, List<Example> examples)
+	/**
+	 * Starts the inference server with a trained network (the server runs until the process is stopped)
+	 */
+	private void serve(String model, String parameters) throws Exception
+	{
+		String modelPath = "models/" + model;
+
+		System.out.println("MNIST demo app.");
+		System.out.println("Model: " + model + "(" + parameters + ")");
+
+		Settings settings = new Settings(modelPath);
+		NeuralNetwork neuralNetwork = NeuralNetwork.createNeuralNetwork(settings, modelPath, parameters);
+
+		InferenceServer server = new InferenceServer(neuralNetwork, settings.getServerPort(),
+				settings.getServerBatchSize(), settings.getServerBatchWait());
+		server.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			System.out.println("\nServer stopped: " + server.getStats().toJson());
+		}));
+
+		System.out.println(String.format("\nInference server: http://localhost:%d/predict (batches: max %d requests, max %.3f ms wait, %s)",
+				settings.getServerPort(), settings.getServerBatchSize(), settings.getServerBatchWait() / 1000.0,
+				server.isVirtualThreads() ? "virtual threads" : "thread pool"));
+		System.out.println("Statistics: http://localhost:" + settings.getServerPort() + "/stats");
+	}
+
+	/**
+	 * Trains the network by worker processes, which are connected to the parameter server started here (see ParameterServer)
+	 */
+	private void trainDistributed(String model, String parameters) throws Exception
+	{
+		String modelPath = "models/" + model;
+
+		System.out.println("MNIST demo app.");
+		System.out.println("Model: " + model + (parameters == null ? "" : "(" + parameters + ")"));
+
+		Settings settings = new Settings(modelPath);
+		NeuralNetwork neuralNetwork = NeuralNetwork.createNeuralNetwork(settings, modelPath, parameters);
+		neuralNetwork.createOptimizers(settings);
+
+		// The server reads the training examples only to know their number (and to create the cache before the workers)
+		Dataset trainExamples = FileUtil.readTrainExamples();
+		Dataset testExamples = FileUtil.readTestExamples();
+
+		ParameterServer server = new ParameterServer(neuralNetwork, settings, settings.getDistributedWorkers());
+		server.bind(settings.getDistributedHost(), settings.getDistributedPort());
+		server.train(trainExamples.size(), testExamples);
+
+		FileUtil.saveParameters(neuralNetwork, settings, modelPath);
+	}
+
+	/**
+	 * Measures the throughput of the distributed training with 1 to maxWorkers local worker processes (one epoch each),
+	 * and prints the speedup and the scaling efficiency
+	 */
+	private void measureScaling(String model, int maxWorkers) throws Exception
 	{
-		System.out.print("\nTraining... ");
+		String modelPath = "models/" + model;
+
+		System.out.println("MNIST demo app.");
+		System.out.println("Model: " + model);
+
+		Dataset trainExamples = FileUtil.readTrainExamples();
+		Dataset testExamples = FileUtil.readTestExamples();
+
+		String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		double[] throughputs = new double[maxWorkers + 1];
 
-		for (Example example : examples)
+		for (int workers = 1; workers <= maxWorkers; workers++)
 		{
-			float[] target = new float[10];
-			target[example.getLabel()] = 1;
+			Map<String, String> properties = Settings.readProperties(modelPath + "/model.properties");
+			properties.put("training.epochs", "1");
+			properties.put("training.time.limit", "0");
+			properties.put("early.stopping.patience", "0");
+
+			Settings settings = new Settings(properties);
+			NeuralNetwork neuralNetwork = NeuralNetwork.createNeuralNetwork(settings, modelPath, null);
+			neuralNetwork.createOptimizers(settings);
+
+			System.out.println("\n--- " + workers + " worker" + (workers > 1 ? "s" : "") + " ---");
+
+			ParameterServer server = new ParameterServer(neuralNetwork, settings, workers);
+			int port = server.bind("localhost", 0);
+
+			List<Process> processes = new ArrayList<>();
+			for (int i = 0; i < workers; i++)
+			{
+				processes.add(new ProcessBuilder(javaPath, "-cp", System.getProperty("java.class.path"), App.class.getName(),
+						"--worker", "localhost:" + port).inheritIO().start());
+			}
+
+			try
+			{
+				server.train(trainExamples.size(), testExamples);
+			}
+			finally
+			{
+				for (Process process : processes)
+				{
+					if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroy();
+				}
+			}
 
-			neuralNetwork.train(example.getPixels(), target);
+			throughputs[workers] = server.getThroughputs().get(0);
 		}
 
-		System.out.println("Done");
+		System.out.println(String.format("\nScaling (%d processors):", Runtime.getRuntime().availableProcessors()));
+		System.out.println(String.format("%7s %12s %8s %10s %12s", "Workers", "Examples/s", "Speedup", "Efficiency", "Added worker"));
+		for (int workers = 1; workers <= maxWorkers; workers++)
+		{
+			double speedup = throughputs[workers] / throughputs[1];
+
+			// The gain of the last added worker, relative to the throughput of a single worker
+			String added = workers == 1 ? "-" : String.format("%+.0f%%", 100 * (throughputs[workers] - throughputs[workers - 1]) / throughputs[1]);
+
+			System.out.println(String.format("%7d %12.0f %7.2fx %9.0f%% %12s", workers, throughputs[workers], speedup,
+					100 * speedup / workers, added));
+		}
 	}
 
-	private void test(NeuralNetwork neuralNetwork, List<Example> examples)
+	/**
+	 * Scores all examples of a file offline (see BulkScorer)
+	 */
+	private void score(String model, String parameters, String inputFile, String outputFile) throws Exception
 	{
-		System.out.print("Testing...");
+		String modelPath = "models/" + model;
+
+		System.out.println("MNIST demo app.");
+		System.out.println("Model: " + model + "(" + parameters + ")");
+
+		Settings settings = new Settings(modelPath);
+		NeuralNetwork neuralNetwork = NeuralNetwork.createNeuralNetwork(settings, modelPath, parameters);
+
+		System.out.println("\nScoring: " + inputFile + " (threads: " + settings.getScoringThreads() + ")");
+
+		new BulkScorer(neuralNetwork, settings.getScoringThreads()).score(new File(inputFile), new File(outputFile));
+	}
+
+	/**
+	 * Tests a network stored in a model bundle file (using the exact activation function and the scalar kernels)
+	 */
+	private void testBundle(String fileName) throws Exception
+	{
+		System.out.println("MNIST demo app.");
+		System.out.println("Model bundle: " + fileName);
+
+		File file = new File(fileName);
+		ModelBundle bundle = ModelBundle.read(file);
+
+		System.out.print("Layers: (" + bundle.getInputCount() + ")");
+		for (int i = 0; i < bundle.getLayerCount(); i++) System.out.print(" - " + bundle.getNeuronCount(i));
+		System.out.println("\nActivation function: " + bundle.getActivation() + "\n");
+
+		NeuralNetwork neuralNetwork = bundle.createNeuralNetwork("EXACT", Kernels.getInstance("SCALAR"));
+
+		Dataset testExamples = FileUtil.readTestExamples();
+
+		ConfusionMatrix matrix = test(neuralNetwork, testExamples);
 
-		int success = 0;
+		testQuantized(neuralNetwork, file.getAbsoluteFile().getParent(), testExamples, matrix, false);
+	}
+
+	/**
+	 * Trains the rest of the current epoch (a resumed training can start in the middle of an epoch),
+	 * and takes a checkpoint whenever the number of trained examples passes a multiple of the checkpoint interval
+	 * The examples are read from the pipeline block by block if it is provided, otherwise directly from the dataset
+	 * A variable learning rate is updated at every block (or every LEARNING_RATE_STEP examples without pipeline)
+	 * @return the number of trained examples since the start of the training
+	 */
+	private long trainEpoch(NeuralNetwork neuralNetwork, Dataset examples, TrainingPipeline pipeline, int batchSize,
+							ParallelTrainer parallelTrainer, Checkpointer checkpointer, int checkpointInterval,
+							TrainingScheduler scheduler, long exampleCount)
+	{
+		// The steps are whole mini-batches, so the batches are the same as without steps
+		int learningRateStep = scheduler.isVariable()
+				? (LEARNING_RATE_STEP + batchSize - 1) / batchSize * batchSize : examples.size();
+
+		System.out.print(String.format("\nTraining (learning rate: %.5g)... ",
+				scheduler.getLearningRate((double) exampleCount / examples.size())));
 
-		// Test
-		for (Example example : examples)
+		long epochStart = exampleCount / examples.size() * examples.size();
+		long epochEnd = epochStart + examples.size();
+
+		if (pipeline != null) pipeline.startEpoch(exampleCount / examples.size(), (int) (exampleCount - epochStart));
+
+		while (exampleCount < epochEnd)
 		{
-			float[] output = neuralNetwork.feedForward(example.getPixels());
-			int result = determineResult(output);
+			Dataset block;
+			int first;
+			int last;
+
+			if (pipeline != null)
+			{
+				block = pipeline.next();
+				first = 0;
+				last = block.size();
+			}
+			else
+			{
+				// Split at the next checkpoint and the next learning rate step
+				block = examples;
+				first = (int) (exampleCount - epochStart);
+				last = (int) (Math.min(epochEnd, (exampleCount / checkpointInterval + 1) * checkpointInterval) - epochStart);
+				last = Math.min(last, (first / learningRateStep + 1) * learningRateStep);
+			}
+
+			// The learning rate in the middle of the range
+			neuralNetwork.setLearningRate(scheduler.getLearningRate((exampleCount + (last - first) / 2.0) / examples.size()));
 
-			if (result == example.getLabel()) success++;
+			if (parallelTrainer != null) parallelTrainer.train(block, first, last);
+			else neuralNetwork.train(block, first, last, batchSize);
+
+			long previousCount = exampleCount;
+			exampleCount += last - first;
+
+			if (checkpointer != null && exampleCount / checkpointInterval > previousCount / checkpointInterval)
+			{
+				checkpointer.checkpoint(neuralNetwork, exampleCount);
+			}
 		}
 
-		// Print test statistics
-		int successPercentage = 100 * success / examples.size();
-		System.out.println(" Success: " + successPercentage + "%");
+		if (pipeline != null) System.out.println(String.format("Done (waiting for input: %.3f s)", pipeline.getWaitTime() / 1e9));
+		else System.out.println("Done");
+
+		return exampleCount;
 	}
 
-	private int determineResult(float[] output)
+	private ConfusionMatrix test(NeuralNetwork neuralNetwork, Dataset examples)
 	{
-		int maxIndex = 0;
+		System.out.print("Testing...");
+
+		long start = System.nanoTime();
 
-		for (int i = 1; i < output.length; i++)
+		// Test (on all processors)
+		ConfusionMatrix matrix = Evaluator.evaluate(neuralNetwork, examples);
+
+		printResult(matrix, System.nanoTime() - start);
+
+		return matrix;
+	}
+
+	/**
+	 * Tests the int8 quantized version of the network, and prints the difference to the float32 network
+	 * The quantized parameters are read from the parameters folder if present (except at quantization),
+	 * otherwise the network is quantized in memory
+	 */
+	private void testQuantized(NeuralNetwork neuralNetwork, String parametersPath, Dataset examples,
+							   ConfusionMatrix floatMatrix, boolean isQuantize) throws Exception
+	{
+		QuantizedNetwork quantizedNetwork;
+
+		if (!isQuantize && FileUtil.hasQuantizedParameters(parametersPath))
+		{
+			System.out.println("\nQuantized parameters are read from file: " + FileUtil.QUANTIZED_FILE_NAME);
+			quantizedNetwork = QuantizedNetwork.read(parametersPath, neuralNetwork);
+		}
+		else
 		{
-			if (output[i] > output[maxIndex])
+			quantizedNetwork = QuantizedNetwork.quantize(neuralNetwork);
+
+			if (isQuantize)
 			{
-				maxIndex = i;
+				FileUtil.saveQuantizedParameters(quantizedNetwork, parametersPath);
+				System.out.println("\nQuantized parameters are saved: " + parametersPath + "/" + FileUtil.QUANTIZED_FILE_NAME);
 			}
 		}
 
-		return maxIndex;
+		System.out.print("Testing (int8)...");
+
+		long start = System.nanoTime();
+		ConfusionMatrix matrix = Evaluator.evaluate(quantizedNetwork, examples);
+		printResult(matrix, System.nanoTime() - start);
+
+		long floatBytes = 0;
+		for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+		{
+			floatBytes += 4L * (layer.getWeights().length + layer.getBiases().length);
+		}
+
+		System.out.println(String.format("Accuracy difference (int8 - float32): %+.2f%%",
+				100 * (matrix.getAccuracy() - floatMatrix.getAccuracy())));
+		System.out.println(String.format("Parameter memory: %d KB (float32), %d KB (int8)",
+				floatBytes / 1024, quantizedNetwork.getParameterBytes() / 1024));
+	}
+
+	private void printResult(ConfusionMatrix matrix, long time)
+	{
+		// Print test statistics
+		System.out.println(String.format(" Success: %.2f%% (%d examples, %.3f s)",
+				100 * matrix.getAccuracy(), matrix.getTotal(), time / 1e9));
+		matrix.print();
 	}
 }
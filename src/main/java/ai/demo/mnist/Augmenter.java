@@ -0,0 +1,193 @@
+package ai.demo.mnist;
+
+import java.util.Random;
+
+/**
+ * On-the-fly augmentation of the training images: random sub-pixel shift, small rotation, elastic distortion and noise
+ * The images are transformed in place in the binary record format (8 bit pixels), so an augmented block
+ * can be trained the same way as the original examples. The transformations are combined into a single
+ * resampling (inverse mapping with bilinear interpolation), so an image is interpolated only once.
+ * The buffers are allocated once per thread, so the producer threads of the pipeline don't allocate memory per image.
+ */
+public class Augmenter
+{
+	private static final int SIZE = 28;
+	private static final float CENTER = (SIZE - 1) / 2f;
+
+	private final float maxShift;
+	private final float maxRotation;
+	private final float elasticAlpha;
+	private final float noise;
+
+	// Gaussian kernel to smooth the random displacement field of the elastic distortion
+	private final float[] kernel;
+
+	private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+	/**
+	 * Constructor
+	 * @param maxShift the maximum shift in pixels (in both directions)
+	 * @param maxRotation the maximum rotation in degrees
+	 * @param elasticAlpha the scale of the elastic distortion in pixels (0: no distortion)
+	 * @param elasticSigma the smoothness of the elastic distortion (the standard deviation of the Gaussian filter)
+	 * @param noise the standard deviation of the added Gaussian noise (on the 0..1 pixel scale, 0: no noise)
+	 */
+	public Augmenter(float maxShift, float maxRotation, float elasticAlpha, float elasticSigma, float noise)
+	{
+		this.maxShift = maxShift;
+		this.maxRotation = (float) Math.toRadians(maxRotation);
+		this.elasticAlpha = elasticAlpha;
+		this.noise = noise * 255;
+
+		int radius = Math.max(1, (int) Math.ceil(3 * elasticSigma));
+		kernel = new float[2 * radius + 1];
+
+		float sum = 0;
+		for (int i = -radius; i <= radius; i++)
+		{
+			kernel[i + radius] = (float) Math.exp(-i * i / (2.0 * elasticSigma * elasticSigma));
+			sum += kernel[i + radius];
+		}
+
+		for (int i = 0; i < kernel.length; i++) kernel[i] /= sum;
+	}
+
+	/**
+	 * Augments a single record in place (can be called from multiple threads at the same time on different records)
+	 * @param records the records in the binary cache record format
+	 * @param index the index of the record
+	 * @param random the source of randomness (the caller can seed it per example to make the augmentation reproducible)
+	 */
+	public void augmentRecord(byte[] records, int index, Random random)
+	{
+		// The first byte of the record is the label
+		augment(records, index * FileUtil.RECORD_SIZE + 1, random, workspaces.get());
+	}
+
+	private void augment(byte[] records, int position, Random random, Workspace workspace)
+	{
+		float[] source = workspace.source;
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			source[i] = records[position + i] & 0xFF;
+		}
+
+		// Random affine transformation (rotation around the center and shift)
+		float angle = (2 * random.nextFloat() - 1) * maxRotation;
+		float cos = (float) Math.cos(angle);
+		float sin = (float) Math.sin(angle);
+		float shiftX = (2 * random.nextFloat() - 1) * maxShift;
+		float shiftY = (2 * random.nextFloat() - 1) * maxShift;
+
+		boolean isElastic = elasticAlpha > 0;
+		if (isElastic)
+		{
+			createDisplacement(workspace.displacementX, workspace, random);
+			createDisplacement(workspace.displacementY, workspace, random);
+		}
+
+		for (int y = 0; y < SIZE; y++)
+		{
+			for (int x = 0; x < SIZE; x++)
+			{
+				// Inverse mapping: the position in the source image of the target pixel
+				float dx = x - CENTER - shiftX;
+				float dy = y - CENTER - shiftY;
+
+				float sourceX = cos * dx + sin * dy + CENTER;
+				float sourceY = -sin * dx + cos * dy + CENTER;
+
+				if (isElastic)
+				{
+					sourceX += workspace.displacementX[y * SIZE + x];
+					sourceY += workspace.displacementY[y * SIZE + x];
+				}
+
+				float value = sample(source, sourceX, sourceY);
+
+				if (noise > 0) value += (float) random.nextGaussian() * noise;
+
+				int pixel = Math.round(value);
+				records[position + y * SIZE + x] = (byte) (pixel < 0 ? 0 : (pixel > 255 ? 255 : pixel));
+			}
+		}
+	}
+
+	/**
+	 * Creates a smooth random displacement field (uniform random values filtered by a separable Gaussian filter)
+	 */
+	private void createDisplacement(float[] displacement, Workspace workspace, Random random)
+	{
+		float[] temp = workspace.temp;
+
+		for (int i = 0; i < SIZE * SIZE; i++)
+		{
+			displacement[i] = 2 * random.nextFloat() - 1;
+		}
+
+		int radius = kernel.length / 2;
+
+		// Horizontal filter (the field is zero outside the image)
+		for (int y = 0; y < SIZE; y++)
+		{
+			for (int x = 0; x < SIZE; x++)
+			{
+				float sum = 0;
+				for (int k = Math.max(-radius, -x); k <= Math.min(radius, SIZE - 1 - x); k++)
+				{
+					sum += kernel[k + radius] * displacement[y * SIZE + x + k];
+				}
+				temp[y * SIZE + x] = sum;
+			}
+		}
+
+		// Vertical filter, and scaling
+		for (int y = 0; y < SIZE; y++)
+		{
+			for (int x = 0; x < SIZE; x++)
+			{
+				float sum = 0;
+				for (int k = Math.max(-radius, -y); k <= Math.min(radius, SIZE - 1 - y); k++)
+				{
+					sum += kernel[k + radius] * temp[(y + k) * SIZE + x];
+				}
+				displacement[y * SIZE + x] = sum * elasticAlpha;
+			}
+		}
+	}
+
+	/**
+	 * Bilinear interpolation of the image at a position (the image is zero outside)
+	 */
+	private static float sample(float[] image, float x, float y)
+	{
+		int x0 = (int) Math.floor(x);
+		int y0 = (int) Math.floor(y);
+
+		if (x0 < -1 || y0 < -1 || x0 >= SIZE || y0 >= SIZE) return 0;
+
+		float fx = x - x0;
+		float fy = y - y0;
+
+		float top = (1 - fx) * pixel(image, x0, y0) + fx * pixel(image, x0 + 1, y0);
+		float bottom = (1 - fx) * pixel(image, x0, y0 + 1) + fx * pixel(image, x0 + 1, y0 + 1);
+
+		return (1 - fy) * top + fy * bottom;
+	}
+
+	private static float pixel(float[] image, int x, int y)
+	{
+		return x < 0 || y < 0 || x >= SIZE || y >= SIZE ? 0 : image[y * SIZE + x];
+	}
+
+	/**
+	 * Per-thread buffers
+	 */
+	private static class Workspace
+	{
+		private final float[] source = new float[SIZE * SIZE];
+		private final float[] displacementX = new float[SIZE * SIZE];
+		private final float[] displacementY = new float[SIZE * SIZE];
+		private final float[] temp = new float[SIZE * SIZE];
+	}
+}
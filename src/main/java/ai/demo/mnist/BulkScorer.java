@@ -0,0 +1,554 @@
+package ai.demo.mnist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline scoring of a file of examples, using three overlapped stages:
+ * - decode: the reader thread reads the input in chunks (NIO, split at line boundaries),
+ *           and the decoder threads parse the chunks into binary records (using the format of the Example class)
+ * - inference: the inference threads evaluate the examples of the chunks, and format the output lines
+ * - output: the writer thread writes the chunks in the order of the input (the chunks can be finished in any order)
+ * The stages are connected by bounded queues, so a slow stage blocks the previous one (backpressure),
+ * and the number of chunks in memory is limited. The buffers of the finished chunks are reused (free lists),
+ * so the stages don't allocate memory per chunk.
+ * The input is a csv file in the format of the train/test files (the label is optional),
+ * or a binary example cache file (.idx). Every output line contains the recognized digit
+ * and the probabilities of the digits (the outputs of the network normalized to a sum of 1).
+ */
+public class BulkScorer
+{
+	// Size of the input chunks read at once (a chunk holds a few hundred csv lines)
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	// Number of chunks per thread which can wait in a queue between two stages
+	private static final int QUEUE_CAPACITY = 2;
+
+	// Marks the end of the input in the queues
+	private static final Chunk END = new Chunk(-1, null, 0);
+
+	// Shortest valid csv line: 784 one digit pixels separated by commas (bounds the number of records in a chunk)
+	private static final int MIN_LINE_LENGTH = 2 * (FileUtil.RECORD_SIZE - 1) - 1;
+
+	private final NeuralNetwork neuralNetwork;
+	private final int threads;
+
+	private final BlockingQueue<Chunk> decodeQueue;
+	private final BlockingQueue<Chunk> inferenceQueue;
+	private final BlockingQueue<Chunk> outputQueue;
+
+	// Buffers of the finished chunks: input bytes, decoded records and output lines
+	private final BlockingQueue<byte[]> freeInputs;
+	private final BlockingQueue<byte[]> freeRecords;
+	private final BlockingQueue<byte[]> freeOutputs;
+
+	// Number of running threads of the stages (the last one passes the end of the input to the next stage)
+	private final AtomicInteger activeDecoders = new AtomicInteger();
+	private final AtomicInteger activeInferences = new AtomicInteger();
+
+	// Time spent with work (not waiting for the queues) by the threads of the stages
+	private final LongAdder readTime = new LongAdder();
+	private final LongAdder decodeTime = new LongAdder();
+	private final LongAdder inferenceTime = new LongAdder();
+	private final LongAdder writeTime = new LongAdder();
+
+	private final List<Thread> stageThreads = new ArrayList<>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	// Results, counted by the writer
+	private long exampleCount;
+	private long labeledCount;
+	private long correctCount;
+
+	/**
+	 * Constructor
+	 * @param neuralNetwork the evaluated network
+	 * @param threads the number of decoder threads and the number of inference threads
+	 */
+	public BulkScorer(NeuralNetwork neuralNetwork, int threads)
+	{
+		this.neuralNetwork = neuralNetwork;
+		this.threads = threads;
+
+		decodeQueue = new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY);
+		inferenceQueue = new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY);
+		outputQueue = new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY);
+
+		// Pipeline depth: the chunks in the queues, and the ones being read, decoded, evaluated and written
+		int depth = 3 * threads * QUEUE_CAPACITY + 2 * threads + 2;
+		freeInputs = new ArrayBlockingQueue<>(depth);
+		freeRecords = new ArrayBlockingQueue<>(depth);
+		freeOutputs = new ArrayBlockingQueue<>(depth);
+	}
+
+	/**
+	 * Scores all examples of the input file, and writes the results into the output file
+	 */
+	public void score(File inputFile, File outputFile) throws Exception
+	{
+		boolean isBinary = inputFile.getName().endsWith(".idx");
+
+		long start = System.nanoTime();
+
+		try (FileChannel input = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+			 FileChannel output = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+					 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			activeDecoders.set(threads);
+			activeInferences.set(threads);
+
+			addStage("scoring-reader", () -> read(input, isBinary));
+			for (int i = 0; i < threads; i++)
+			{
+				addStage("scoring-decoder-" + i, () -> decode(isBinary));
+				addStage("scoring-inference-" + i, () -> infer(isBinary));
+			}
+			addStage("scoring-writer", () -> write(output));
+
+			for (Thread thread : stageThreads)
+			{
+				thread.start();
+			}
+
+			for (Thread thread : stageThreads)
+			{
+				thread.join();
+			}
+		}
+
+		if (failure.get() != null)
+		{
+			throw new Exception("Scoring failed: " + failure.get(), failure.get());
+		}
+
+		report(System.nanoTime() - start, outputFile);
+	}
+
+	/**
+	 * Reads the input file in chunks of whole lines (or whole records of a binary file)
+	 */
+	private void read(FileChannel input, boolean isBinary) throws Exception
+	{
+		long start = System.nanoTime();
+
+		if (isBinary) readHeader(input);
+
+		byte[] data = take(freeInputs, CHUNK_SIZE);
+		int length = 0;
+		long sequence = 0;
+		boolean isEnd = false;
+
+		while (!isEnd)
+		{
+			// Fill the rest of the buffer (after the incomplete line of the previous chunk)
+			ByteBuffer buffer = ByteBuffer.wrap(data, length, data.length - length);
+			while (buffer.hasRemaining() && !isEnd)
+			{
+				isEnd = input.read(buffer) < 0;
+			}
+			length = buffer.position();
+
+			// The chunk ends after the last complete line or record
+			int end;
+			if (isBinary) end = length - length % FileUtil.RECORD_SIZE;
+			else if (isEnd) end = length;
+			else end = lastIndexOf(data, length, (byte) '\n') + 1;
+
+			if (isEnd && end < length)
+			{
+				throw new IOException("Incomplete record at the end of the input file.");
+			}
+
+			if (end == 0 && !isEnd)
+			{
+				// A single line doesn't fit into the buffer
+				data = Arrays.copyOf(data, data.length * 2);
+				continue;
+			}
+
+			byte[] next = take(freeInputs, data.length);
+			System.arraycopy(data, end, next, 0, length - end);
+
+			if (end > 0)
+			{
+				readTime.add(System.nanoTime() - start);
+				decodeQueue.put(new Chunk(sequence++, data, end));
+				start = System.nanoTime();
+			}
+
+			data = next;
+			length -= end;
+		}
+
+		readTime.add(System.nanoTime() - start);
+
+		for (int i = 0; i < threads; i++)
+		{
+			decodeQueue.put(END);
+		}
+	}
+
+	/**
+	 * Reads and checks the header of a binary example cache file
+	 */
+	private static void readHeader(FileChannel input) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(FileUtil.CACHE_HEADER_SIZE);
+		while (header.hasRemaining())
+		{
+			if (input.read(header) < 0) break;
+		}
+		header.flip();
+
+		if (header.remaining() < FileUtil.CACHE_HEADER_SIZE || header.getInt() != FileUtil.CACHE_MAGIC)
+		{
+			throw new IOException("The input file isn't an example cache file.");
+		}
+	}
+
+	/**
+	 * Parses the lines of the chunks into binary records (label byte followed by the pixel bytes)
+	 */
+	private void decode(boolean isBinary) throws Exception
+	{
+		while (true)
+		{
+			Chunk chunk = decodeQueue.take();
+			if (chunk == END) break;
+
+			long start = System.nanoTime();
+
+			if (isBinary)
+			{
+				// The chunk is already in the record format
+				chunk.records = chunk.input;
+				chunk.count = chunk.inputLength / FileUtil.RECORD_SIZE;
+			}
+			else
+			{
+				parseLines(chunk);
+				release(freeInputs, chunk.input);
+			}
+
+			chunk.input = null;
+			decodeTime.add(System.nanoTime() - start);
+
+			inferenceQueue.put(chunk);
+		}
+
+		if (activeDecoders.decrementAndGet() == 0)
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				inferenceQueue.put(END);
+			}
+		}
+	}
+
+	private void parseLines(Chunk chunk)
+	{
+		byte[] data = chunk.input;
+
+		// Upper bound of the records (an invalid line fails before its record is written)
+		// It depends only on the size of the input buffer, so the record buffers of all chunks have the same size
+		byte[] records = take(freeRecords, (data.length / MIN_LINE_LENGTH + 1) * FileUtil.RECORD_SIZE);
+		int count = 0;
+
+		for (int start = 0; start < chunk.inputLength; )
+		{
+			int end = start;
+			while (end < chunk.inputLength && data[end] != '\n') end++;
+
+			int next = end + 1;
+			if (end > start && data[end - 1] == '\r') end--;
+
+			// Empty lines and a header line (first line of the file starting with a letter) are skipped
+			boolean isHeader = chunk.sequence == 0 && start == 0 && end > start && Character.isLetter(data[start]);
+			if (end > start && !isHeader)
+			{
+				Example.toScoringRecord(new String(data, start, end - start, StandardCharsets.US_ASCII), records, count * FileUtil.RECORD_SIZE);
+				count++;
+			}
+
+			start = next;
+		}
+
+		chunk.records = records;
+		chunk.count = count;
+	}
+
+	/**
+	 * Evaluates the examples of the chunks (every thread has its own inference context), and formats the output lines
+	 */
+	private void infer(boolean isBinary) throws Exception
+	{
+		int outputCount = neuralNetwork.getOutputCount();
+
+		InferenceContext context = new InferenceContext(neuralNetwork);
+		float[] pixels = new float[FileUtil.RECORD_SIZE - 1];
+		int[] nonZeroIndices = new int[FileUtil.RECORD_SIZE - 1];
+		float[] outputs = new float[outputCount];
+
+		while (true)
+		{
+			Chunk chunk = inferenceQueue.take();
+			if (chunk == END) break;
+
+			long start = System.nanoTime();
+
+			Dataset examples = new Dataset(ByteBuffer.wrap(chunk.records), 0, chunk.count);
+
+			// Longest line: a number with up to 10 digits, and the probabilities with 4 decimals (comma or new line after each)
+			// The size is calculated for a full record buffer, so the output buffers of all chunks have the same size
+			byte[] output = take(freeOutputs, chunk.records.length / FileUtil.RECORD_SIZE * (11 + outputCount * 7));
+			int position = 0;
+
+			for (int i = 0; i < chunk.count; i++)
+			{
+				int nonZeroCount = examples.getPixels(i, pixels, nonZeroIndices);
+				neuralNetwork.infer(pixels, nonZeroIndices, nonZeroCount, context, outputs);
+
+				int result = Evaluator.determineResult(outputs);
+				int label = examples.getLabel(i);
+				if (label >= 0)
+				{
+					chunk.labeledCount++;
+					if (label == result) chunk.correctCount++;
+				}
+
+				position = formatLine(result, outputs, output, position);
+			}
+
+			// The records of a binary input are in its input buffer
+			release(isBinary ? freeInputs : freeRecords, chunk.records);
+			chunk.records = null;
+			chunk.output = output;
+			chunk.outputLength = position;
+			inferenceTime.add(System.nanoTime() - start);
+
+			outputQueue.put(chunk);
+		}
+
+		if (activeInferences.decrementAndGet() == 0)
+		{
+			outputQueue.put(END);
+		}
+	}
+
+	/**
+	 * Writes an output line: the result and the probabilities
+	 * (The outputs are normalized to a sum of 1, negative outputs are counted as zero)
+	 */
+	private static int formatLine(int result, float[] outputs, byte[] line, int position)
+	{
+		String text = Integer.toString(result);
+		for (int i = 0; i < text.length(); i++)
+		{
+			line[position++] = (byte) text.charAt(i);
+		}
+
+		double sum = 0;
+		for (float output : outputs)
+		{
+			sum += Math.max(0, output);
+		}
+
+		for (float output : outputs)
+		{
+			double probability = sum > 0 ? Math.max(0, output) / sum : 1.0 / outputs.length;
+
+			// Fixed 4 decimals, without the cost of the general number formatting
+			int value = (int) Math.round(probability * 10000);
+			line[position++] = ',';
+			line[position++] = (byte) ('0' + value / 10000);
+			line[position++] = '.';
+			line[position++] = (byte) ('0' + value / 1000 % 10);
+			line[position++] = (byte) ('0' + value / 100 % 10);
+			line[position++] = (byte) ('0' + value / 10 % 10);
+			line[position++] = (byte) ('0' + value % 10);
+		}
+
+		line[position++] = '\n';
+
+		return position;
+	}
+
+	/**
+	 * Writes the chunks in the order of the input
+	 * A chunk which arrives before its predecessors waits in memory (their number is limited by the queues)
+	 */
+	private void write(FileChannel output) throws Exception
+	{
+		StringBuilder header = new StringBuilder("digit");
+		for (int i = 0; i < neuralNetwork.getOutputCount(); i++)
+		{
+			header.append(",p").append(i);
+		}
+		writeFully(output, header.append('\n').toString().getBytes(StandardCharsets.US_ASCII), -1);
+
+		Map<Long, Chunk> waitingChunks = new HashMap<>();
+		long nextSequence = 0;
+
+		while (true)
+		{
+			Chunk chunk = outputQueue.take();
+			if (chunk == END) break;
+
+			long start = System.nanoTime();
+
+			waitingChunks.put(chunk.sequence, chunk);
+
+			while ((chunk = waitingChunks.remove(nextSequence)) != null)
+			{
+				writeFully(output, chunk.output, chunk.outputLength);
+				release(freeOutputs, chunk.output);
+				chunk.output = null;
+
+				exampleCount += chunk.count;
+				labeledCount += chunk.labeledCount;
+				correctCount += chunk.correctCount;
+				nextSequence++;
+			}
+
+			writeTime.add(System.nanoTime() - start);
+		}
+
+		if (!waitingChunks.isEmpty())
+		{
+			throw new IOException("Missing output chunk: " + nextSequence);
+		}
+	}
+
+	private static void writeFully(FileChannel output, byte[] data, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length < 0 ? data.length : length);
+		while (buffer.hasRemaining())
+		{
+			output.write(buffer);
+		}
+	}
+
+	/**
+	 * Returns a free buffer of at least the given size, or a new one if there is no such free buffer
+	 */
+	private static byte[] take(BlockingQueue<byte[]> freeBuffers, int size)
+	{
+		byte[] buffer = freeBuffers.poll();
+		return buffer != null && buffer.length >= size ? buffer : new byte[size];
+	}
+
+	/**
+	 * Adds the buffer of a finished chunk to the free buffers (it is dropped if there are enough of them)
+	 */
+	private static void release(BlockingQueue<byte[]> freeBuffers, byte[] buffer)
+	{
+		freeBuffers.offer(buffer);
+	}
+
+	private static int lastIndexOf(byte[] data, int length, byte value)
+	{
+		for (int i = length - 1; i >= 0; i--)
+		{
+			if (data[i] == value) return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Creates a thread of a stage
+	 * If any stage fails, all threads are interrupted, so none of them stays blocked on a queue
+	 */
+	private void addStage(String name, Stage stage)
+	{
+		Thread thread = new Thread(() -> {
+			try
+			{
+				stage.run();
+			}
+			catch (InterruptedException e)
+			{
+				// Stopped because another stage failed
+			}
+			catch (Throwable e)
+			{
+				if (failure.compareAndSet(null, e))
+				{
+					for (Thread stageThread : stageThreads)
+					{
+						if (stageThread != Thread.currentThread()) stageThread.interrupt();
+					}
+				}
+			}
+		}, name);
+
+		stageThreads.add(thread);
+	}
+
+	private void report(long time, File outputFile)
+	{
+		double seconds = time / 1e9;
+
+		System.out.println(String.format("\nScored %d examples in %.2f s: %.0f examples/s (output: %s)",
+				exampleCount, seconds, exampleCount / seconds, outputFile.getPath()));
+
+		if (labeledCount > 0)
+		{
+			System.out.println(String.format("Accuracy: %.2f%% (%d of %d labeled examples)",
+					100.0 * correctCount / labeledCount, correctCount, labeledCount));
+		}
+
+		// The busy time of a stage divided by the elapsed time (how many threads the stage kept busy on average)
+		System.out.println(String.format("Busy threads - read: %.2f, decode: %.2f, inference: %.2f, write: %.2f (of %d decoder and %d inference threads)",
+				readTime.sum() / (double) time, decodeTime.sum() / (double) time,
+				inferenceTime.sum() / (double) time, writeTime.sum() / (double) time, threads, threads));
+	}
+
+	private interface Stage
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * A chunk of the input, passed through the stages
+	 */
+	private static class Chunk
+	{
+		private final long sequence;
+
+		// The input bytes (csv lines or binary records)
+		private byte[] input;
+		private final int inputLength;
+
+		// The decoded examples
+		private byte[] records;
+		private int count;
+
+		// The output lines and the counts of the recognized examples
+		private byte[] output;
+		private int outputLength;
+		private int labeledCount;
+		private int correctCount;
+
+		private Chunk(long sequence, byte[] input, int inputLength)
+		{
+			this.sequence = sequence;
+			this.input = input;
+			this.inputLength = inputLength;
+		}
+	}
+}
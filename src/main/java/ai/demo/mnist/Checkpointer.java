@@ -0,0 +1,367 @@
+package ai.demo.mnist;
+
+import ai.demo.mnist.metrics.EventRecorder;
+import ai.demo.mnist.optimizer.Optimizer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Periodic checkpoints of the parameters during the training
+ * A checkpoint copies the parameters into snapshot buffers (the only work on the training thread),
+ * and writes them as a model bundle on a background thread. Only the last few checkpoints are kept.
+ * The checkpoints are stored in the checkpoints folder of the model, named by the number of trained examples:
+ * checkpoints/checkpoint-000000060000/model.bundle
+ * With an optimizer its state (moments and step counts) is also saved before the bundle, so a resumed training
+ * continues with the same updates: checkpoints/checkpoint-000000060000/optimizer.state
+ */
+public class Checkpointer
+{
+	public static final String CHECKPOINTS_FOLDER = "checkpoints";
+	private static final String CHECKPOINT_PREFIX = "checkpoint-";
+	private static final String OPTIMIZER_STATE_FILE = "optimizer.state";
+	private static final int OPTIMIZER_STATE_MAGIC = 0x4D4F5331;
+
+	private final File checkpointsFolder;
+	private final String activation;
+	private final String optimizer;
+	private final int keepCount;
+	private final EventRecorder eventRecorder = EventRecorder.getInstance();
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "checkpoint-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Snapshot buffers (allocated at the first checkpoint, reused if the previous write is finished)
+	private float[][] weights;
+	private float[][] biases;
+	private float[][][] optimizerStates;
+	private long[] optimizerSteps;
+
+	private Future<?> pendingWrite;
+
+	/**
+	 * Constructor
+	 * @param modelPath the folder of the model
+	 * @param activation the name of the activation function (stored in the model bundle)
+	 * @param optimizer the name of the optimizer (stored with its state)
+	 * @param keepCount the number of kept checkpoints
+	 */
+	public Checkpointer(String modelPath, String activation, String optimizer, int keepCount)
+	{
+		this.checkpointsFolder = new File(modelPath, CHECKPOINTS_FOLDER);
+		this.activation = activation;
+		this.optimizer = optimizer;
+		this.keepCount = keepCount;
+	}
+
+	/**
+	 * Takes a snapshot of the parameters, and writes it in the background
+	 * If the previous checkpoint is still being written the checkpoint is skipped, so the training never waits for the disk
+	 * (The parameters must not be modified during the call, so it can't run parallel with the training.)
+	 * @param neuralNetwork the trained network
+	 * @param exampleCount the number of trained examples since the start of the training
+	 * @return whether the checkpoint was taken
+	 */
+	public boolean checkpoint(NeuralNetwork neuralNetwork, long exampleCount)
+	{
+		if (pendingWrite != null)
+		{
+			if (!pendingWrite.isDone())
+			{
+				System.out.println("\nWARNING: Checkpoint skipped, the previous one is still being written (" + exampleCount + ")");
+				return false;
+			}
+
+			waitForWrite();
+		}
+
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+		if (weights == null)
+		{
+			weights = new float[neuronLayers.size()][];
+			biases = new float[neuronLayers.size()][];
+
+			for (int i = 0; i < neuronLayers.size(); i++)
+			{
+				weights[i] = new float[neuronLayers.get(i).getWeights().length];
+				biases[i] = new float[neuronLayers.get(i).getBiases().length];
+			}
+		}
+
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			NeuronLayer layer = neuronLayers.get(i);
+			System.arraycopy(layer.getWeights(), 0, weights[i], 0, weights[i].length);
+			System.arraycopy(layer.getBiases(), 0, biases[i], 0, biases[i].length);
+		}
+
+		boolean hasOptimizer = neuronLayers.get(0).getOptimizer() != null;
+		if (hasOptimizer) snapshotOptimizers(neuronLayers);
+
+		ModelBundle bundle = new ModelBundle(activation, neuralNetwork.getLearningRate(),
+				neuronLayers.get(0).getInputCount(), weights, biases);
+
+		pendingWrite = writer.submit(() -> {
+			write(bundle, hasOptimizer, exampleCount);
+			return null;
+		});
+
+		return true;
+	}
+
+	/**
+	 * Copies the state of the optimizers into snapshot buffers (allocated at the first checkpoint)
+	 */
+	private void snapshotOptimizers(List<NeuronLayer> neuronLayers)
+	{
+		if (optimizerStates == null)
+		{
+			optimizerStates = new float[neuronLayers.size()][][];
+			optimizerSteps = new long[neuronLayers.size()];
+
+			for (int i = 0; i < neuronLayers.size(); i++)
+			{
+				float[][] state = neuronLayers.get(i).getOptimizer().getState();
+
+				optimizerStates[i] = new float[state.length][];
+				for (int j = 0; j < state.length; j++) optimizerStates[i][j] = new float[state[j].length];
+			}
+		}
+
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			Optimizer layerOptimizer = neuronLayers.get(i).getOptimizer();
+			float[][] state = layerOptimizer.getState();
+
+			for (int j = 0; j < state.length; j++)
+			{
+				System.arraycopy(state[j], 0, optimizerStates[i][j], 0, state[j].length);
+			}
+
+			optimizerSteps[i] = layerOptimizer.getStepCount();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint (the bundle is written under a temporary name and renamed, see ModelBundle.write),
+	 * and removes the old checkpoints
+	 * The optimizer state is written first, so a checkpoint with a complete bundle always has its optimizer state
+	 */
+	private void write(ModelBundle bundle, boolean hasOptimizer, long exampleCount) throws IOException
+	{
+		File folder = new File(checkpointsFolder, getFolderName(exampleCount));
+		if (!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Checkpoint folder creation error: " + folder);
+		}
+
+		if (hasOptimizer) writeOptimizerState(new File(folder, OPTIMIZER_STATE_FILE));
+
+		File bundleFile = new File(folder, ModelBundle.FILE_NAME);
+
+		Object event = eventRecorder.beginCheckpoint();
+		bundle.write(bundleFile);
+		eventRecorder.commitCheckpoint(event, exampleCount, bundleFile.getPath());
+
+		String[] names = listCheckpoints(checkpointsFolder);
+		for (int i = 0; i < names.length - keepCount; i++)
+		{
+			File oldFolder = new File(checkpointsFolder, names[i]);
+
+			File[] files = oldFolder.listFiles();
+			if (files != null)
+			{
+				for (File file : files) file.delete();
+			}
+
+			oldFolder.delete();
+		}
+	}
+
+	/**
+	 * Writes the snapshot of the optimizer state (under a temporary name, renamed at the end)
+	 * Format: magic, optimizer name, layer count, and for every layer: step count, array count, and the arrays (length, values)
+	 */
+	private void writeOptimizerState(File file) throws IOException
+	{
+		File tempFile = new File(file.getPath() + ".tmp");
+
+		try (FileOutputStream stream = new FileOutputStream(tempFile))
+		{
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+
+			output.writeInt(OPTIMIZER_STATE_MAGIC);
+			output.writeUTF(optimizer);
+			output.writeInt(optimizerStates.length);
+
+			for (int i = 0; i < optimizerStates.length; i++)
+			{
+				output.writeLong(optimizerSteps[i]);
+				output.writeInt(optimizerStates[i].length);
+
+				for (float[] values : optimizerStates[i])
+				{
+					output.writeInt(values.length);
+					for (float value : values) output.writeFloat(value);
+				}
+			}
+
+			output.flush();
+
+			// The content must be on the disk before the rename (see ModelBundle.write)
+			stream.getFD().sync();
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Restores the state of the optimizers of a network from a checkpoint, so the resumed training continues with the same updates
+	 * A checkpoint without optimizer state (taken with plain SGD) can't be resumed with an optimizer
+	 * @param neuralNetwork the network with the parameters of the checkpoint, and with the optimizers of the settings
+	 * @param checkpointPath the folder of the checkpoint
+	 * @param optimizer the name of the configured optimizer
+	 */
+	public static void restoreOptimizers(NeuralNetwork neuralNetwork, String checkpointPath, String optimizer) throws Exception
+	{
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+		File file = new File(checkpointPath, OPTIMIZER_STATE_FILE);
+
+		if (neuronLayers.get(0).getOptimizer() == null)
+		{
+			if (file.exists()) throw new Exception("The checkpoint was taken with an optimizer, it can't be resumed with SGD.");
+			return;
+		}
+
+		if (!file.exists())
+		{
+			throw new Exception("The checkpoint doesn't contain the state of the optimizer (" + optimizer + "), it can't be resumed.");
+		}
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			if (input.readInt() != OPTIMIZER_STATE_MAGIC) throw new Exception("Invalid optimizer state file: " + file);
+
+			String savedOptimizer = input.readUTF();
+			if (!savedOptimizer.equals(optimizer))
+			{
+				throw new Exception("The checkpoint was taken with another optimizer (" + savedOptimizer + "), it can't be resumed with " + optimizer + ".");
+			}
+
+			if (input.readInt() != neuronLayers.size()) throw new Exception("The optimizer state doesn't match the network: " + file);
+
+			for (NeuronLayer layer : neuronLayers)
+			{
+				long stepCount = input.readLong();
+				float[][] state = layer.getOptimizer().getState();
+
+				if (input.readInt() != state.length) throw new Exception("The optimizer state doesn't match the network: " + file);
+
+				for (float[] values : state)
+				{
+					if (input.readInt() != values.length) throw new Exception("The optimizer state doesn't match the network: " + file);
+
+					for (int i = 0; i < values.length; i++) values[i] = input.readFloat();
+				}
+
+				layer.getOptimizer().setStepCount(stepCount);
+			}
+		}
+		catch (EOFException e)
+		{
+			throw new Exception("Truncated optimizer state file: " + file);
+		}
+	}
+
+	/**
+	 * Waits for the pending write, and reports if it failed (a failed checkpoint doesn't stop the training)
+	 */
+	private void waitForWrite()
+	{
+		try
+		{
+			pendingWrite.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			System.out.println("\nWARNING: Checkpoint write error: " + e.getCause());
+		}
+
+		pendingWrite = null;
+	}
+
+	/**
+	 * Waits for the last checkpoint to be written, and stops the background thread
+	 */
+	public void close()
+	{
+		if (pendingWrite != null) waitForWrite();
+
+		writer.shutdown();
+	}
+
+	/**
+	 * Returns the parameters folder of the latest complete checkpoint (relative to the model folder), or null if there isn't any
+	 */
+	public static String findLatest(String modelPath)
+	{
+		File checkpointsFolder = new File(modelPath, CHECKPOINTS_FOLDER);
+		String[] names = listCheckpoints(checkpointsFolder);
+
+		for (int i = names.length - 1; i >= 0; i--)
+		{
+			// A folder without bundle is an interrupted checkpoint
+			if (new File(new File(checkpointsFolder, names[i]), ModelBundle.FILE_NAME).exists())
+			{
+				return CHECKPOINTS_FOLDER + "/" + names[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the number of trained examples of a checkpoint
+	 * @param parametersFolder the parameters folder of the checkpoint (as returned by findLatest)
+	 */
+	public static long getExampleCount(String parametersFolder)
+	{
+		String name = new File(parametersFolder).getName();
+		return Long.parseLong(name.substring(CHECKPOINT_PREFIX.length()));
+	}
+
+	private static String getFolderName(long exampleCount)
+	{
+		// Zero padded, so the alphabetical order is the order of the checkpoints
+		return String.format("%s%012d", CHECKPOINT_PREFIX, exampleCount);
+	}
+
+	/**
+	 * Lists the checkpoint folders in order
+	 */
+	private static String[] listCheckpoints(File checkpointsFolder)
+	{
+		String[] names = checkpointsFolder.list((folder, name) ->
+				name.startsWith(CHECKPOINT_PREFIX) && name.length() == CHECKPOINT_PREFIX.length() + 12);
+
+		if (names == null) return new String[0];
+
+		Arrays.sort(names);
+		return names;
+	}
+}
@@ -0,0 +1,129 @@
+package ai.demo.mnist;
+
+/**
+ * Counts of the recognition results by label and by predicted digit, with the derived statistics
+ */
+public class ConfusionMatrix
+{
+	// counts[label][predicted]
+	private final int[][] counts;
+
+	private int total;
+
+	/**
+	 * Constructor
+	 * @param classCount the number of classes (digits)
+	 */
+	public ConfusionMatrix(int classCount)
+	{
+		counts = new int[classCount][classCount];
+	}
+
+	/**
+	 * Registers a recognition result
+	 */
+	public void add(int label, int predicted)
+	{
+		counts[label][predicted]++;
+		total++;
+	}
+
+	/**
+	 * Adds the counts of another (partial) matrix to this
+	 */
+	public void merge(ConfusionMatrix other)
+	{
+		for (int label = 0; label < counts.length; label++)
+		{
+			for (int predicted = 0; predicted < counts.length; predicted++)
+			{
+				counts[label][predicted] += other.counts[label][predicted];
+			}
+		}
+
+		total += other.total;
+	}
+
+	/**
+	 * Returns the ratio of the correctly recognized examples
+	 */
+	public double getAccuracy()
+	{
+		int success = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			success += counts[i][i];
+		}
+
+		return total == 0 ? 0 : (double) success / total;
+	}
+
+	/**
+	 * Returns the ratio of the correct results among the examples predicted as the given class
+	 */
+	public double getPrecision(int predicted)
+	{
+		int sum = 0;
+		for (int label = 0; label < counts.length; label++)
+		{
+			sum += counts[label][predicted];
+		}
+
+		return sum == 0 ? 0 : (double) counts[predicted][predicted] / sum;
+	}
+
+	/**
+	 * Returns the ratio of the correctly recognized examples among the examples of the given class
+	 */
+	public double getRecall(int label)
+	{
+		int sum = 0;
+		for (int predicted = 0; predicted < counts.length; predicted++)
+		{
+			sum += counts[label][predicted];
+		}
+
+		return sum == 0 ? 0 : (double) counts[label][label] / sum;
+	}
+
+	public int getCount(int label, int predicted)
+	{
+		return counts[label][predicted];
+	}
+
+	public int getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * Prints the matrix (rows: labels, columns: predictions), with the recall per label and precision per prediction
+	 */
+	public void print()
+	{
+		StringBuilder builder = new StringBuilder("label\\predicted");
+		for (int predicted = 0; predicted < counts.length; predicted++)
+		{
+			builder.append(String.format("%7d", predicted));
+		}
+		builder.append("   recall\n");
+
+		for (int label = 0; label < counts.length; label++)
+		{
+			builder.append(String.format("%15d", label));
+			for (int predicted = 0; predicted < counts.length; predicted++)
+			{
+				builder.append(String.format("%7d", counts[label][predicted]));
+			}
+			builder.append(String.format("  %6.2f%%\n", 100 * getRecall(label)));
+		}
+
+		builder.append(String.format("%15s", "precision"));
+		for (int predicted = 0; predicted < counts.length; predicted++)
+		{
+			builder.append(String.format(" %5.1f%%", 100 * getPrecision(predicted)));
+		}
+
+		System.out.println(builder);
+	}
+}
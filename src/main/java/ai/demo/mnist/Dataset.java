@@ -0,0 +1,185 @@
+package ai.demo.mnist;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact, read-only storage of examples
+ * The images are kept as 8 bit grayscale values in a single buffer (using the binary cache record format),
+ * and converted to normalized floats only when an example is read
+ */
+public class Dataset
+{
+    // Normalized value of every possible pixel byte (same as dividing by 255 at reading time)
+    private static final float[] NORMALIZED = new float[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            NORMALIZED[i] = (float) (i / 255.0);
+        }
+    }
+
+    // Number of records in a segment (a buffer can't be bigger than 2 GB, and a record isn't split between two segments)
+    static final int SEGMENT_RECORDS = Integer.MAX_VALUE / FileUtil.RECORD_SIZE;
+
+    // The records (label byte followed by the pixel bytes), heap or memory-mapped buffers of SEGMENT_RECORDS records
+    private final ByteBuffer[] segments;
+
+    // Position of the first record in the segments
+    private final int offset;
+
+    // The labels of all examples
+    private final byte[] labels;
+
+    /**
+     * Constructor
+     * @param records the buffer of the records (at most 2 GB, so it contains less than SEGMENT_RECORDS records)
+     * @param offset the position of the first record
+     * @param size the number of records
+     */
+    public Dataset(ByteBuffer records, int offset, int size)
+    {
+        this(new ByteBuffer[] {records}, offset, size);
+    }
+
+    /**
+     * Constructor
+     * @param segments the buffers of the records, every buffer (except the last) contains SEGMENT_RECORDS records
+     * @param offset the position of the first record in every buffer
+     * @param size the number of records
+     */
+    public Dataset(ByteBuffer[] segments, int offset, int size)
+    {
+        this.segments = segments;
+        this.offset = offset;
+
+        // Copy the labels to a separate array, so they can be accessed without calculating the record position
+        labels = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            labels[i] = getSegment(i).get(getPosition(i));
+        }
+    }
+
+    public int size()
+    {
+        return labels.length;
+    }
+
+    public int getLabel(int index)
+    {
+        return labels[index];
+    }
+
+    /**
+     * Reads the normalized pixels (between 0 and 1) of an example into the provided array
+     */
+    public void getPixels(int index, float[] pixels)
+    {
+        getPixels(index, pixels, 0);
+    }
+
+    /**
+     * Reads the normalized pixels (between 0 and 1) of an example into the provided array from the given position
+     */
+    public void getPixels(int index, float[] pixels, int pixelsOffset)
+    {
+        ByteBuffer records = getSegment(index);
+        int position = getPosition(index) + 1;
+
+        for (int i = 0; i < FileUtil.RECORD_SIZE - 1; i++)
+        {
+            pixels[pixelsOffset + i] = NORMALIZED[records.get(position + i) & 0xFF];
+        }
+    }
+
+    /**
+     * Reads the normalized pixels of an example, and collects the indices of the non-zero pixels
+     * (Most of the pixels are zero, so the first layer can skip them)
+     * @param index the index of the example
+     * @param pixels the collector of the pixels
+     * @param nonZeroIndices the collector of the indices of the non-zero pixels (in ascending order)
+     * @return the number of the non-zero pixels
+     */
+    public int getPixels(int index, float[] pixels, int[] nonZeroIndices)
+    {
+        ByteBuffer records = getSegment(index);
+        int position = getPosition(index) + 1;
+        int count = 0;
+
+        for (int i = 0; i < FileUtil.RECORD_SIZE - 1; i++)
+        {
+            int value = records.get(position + i) & 0xFF;
+            pixels[i] = NORMALIZED[value];
+
+            // Branch-free collection: the index is always written, but kept only if the pixel isn't zero
+            nonZeroIndices[count] = i;
+            count += value == 0 ? 0 : 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies records (in the binary cache record format) into a byte array, for example to build a shuffled block
+     * Can be called from multiple threads at the same time
+     * @param order the order of the records (the indices of the records), or null for consecutive records
+     * @param first the position of the first copied record in the order
+     * @param count the number of records
+     * @param target the collector of the records
+     */
+    public void copyRecords(int[] order, int first, int count, byte[] target)
+    {
+        // Private views of the buffers, because the relative bulk get changes the position
+        ByteBuffer[] views = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++)
+        {
+            views[i] = segments[i].duplicate();
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            int index = order == null ? first + i : order[first + i];
+            ByteBuffer view = views[index / SEGMENT_RECORDS];
+
+            view.position(getPosition(index));
+            view.get(target, i * FileUtil.RECORD_SIZE, FileUtil.RECORD_SIZE);
+        }
+    }
+
+    /**
+     * Reads consecutive examples as a mini-batch
+     * @param first the index of the first example
+     * @param count the number of examples
+     * @param inputs the normalized pixels (one row per example)
+     * @param targets the targeted outputs (one-hot rows, one per example)
+     */
+    public void getBatch(int first, int count, float[] inputs, float[] targets)
+    {
+        Arrays.fill(targets, 0, count * 10, 0);
+
+        for (int i = 0; i < count; i++)
+        {
+            getPixels(first + i, inputs, i * (FileUtil.RECORD_SIZE - 1));
+            targets[i * 10 + getLabel(first + i)] = 1;
+        }
+    }
+
+    /**
+     * Returns the buffer of a record
+     */
+    private ByteBuffer getSegment(int index)
+    {
+        return segments[index / SEGMENT_RECORDS];
+    }
+
+    /**
+     * Returns the position of a record in its buffer (a buffer is at most 2 GB, so it doesn't overflow)
+     */
+    private int getPosition(int index)
+    {
+        return offset + index % SEGMENT_RECORDS * FileUtil.RECORD_SIZE;
+    }
+}
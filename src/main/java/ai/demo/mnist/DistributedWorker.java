@@ -0,0 +1,164 @@
+package ai.demo.mnist;
+
+import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Worker process of the distributed training (see ParameterServer)
+ * The worker gets the structure and the parameters of the network from the server, calculates the gradients
+ * on mini-batches of its shard of the training examples, sends them to the server, and continues with the
+ * parameters received in the answer. It doesn't need the model folder, only the training examples.
+ */
+public class DistributedWorker
+{
+	// The worker can be started before the server (it retries the connection for a while)
+	private static final int CONNECT_ATTEMPTS = 30;
+
+	private final String host;
+	private final int port;
+
+	/**
+	 * Constructor
+	 * @param address the address of the parameter server (host:port)
+	 */
+	public DistributedWorker(String address)
+	{
+		int separator = address.lastIndexOf(':');
+		host = separator < 0 ? address : address.substring(0, separator);
+		port = separator < 0 ? 9090 : Integer.parseInt(address.substring(separator + 1));
+	}
+
+	/**
+	 * Trains until the server stops the training
+	 */
+	public void run() throws Exception
+	{
+		try (Socket socket = connect())
+		{
+			socket.setTcpNoDelay(true);
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+			out.writeInt(ParameterServer.MAGIC);
+			out.flush();
+
+			if (in.readInt() != ParameterServer.MAGIC) throw new IOException("The server isn't a parameter server: " + host + ":" + port);
+
+			int worker = in.readInt();
+			int workerCount = in.readInt();
+			int batchSize = in.readInt();
+			int shardFirst = in.readInt();
+			int shardSize = in.readInt();
+
+			NeuralNetwork neuralNetwork = readNetwork(in);
+			ByteBuffer buffer = ParameterServer.createBuffer(neuralNetwork);
+			ParameterServer.readParameters(in, neuralNetwork, buffer);
+
+			Dataset examples = FileUtil.readTrainExamples();
+			if (shardFirst + shardSize > examples.size())
+			{
+				throw new Exception("The shard of the worker is out of the training examples (" + examples.size() + ").");
+			}
+
+			System.out.println(String.format("Worker %d of %d: examples %d - %d, batch size: %d",
+					worker + 1, workerCount, shardFirst, shardFirst + shardSize - 1, batchSize));
+
+			float[] inputs = new float[batchSize * (FileUtil.RECORD_SIZE - 1)];
+			float[] targets = new float[batchSize * neuralNetwork.getOutputCount()];
+
+			long exampleCount = 0;
+			long computeTime = 0;
+			long exchangeTime = 0;
+			long start = System.nanoTime();
+			int position = 0;
+
+			while (true)
+			{
+				long stepStart = System.nanoTime();
+
+				// The last batch of the shard can be smaller
+				int count = Math.min(batchSize, shardSize - position);
+				neuralNetwork.loadBatch(examples, shardFirst + position, count, inputs, targets);
+				neuralNetwork.calculateGradients(inputs, targets, count);
+
+				position = (position + count) % shardSize;
+				exampleCount += count;
+
+				long computeEnd = System.nanoTime();
+				computeTime += computeEnd - stepStart;
+
+				out.writeInt(count);
+				for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+				{
+					ParameterServer.writeFloats(out, layer.getWeightGradients(), buffer);
+					ParameterServer.writeFloats(out, layer.getBiasGradients(), buffer);
+				}
+				out.flush();
+
+				boolean isStopped = in.readInt() == ParameterServer.STOP;
+				if (!isStopped) ParameterServer.readParameters(in, neuralNetwork, buffer);
+
+				exchangeTime += System.nanoTime() - computeEnd;
+
+				if (isStopped) break;
+			}
+
+			double time = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Worker %d finished: %d examples in %.2f s, %.0f examples/s"
+							+ " (compute: %.1f%%, exchange and wait: %.1f%%)", worker + 1, exampleCount, time, exampleCount / time,
+					100 * computeTime / 1e9 / time, 100 * exchangeTime / 1e9 / time));
+		}
+	}
+
+	/**
+	 * Connects to the server, retrying if it isn't listening yet
+	 */
+	private Socket connect() throws Exception
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			try
+			{
+				return new Socket(host, port);
+			}
+			catch (ConnectException e)
+			{
+				if (attempt == CONNECT_ATTEMPTS) throw new Exception("Cannot connect to the parameter server: " + host + ":" + port);
+
+				Thread.sleep(1000);
+			}
+		}
+	}
+
+	/**
+	 * Creates the network described by the server (the parameters are filled later)
+	 */
+	private static NeuralNetwork readNetwork(DataInputStream in) throws IOException
+	{
+		String activation = in.readUTF();
+		String activationMode = in.readUTF();
+		Kernels kernels = Kernels.getInstance(in.readUTF());
+
+		int layerCount = in.readInt();
+		List<NeuronLayer> neuronLayers = new ArrayList<>(layerCount);
+		for (int i = 0; i < layerCount; i++)
+		{
+			int inputCount = in.readInt();
+			int neuronCount = in.readInt();
+
+			neuronLayers.add(new NeuronLayer(inputCount, neuronCount, new float[inputCount * neuronCount], new float[neuronCount],
+					Activation.getInstance(activation, activationMode), kernels));
+		}
+
+		// The learning rate isn't used, the parameters are updated by the server
+		return new NeuralNetwork(neuronLayers, 0);
+	}
+}
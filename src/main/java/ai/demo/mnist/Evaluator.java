@@ -0,0 +1,141 @@
+package ai.demo.mnist;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Measures the recognition on a dataset using all processors (or the threads of a given pool)
+ * The examples are split into shards, every shard is evaluated using its own inference context
+ * (so the network isn't copied), and the partial confusion matrices are merged at the end
+ */
+public class Evaluator
+{
+	// Minimum number of examples evaluated by a single task
+	private static final int SHARD_SIZE = 500;
+
+	/**
+	 * Inference of a single example, created for every shard (so it can use its own buffers)
+	 */
+	private interface Inference
+	{
+		void infer(float[] pixels, int[] nonZeroIndices, int nonZeroCount, float[] outputs);
+	}
+
+	/**
+	 * Evaluates the network on all examples of a dataset
+	 */
+	public static ConfusionMatrix evaluate(NeuralNetwork neuralNetwork, Dataset examples)
+	{
+		return evaluate(neuralNetwork, examples, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Evaluates the network on all examples of a dataset using the threads of the given pool
+	 * (for example to limit the number of threads while other trainings are running)
+	 */
+	public static ConfusionMatrix evaluate(NeuralNetwork neuralNetwork, Dataset examples, ForkJoinPool pool)
+	{
+		Supplier<Inference> inferences = () ->
+		{
+			InferenceContext context = new InferenceContext(neuralNetwork);
+			return (pixels, nonZeroIndices, nonZeroCount, outputs) ->
+					neuralNetwork.infer(pixels, nonZeroIndices, nonZeroCount, context, outputs);
+		};
+
+		return evaluate(inferences, neuralNetwork.getOutputCount(), examples, pool);
+	}
+
+	/**
+	 * Evaluates the quantized network on all examples of a dataset
+	 */
+	public static ConfusionMatrix evaluate(QuantizedNetwork quantizedNetwork, Dataset examples)
+	{
+		Supplier<Inference> inferences = () ->
+		{
+			QuantizedNetwork.Workspace workspace = quantizedNetwork.createWorkspace();
+			return (pixels, nonZeroIndices, nonZeroCount, outputs) ->
+					quantizedNetwork.infer(pixels, nonZeroIndices, nonZeroCount, workspace, outputs);
+		};
+
+		return evaluate(inferences, quantizedNetwork.getOutputCount(), examples, ForkJoinPool.commonPool());
+	}
+
+	private static ConfusionMatrix evaluate(Supplier<Inference> inferences, int outputCount, Dataset examples, ForkJoinPool pool)
+	{
+		return pool.invoke(new EvaluationTask(inferences, outputCount, examples, 0, examples.size()));
+	}
+
+	/**
+	 * Returns the index of the highest output
+	 */
+	public static int determineResult(float[] output)
+	{
+		int maxIndex = 0;
+
+		for (int i = 1; i < output.length; i++)
+		{
+			if (output[i] > output[maxIndex])
+			{
+				maxIndex = i;
+			}
+		}
+
+		return maxIndex;
+	}
+
+	/**
+	 * Evaluates a range of the examples, split recursively until the range is small enough
+	 */
+	private static class EvaluationTask extends RecursiveTask<ConfusionMatrix>
+	{
+		private final Supplier<Inference> inferences;
+		private final int outputCount;
+		private final Dataset examples;
+		private final int first;
+		private final int last;
+
+		private EvaluationTask(Supplier<Inference> inferences, int outputCount, Dataset examples, int first, int last)
+		{
+			this.inferences = inferences;
+			this.outputCount = outputCount;
+			this.examples = examples;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected ConfusionMatrix compute()
+		{
+			if (last - first > SHARD_SIZE)
+			{
+				int middle = (first + last) >>> 1;
+
+				EvaluationTask left = new EvaluationTask(inferences, outputCount, examples, first, middle);
+				left.fork();
+
+				ConfusionMatrix matrix = new EvaluationTask(inferences, outputCount, examples, middle, last).compute();
+				matrix.merge(left.join());
+
+				return matrix;
+			}
+
+			ConfusionMatrix matrix = new ConfusionMatrix(outputCount);
+
+			Inference inference = inferences.get();
+			float[] pixels = new float[28 * 28];
+			int[] nonZeroIndices = new int[28 * 28];
+			float[] outputs = new float[outputCount];
+
+			for (int i = first; i < last; i++)
+			{
+				int nonZeroCount = examples.getPixels(i, pixels, nonZeroIndices);
+				inference.infer(pixels, nonZeroIndices, nonZeroCount, outputs);
+
+				matrix.add(examples.getLabel(i), determineResult(outputs));
+			}
+
+			return matrix;
+		}
+	}
+}
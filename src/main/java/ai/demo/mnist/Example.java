@@ -1,39 +1,60 @@
 package ai.demo.mnist;
 
 /**
- * Represents a single example (image of a digit)
+ * Parses the examples (images of digits) of the csv files into binary records
+ * A line is the label followed by the 28 * 28 pixels (8 bit grayscale values), a record is the same in bytes
  */
 public class Example
 {
-    // The number what can be seen on the image
-    private final int label;
+    /**
+     * Converts a comma separated line to a binary record (label byte followed by the pixel bytes)
+     */
+    public static void toRecord(String line, byte[] record)
+    {
+        String[] split = line.split(",");
+        if (split.length != FileUtil.RECORD_SIZE) throw invalidExample(line, split.length + " values");
 
-    // The pixels of the image (28 * 28 pixels, 8 bit grayscale values)
-    private final float[] pixels;
+        toRecord(line, split, 1, toLabel(line, split[0]), record, 0);
+    }
 
-    public Example(String line)
+    /**
+     * Converts a comma separated line of the scored examples to a binary record at the given position of an array
+     * The label is optional: a line with only the pixels gets the label -1 (it must not get into a training cache)
+     */
+    public static void toScoringRecord(String line, byte[] records, int offset)
     {
-        // Split the comma separated line
         String[] split = line.split(",");
 
-        // Read the label (first value)
-        label = Integer.parseInt(split[0]);
+        if (split.length == FileUtil.RECORD_SIZE) toRecord(line, split, 1, toLabel(line, split[0]), records, offset);
+        else if (split.length == FileUtil.RECORD_SIZE - 1) toRecord(line, split, 0, -1, records, offset);
+        else throw invalidExample(line, split.length + " values");
+    }
+
+    private static void toRecord(String line, String[] split, int first, int label, byte[] records, int offset)
+    {
+        records[offset] = (byte) label;
 
-        // Read the pixels
-        pixels = new float[28 * 28];
-        for (int i = 1; i < split.length; i++)
+        for (int i = first; i < split.length; i++)
         {
-            pixels[i - 1] = (float) (Float.parseFloat(split[i]) / 255.0);
+            // The pixels are stored as unsigned bytes, a value out of range would be silently wrapped
+            int pixel = Integer.parseInt(split[i]);
+            if (pixel < 0 || pixel > 255) throw invalidExample(line, "pixel " + pixel);
+
+            records[offset + 1 + i - first] = (byte) pixel;
         }
     }
 
-    public int getLabel()
+    private static int toLabel(String line, String value)
     {
+        int label = Integer.parseInt(value);
+        if (label < 0 || label > 9) throw invalidExample(line, "label " + label);
+
         return label;
     }
 
-    public float[] getPixels()
+    private static RuntimeException invalidExample(String line, String problem)
     {
-        return pixels;
+        return new RuntimeException("Invalid example (" + problem + "): "
+                + (line.length() > 40 ? line.substring(0, 40) + "..." : line));
     }
-}
\ No newline at end of file
+}
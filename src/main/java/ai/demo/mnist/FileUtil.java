@@ -1,6 +1,7 @@
 package ai.demo.mnist;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
@@ -8,66 +9,190 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * File utility to read train/test files, and to read and save parameter files
  */
 public class FileUtil
 {
+    // Location of the dataset files
+    private static final String RESOURCES_PATH = "src/main/resources/";
+
+    // Header of the binary example cache: magic number, record count, rows, columns (IDX style, big-endian)
+    static final int CACHE_MAGIC = 0x4D4E0803;
+    static final int CACHE_HEADER_SIZE = 16;
+
+    // A cache record is the label byte followed by the 28 * 28 pixel bytes
+    public static final int RECORD_SIZE = 1 + 28 * 28;
+
+    // Quantized parameter file (stored in the parameters folder, next to the float32 files)
+    // Header: magic number, layer count; then per layer: input count, neuron count, scales, biases, int8 weights
+    public static final String QUANTIZED_FILE_NAME = "parameters.q8";
+    private static final int QUANTIZED_MAGIC = 0x51384E4E;
+
     /**
      * Reads the train examples
      * (The train examples are split into three files because of the GitHub upload limit)
      */
-    public static List<Example> readTrainExamples() throws Exception
+    public static Dataset readTrainExamples() throws Exception
     {
-        List<Example> examples = readExamples(new File("src/main/resources/mnist_train_0.csv"));
-        examples.addAll(readExamples(new File("src/main/resources/mnist_train_1.csv")));
-        examples.addAll(readExamples(new File("src/main/resources/mnist_train_2.csv")));
+        File[] csvFiles = {
+                new File(RESOURCES_PATH + "mnist_train_0.csv"),
+                new File(RESOURCES_PATH + "mnist_train_1.csv"),
+                new File(RESOURCES_PATH + "mnist_train_2.csv")};
 
-        return examples;
+        return readExamples(csvFiles, new File(RESOURCES_PATH + "mnist_train.idx"));
     }
 
     /**
      * Reads the test examples
      */
-    public static List<Example> readTestExamples() throws Exception
+    public static Dataset readTestExamples() throws Exception
     {
-        return readExamples(new File("src/main/resources/mnist_test.csv"));
+        File[] csvFiles = {new File(RESOURCES_PATH + "mnist_test.csv")};
+
+        return readExamples(csvFiles, new File(RESOURCES_PATH + "mnist_test.idx"));
     }
 
     /**
-     * Reads examples from a csv file
+     * Reads examples using the binary cache file
+     * The cache is (re)created from the csv files at the first run, or if any of the csv files is newer
      */
-    private static List<Example> readExamples(File file) throws Exception
+    private static Dataset readExamples(File[] csvFiles, File cacheFile) throws Exception
     {
-        List<Example> examples = new ArrayList<>();
+        if (isCacheOutdated(csvFiles, cacheFile))
+        {
+            convertExamples(csvFiles, cacheFile);
+        }
+
+        return readExampleCache(cacheFile);
+    }
+
+    /**
+     * Checks whether the binary cache file is missing or older than any of the csv files
+     */
+    private static boolean isCacheOutdated(File[] csvFiles, File cacheFile)
+    {
+        if (!cacheFile.exists()) return true;
+
+        for (File csvFile : csvFiles)
+        {
+            if (csvFile.exists() && csvFile.lastModified() > cacheFile.lastModified()) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Converts csv files to a single binary cache file (one-time conversion)
+     * The file is written under a temporary name and renamed at the end, so an interrupted conversion
+     * won't leave a broken cache behind
+     */
+    private static void convertExamples(File[] csvFiles, File cacheFile) throws Exception
+    {
+        System.out.print("Converting examples to binary cache (" + cacheFile.getName() + ")... ");
+
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
 
-        try {
-            Scanner sc = new Scanner(file);
+        int count = 0;
+        byte[] record = new byte[RECORD_SIZE];
 
-            while (sc.hasNextLine())
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16)))
+        {
+            // Header placeholder, the record count is known only at the end
+            output.write(new byte[CACHE_HEADER_SIZE]);
+
+            for (File csvFile : csvFiles)
             {
-                examples.add(new Example(sc.nextLine()));
+                try (BufferedReader reader = new BufferedReader(new FileReader(csvFile), 1 << 16))
+                {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        if (line.isEmpty()) continue;
+
+                        Example.toRecord(line, record);
+                        output.write(record);
+                        count++;
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new Error("File reading error: " + csvFile.getName());
+                }
             }
+        }
 
-            sc.close();
+        try (RandomAccessFile output = new RandomAccessFile(tempFile, "rw"))
+        {
+            output.writeInt(CACHE_MAGIC);
+            output.writeInt(count);
+            output.writeInt(28);
+            output.writeInt(28);
+        }
 
+        if (!tempFile.renameTo(cacheFile))
+        {
+            // On some platforms rename doesn't replace an existing file
+            if (!cacheFile.delete() || !tempFile.renameTo(cacheFile))
+            {
+                throw new Error("Cache file creation error: " + cacheFile.getName());
+            }
+        }
+
+        System.out.println("Done (" + count + " examples)");
+    }
+
+    /**
+     * Reads examples from the binary cache file
+     * The file is memory-mapped, and the mapped buffers are used directly as dataset storage (no copy on the heap)
+     * A mapped buffer can't be bigger than 2 GB, so the records are mapped in segments (see Dataset.SEGMENT_RECORDS)
+     */
+    private static Dataset readExampleCache(File file)
+    {
+        try (FileInputStream stream = new FileInputStream(file))
+        {
+            FileChannel channel = stream.getChannel();
+            if (channel.size() < CACHE_HEADER_SIZE)
+            {
+                throw new Error("Invalid example cache file: " + file.getName() + " (delete it to recreate)");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, CACHE_HEADER_SIZE);
+
+            int magic = header.getInt(0);
+            int count = header.getInt(4);
+
+            if (magic != CACHE_MAGIC || header.getInt(8) * header.getInt(12) != RECORD_SIZE - 1 || count < 0
+                    || channel.size() != CACHE_HEADER_SIZE + (long) count * RECORD_SIZE)
+            {
+                throw new Error("Invalid example cache file: " + file.getName() + " (delete it to recreate)");
+            }
+
+            ByteBuffer[] segments = new ByteBuffer[(int) (((long) count + Dataset.SEGMENT_RECORDS - 1) / Dataset.SEGMENT_RECORDS)];
+            for (int i = 0; i < segments.length; i++)
+            {
+                long first = (long) i * Dataset.SEGMENT_RECORDS;
+                long records = Math.min(Dataset.SEGMENT_RECORDS, count - first);
+
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, CACHE_HEADER_SIZE + first * RECORD_SIZE,
+                        records * RECORD_SIZE);
+            }
+
+            return new Dataset(segments, 0, count);
         }
         catch (IOException e)
         {
             throw new Error("File reading error: " + file.getName());
         }
-
-        return examples;
     }
 
     /**
-     * Reads a weight file
+     * Reads a weight file (the weights are stored in row-major order, so no conversion is necessary)
      */
-    public static float[][] readWeightFile(String fileName, int neuronCount, int inputCount)
+    public static float[] readWeightFile(String fileName, int neuronCount, int inputCount)
     {
-        return splitVector(read(fileName, neuronCount * inputCount), neuronCount);
+        return read(fileName, neuronCount * inputCount);
     }
 
     /**
@@ -104,9 +229,9 @@ public class FileUtil
     }
 
     /**
-     * Saves the parameters of a trained network
+     * Saves the parameters of a trained network (into a single model bundle file)
      */
-    public static void saveParameters(NeuralNetwork neuralNetwork, String modelPath) throws Exception
+    public static void saveParameters(NeuralNetwork neuralNetwork, Settings settings, String modelPath) throws Exception
     {
         System.out.print("Saving parameters... ");
 
@@ -115,13 +240,7 @@ public class FileUtil
 
         if (new File(folder).mkdirs())
         {
-            for (int layer = 0; layer < neuralNetwork.getNeuronLayers().size(); layer++)
-            {
-                NeuronLayer neuralLayer = neuralNetwork.getNeuronLayers().get(layer);
-
-                FileUtil.createWeightFile(folder + "/layer." + layer + ".w.dat", neuralLayer.getWeights());
-                FileUtil.createBiasFile(folder + "/layer." + layer + ".b.dat", neuralLayer.getBiases());
-            }
+            ModelBundle.of(neuralNetwork, settings.getActivationName()).write(new File(folder, ModelBundle.FILE_NAME));
         }
         else
         {
@@ -134,17 +253,14 @@ public class FileUtil
     /**
      * Creates a weight file
      */
-    private static void createWeightFile(String fileName, float[][] weights) throws Exception
+    public static void createWeightFile(String fileName, float[] weights) throws Exception
     {
         File file = new File(fileName);
         DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
 
-        for (int n = 0; n < weights.length; n++)
+        for (float weight : weights)
         {
-            for (int i = 0; i < weights[n].length; i++)
-            {
-                output.writeFloat(weights[n][i]);
-            }
+            output.writeFloat(weight);
         }
 
         output.close();
@@ -167,27 +283,111 @@ public class FileUtil
     }
 
     /**
-     * Splits a vector of weights to a matrix
+     * Saves a quantized network into a parameters folder (big-endian, like the float32 parameter files)
      */
-    private static float[][] splitVector(float[] vector, int count)
+    public static void saveQuantizedParameters(QuantizedNetwork network, String parametersPath) throws Exception
     {
-        int size = vector.length / count;
-        float[][] ret = new float[count][size];
+        File file = new File(parametersPath + "/" + QUANTIZED_FILE_NAME);
 
-        int segment = 0;
-        int col = 0;
-        for (float value : vector)
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
         {
-            ret[segment][col] = value;
+            output.writeInt(QUANTIZED_MAGIC);
+            output.writeInt(network.getLayers().size());
 
-            if (col == size - 1)
+            for (QuantizedLayer layer : network.getLayers())
             {
-                col = 0;
-                segment++;
+                output.writeInt(layer.getInputCount());
+                output.writeInt(layer.getNeuronCount());
+
+                for (float scale : layer.getScales()) output.writeFloat(scale);
+                for (float bias : layer.getBiases()) output.writeFloat(bias);
+
+                output.write(layer.getWeights());
             }
-            else col++;
         }
+    }
 
-        return ret;
+    /**
+     * Reads a quantized network from a parameters folder
+     * The layers must match the float32 network: 28 * 28 inputs, chained layer sizes and 10 outputs
+     * (the sizes are validated before the arrays are allocated)
+     */
+    public static QuantizedNetwork readQuantizedParameters(String parametersPath, NeuralNetwork neuralNetwork)
+    {
+        File file = new File(parametersPath + "/" + QUANTIZED_FILE_NAME);
+        List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+        try (FileInputStream stream = new FileInputStream(file))
+        {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != QUANTIZED_MAGIC)
+            {
+                throw new RuntimeException("Invalid quantized parameter file. (" + file.getName() + ")");
+            }
+
+            int layerCount = buffer.getInt();
+            if (layerCount != neuronLayers.size())
+            {
+                throw new RuntimeException("Quantized parameter file read error: " + layerCount + " layers instead of "
+                        + neuronLayers.size() + ". (" + file.getName() + ")");
+            }
+
+            List<QuantizedLayer> layers = new ArrayList<>(layerCount);
+            int previousCount = 28 * 28;
+
+            for (int i = 0; i < layerCount; i++)
+            {
+                NeuronLayer neuronLayer = neuronLayers.get(i);
+                int inputCount = buffer.getInt();
+                int neuronCount = buffer.getInt();
+
+                // The sizes are calculated in long, the scales, biases and weights must fit in the rest of the file
+                long size = 8L * neuronCount + (long) neuronCount * inputCount;
+
+                if (inputCount != previousCount || inputCount != neuronLayer.getInputCount()
+                        || neuronCount != neuronLayer.getNeuronCount() || (i == layerCount - 1 && neuronCount != 10)
+                        || neuronCount < 1 || size > buffer.remaining())
+                {
+                    throw new RuntimeException("Quantized parameter file read error: invalid layer " + (i + 1) + " ("
+                            + inputCount + "x" + neuronCount + "). (" + file.getName() + ")");
+                }
+
+                float[] scales = new float[neuronCount];
+                buffer.asFloatBuffer().get(scales);
+                buffer.position(buffer.position() + neuronCount * 4);
+
+                float[] biases = new float[neuronCount];
+                buffer.asFloatBuffer().get(biases);
+                buffer.position(buffer.position() + neuronCount * 4);
+
+                byte[] weights = new byte[neuronCount * inputCount];
+                buffer.get(weights);
+
+                layers.add(new QuantizedLayer(inputCount, neuronCount, weights, scales, biases, neuronLayer.getActivation()));
+                previousCount = neuronCount;
+            }
+
+            if (buffer.hasRemaining())
+            {
+                throw new RuntimeException("Quantized parameter file read error: unexpected data after the last layer. ("
+                        + file.getName() + ")");
+            }
+
+            return new QuantizedNetwork(layers);
+        }
+        catch (IOException | BufferUnderflowException e)
+        {
+            throw new RuntimeException("Quantized parameter file read error. (" + file.getName() + ")");
+        }
+    }
+
+    /**
+     * Checks whether a parameters folder contains a quantized parameter file
+     */
+    public static boolean hasQuantizedParameters(String parametersPath)
+    {
+        return new File(parametersPath + "/" + QUANTIZED_FILE_NAME).exists();
     }
 }
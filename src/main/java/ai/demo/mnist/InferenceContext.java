@@ -0,0 +1,36 @@
+package ai.demo.mnist;
+
+import java.util.List;
+
+/**
+ * Caller-owned state of an inference (the outputs of every layer)
+ * A context must not be used by multiple threads at the same time,
+ * but any number of contexts can use the same network concurrently
+ */
+public class InferenceContext
+{
+	private final float[][] outputs;
+
+	/**
+	 * Constructor
+	 * @param neuralNetwork the network which will be used with this context
+	 */
+	public InferenceContext(NeuralNetwork neuralNetwork)
+	{
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+		outputs = new float[neuronLayers.size()][];
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			outputs[i] = new float[neuronLayers.get(i).getNeuronCount()];
+		}
+	}
+
+	/**
+	 * Returns the buffer of the outputs of a layer
+	 */
+	float[] getOutputs(int layer)
+	{
+		return outputs[layer];
+	}
+}
@@ -0,0 +1,310 @@
+package ai.demo.mnist;
+
+import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file, self-describing parameter format of a trained network
+ *
+ * Layout (little-endian, so on usual hardware a section is copied to the heap as a plain memory copy):
+ * - header: magic, version, data type, layer count, input count, learning rate, activation name (24 bytes)
+ * - layer table from offset 64: neuron count, weight checksum, bias checksum, reserved, weight offset, bias offset
+ * - checksum of the header and the layer table
+ * - parameter sections (weights in row-major order, biases), every section is aligned to 64 bytes
+ *
+ * The file is memory-mapped once, and every section is bulk copied into the weight and bias arrays of the layers.
+ * (The kernels work on heap arrays, so the sections can't be used in place.)
+ */
+public class ModelBundle
+{
+	public static final String FILE_NAME = "model.bundle";
+
+	private static final int MAGIC = 0x4D4E4231;
+	private static final int VERSION = 1;
+	private static final int DTYPE_FLOAT32 = 1;
+
+	private static final int ACTIVATION_NAME_SIZE = 24;
+	private static final int LAYER_TABLE_OFFSET = 64;
+	private static final int LAYER_ENTRY_SIZE = 32;
+	private static final int ALIGNMENT = 64;
+
+	private final String activation;
+	private final float learningRate;
+	private final int inputCount;
+	private final float[][] weights;
+	private final float[][] biases;
+
+	public ModelBundle(String activation, float learningRate, int inputCount, float[][] weights, float[][] biases)
+	{
+		this.activation = activation;
+		this.learningRate = learningRate;
+		this.inputCount = inputCount;
+		this.weights = weights;
+		this.biases = biases;
+	}
+
+	/**
+	 * Creates a bundle of the parameters of a network (the arrays aren't copied)
+	 * @param activation the name of the activation function
+	 */
+	public static ModelBundle of(NeuralNetwork neuralNetwork, String activation)
+	{
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+		float[][] weights = new float[neuronLayers.size()][];
+		float[][] biases = new float[neuronLayers.size()][];
+
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			weights[i] = neuronLayers.get(i).getWeights();
+			biases[i] = neuronLayers.get(i).getBiases();
+		}
+
+		return new ModelBundle(activation, neuralNetwork.getLearningRate(), neuronLayers.get(0).getInputCount(),
+				weights, biases);
+	}
+
+	/**
+	 * Creates a network using the parameters of the bundle (the arrays are used by the layers without copy)
+	 * @param activationMode EXACT or FAST
+	 * @param kernels the compute backend of the layers
+	 */
+	public NeuralNetwork createNeuralNetwork(String activationMode, Kernels kernels)
+	{
+		List<NeuronLayer> neuronLayers = new ArrayList<>(getLayerCount());
+
+		Activation activationFunction = Activation.getInstance(activation, activationMode);
+
+		int layerInputCount = inputCount;
+		for (int i = 0; i < getLayerCount(); i++)
+		{
+			int neuronCount = getNeuronCount(i);
+			neuronLayers.add(new NeuronLayer(layerInputCount, neuronCount, weights[i], biases[i], activationFunction, kernels));
+
+			layerInputCount = neuronCount;
+		}
+
+		return new NeuralNetwork(neuronLayers, learningRate);
+	}
+
+	/**
+	 * Writes the bundle (under a temporary name, renamed at the end, so an interrupted write won't leave a broken file)
+	 */
+	public void write(File file) throws IOException
+	{
+		byte[] activationName = activation.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+		if (activationName.length > ACTIVATION_NAME_SIZE)
+		{
+			throw new RuntimeException("Too long activation name: " + activation);
+		}
+
+		int layerCount = getLayerCount();
+		long[] weightOffsets = new long[layerCount];
+		long[] biasOffsets = new long[layerCount];
+
+		// Layout of the sections
+		long offset = align(LAYER_TABLE_OFFSET + (long) layerCount * LAYER_ENTRY_SIZE + 4);
+		for (int i = 0; i < layerCount; i++)
+		{
+			weightOffsets[i] = offset;
+			offset = align(offset + 4L * weights[i].length);
+			biasOffsets[i] = offset;
+			offset = align(offset + 4L * biases[i].length);
+		}
+
+		if (offset > Integer.MAX_VALUE) throw new RuntimeException("The model is too big for a bundle.");
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(DTYPE_FLOAT32);
+		buffer.putInt(layerCount);
+		buffer.putInt(inputCount);
+		buffer.putFloat(learningRate);
+		buffer.put(activationName);
+
+		for (int i = 0; i < layerCount; i++)
+		{
+			putFloats(buffer, weightOffsets[i], weights[i]);
+			putFloats(buffer, biasOffsets[i], biases[i]);
+
+			int entry = LAYER_TABLE_OFFSET + i * LAYER_ENTRY_SIZE;
+			buffer.putInt(entry, biases[i].length);
+			buffer.putInt(entry + 4, checksum(buffer, weightOffsets[i], 4L * weights[i].length));
+			buffer.putInt(entry + 8, checksum(buffer, biasOffsets[i], 4L * biases[i].length));
+			buffer.putLong(entry + 16, weightOffsets[i]);
+			buffer.putLong(entry + 24, biasOffsets[i]);
+		}
+
+		int headerSize = LAYER_TABLE_OFFSET + layerCount * LAYER_ENTRY_SIZE;
+		buffer.putInt(headerSize, checksum(buffer, 0, headerSize));
+
+		File tempFile = new File(file.getPath() + ".tmp");
+
+		try (RandomAccessFile output = new RandomAccessFile(tempFile, "rw"))
+		{
+			output.setLength(0);
+
+			FileChannel channel = output.getChannel();
+			buffer.clear();
+			while (buffer.hasRemaining()) channel.write(buffer);
+
+			// The content must be on the disk before the rename, otherwise a crash could leave an empty file behind
+			channel.force(true);
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads a bundle (the file is mapped, validated, and the sections are bulk copied)
+	 */
+	public static ModelBundle read(File file)
+	{
+		try (FileInputStream stream = new FileInputStream(file))
+		{
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+			if (buffer.capacity() < LAYER_TABLE_OFFSET || buffer.getInt(0) != MAGIC)
+			{
+				throw new RuntimeException("Invalid model bundle. (" + file.getName() + ")");
+			}
+
+			if (buffer.getInt(4) != VERSION || buffer.getInt(8) != DTYPE_FLOAT32)
+			{
+				throw new RuntimeException("Unsupported model bundle version or data type. (" + file.getName() + ")");
+			}
+
+			int layerCount = buffer.getInt(12);
+			int inputCount = buffer.getInt(16);
+			float learningRate = buffer.getFloat(20);
+
+			byte[] activationName = new byte[ACTIVATION_NAME_SIZE];
+			buffer.position(24);
+			buffer.get(activationName);
+			String activation = new String(activationName, StandardCharsets.US_ASCII).trim();
+
+			// The sizes are calculated in long, so a crafted header can't overflow them
+			long headerSize = LAYER_TABLE_OFFSET + (long) layerCount * LAYER_ENTRY_SIZE;
+			if (layerCount < 1 || inputCount < 1 || headerSize + 4 > buffer.capacity()
+					|| buffer.getInt((int) headerSize) != checksum(buffer, 0, headerSize))
+			{
+				throw new RuntimeException("Corrupted model bundle header. (" + file.getName() + ")");
+			}
+
+			float[][] weights = new float[layerCount][];
+			float[][] biases = new float[layerCount][];
+
+			int layerInputCount = inputCount;
+			for (int i = 0; i < layerCount; i++)
+			{
+				int entry = LAYER_TABLE_OFFSET + i * LAYER_ENTRY_SIZE;
+				int neuronCount = buffer.getInt(entry);
+
+				if (neuronCount < 1) throw new RuntimeException("Corrupted model bundle header. (" + file.getName() + ")");
+
+				weights[i] = getFloats(buffer, buffer.getLong(entry + 16), (long) neuronCount * layerInputCount,
+						buffer.getInt(entry + 4), file);
+				biases[i] = getFloats(buffer, buffer.getLong(entry + 24), neuronCount,
+						buffer.getInt(entry + 8), file);
+
+				layerInputCount = neuronCount;
+			}
+
+			return new ModelBundle(activation, learningRate, inputCount, weights, biases);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Model bundle read error. (" + file.getName() + ")");
+		}
+	}
+
+	private static void putFloats(ByteBuffer buffer, long offset, float[] values)
+	{
+		buffer.position((int) offset);
+		buffer.asFloatBuffer().put(values);
+	}
+
+	/**
+	 * Copies a section into a new array after validating its bounds and checksum
+	 */
+	private static float[] getFloats(ByteBuffer buffer, long offset, long count, int checksum, File file)
+	{
+		// The bounds are checked before the allocation (the count is at most the size of the file)
+		if (offset < 0 || offset > buffer.capacity() || count > (buffer.capacity() - offset) / 4
+				|| checksum(buffer, offset, 4 * count) != checksum)
+		{
+			throw new RuntimeException("Corrupted model bundle section. (" + file.getName() + ")");
+		}
+
+		float[] values = new float[(int) count];
+
+		buffer.position((int) offset);
+		buffer.asFloatBuffer().get(values);
+
+		return values;
+	}
+
+	private static int checksum(ByteBuffer buffer, long offset, long length)
+	{
+		ByteBuffer section = buffer.duplicate();
+		section.position((int) offset);
+		section.limit((int) (offset + length));
+
+		CRC32 crc = new CRC32();
+		crc.update(section);
+
+		return (int) crc.getValue();
+	}
+
+	private static long align(long offset)
+	{
+		return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	public String getActivation()
+	{
+		return activation;
+	}
+
+	public int getInputCount()
+	{
+		return inputCount;
+	}
+
+	public int getLayerCount()
+	{
+		return weights.length;
+	}
+
+	public int getNeuronCount(int layer)
+	{
+		return biases[layer].length;
+	}
+
+	public float[] getWeights(int layer)
+	{
+		return weights[layer];
+	}
+
+	public float[] getBiases(int layer)
+	{
+		return biases[layer];
+	}
+}
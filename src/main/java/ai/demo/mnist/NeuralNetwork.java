@@ -1,6 +1,10 @@
 package ai.demo.mnist;
 
+import ai.demo.mnist.kernel.Kernels;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -10,7 +14,24 @@ import java.util.Random;
 public class NeuralNetwork
 {
 	private final List<NeuronLayer> neuronLayers;
-	private final float learningRate;
+	private float learningRate;
+
+	// Reusable training workspace, so the training doesn't allocate memory per example
+	private final float[] pixels;
+	private final int[] nonZeroIndices;
+	private final float[] target;
+	private final float[] outputErrors;
+
+	// Reusable mini-batch workspace (allocated at the first mini-batch)
+	private float[] batchInputs;
+	private float[] batchTargets;
+	private float[] batchOutputErrors;
+
+	// Cumulative time of reading the training examples in nanoseconds
+	private long loadTime;
+
+	// Inference context of the threads which use the network without providing their own context
+	private final ThreadLocal<InferenceContext> inferenceContexts = ThreadLocal.withInitial(() -> new InferenceContext(this));
 
 	/**
 	 * Constructor
@@ -19,22 +40,43 @@ public class NeuralNetwork
 	{
 		this.neuronLayers = neuronLayers;
 		this.learningRate = learningRate;
+
+		pixels = new float[neuronLayers.get(0).getInputCount()];
+		nonZeroIndices = new int[pixels.length];
+		target = new float[getOutputCount()];
+		outputErrors = new float[getOutputCount()];
 	}
 
 	/**
 	 * Creates a neural network based on the configuration
 	 * The parameters will be initialized randomly, or using the stored parameters (in files)
+	 * The layers don't have optimizers, they are created for the training by createOptimizers
 	 */
 	public static NeuralNetwork createNeuralNetwork(Settings settings, String modelPath, String parametersFolder)
 	{
 		List<NeuronLayer> neuronLayers = new ArrayList<>(settings.getLayerSizes().size());
 
+		// The compute backend is shared by all layers
+		Kernels kernels = settings.getKernels();
+
+		// Parameters saved in a single model bundle (older parameter folders contain a file pair per layer)
+		ModelBundle bundle = null;
+		if (parametersFolder != null)
+		{
+			File bundleFile = new File(modelPath + "/" + parametersFolder + "/" + ModelBundle.FILE_NAME);
+			if (bundleFile.exists())
+			{
+				bundle = ModelBundle.read(bundleFile);
+				checkBundle(bundle, settings);
+			}
+		}
+
 		int inputCount = 28 * 28;
 		for (int i = 0; i < settings.getLayerCount(); i++)
 		{
 			int neuronCount = settings.getLayerSizes().get(i);
 
-			float[][] weights;
+			float[] weights;
 			float[] biases;
 
 			if (parametersFolder == null)
@@ -44,6 +86,11 @@ public class NeuralNetwork
 				weights = generateRandomWeights(inputCount, neuronCount, rnd);
 				biases = generateRandomBiases(neuronCount, rnd);
 			}
+			else if (bundle != null)
+			{
+				weights = bundle.getWeights(i);
+				biases = bundle.getBiases(i);
+			}
 			else
 			{
 				// If this is an already trained model, read parameters from files
@@ -52,7 +99,8 @@ public class NeuralNetwork
 				biases = FileUtil.readBiasFile(prefix + "b.dat", neuronCount);
 			}
 
-			neuronLayers.add(new NeuronLayer(inputCount, neuronCount, weights, biases, settings.getActivation()));
+			NeuronLayer neuronLayer = new NeuronLayer(inputCount, neuronCount, weights, biases, settings.getActivation(), kernels);
+			neuronLayers.add(neuronLayer);
 
 			inputCount = neuronCount;
 		}
@@ -63,35 +111,142 @@ public class NeuralNetwork
 		return new NeuralNetwork(neuronLayers, settings.getLearningRate());
 	}
 
+	/**
+	 * Sets the configured optimizer at every layer (only for training, the state of an optimizer is as big as the parameters)
+	 * It must be called before the replicas of the network are created
+	 */
+	public void createOptimizers(Settings settings)
+	{
+		for (NeuronLayer neuronLayer : neuronLayers)
+		{
+			neuronLayer.setOptimizer(settings.createOptimizer(neuronLayer.getWeights().length + neuronLayer.getBiases().length));
+		}
+	}
+
+	/**
+	 * Checks whether the model bundle matches the settings
+	 */
+	private static void checkBundle(ModelBundle bundle, Settings settings)
+	{
+		boolean isMatching = bundle.getInputCount() == 28 * 28 && bundle.getLayerCount() == settings.getLayerCount()
+				&& bundle.getActivation().equalsIgnoreCase(settings.getActivationName());
+
+		for (int i = 0; isMatching && i < bundle.getLayerCount(); i++)
+		{
+			isMatching = bundle.getNeuronCount(i) == settings.getLayerSizes().get(i);
+		}
+
+		if (!isMatching)
+		{
+			throw new RuntimeException("The model bundle doesn't match the model.properties (layer sizes or activation).");
+		}
+	}
+
+	/**
+	 * Creates a replica of the network, which shares the parameters (weights and biases) with this network,
+	 * but has its own state at every layer, so it can be trained on a separate thread
+	 */
+	public NeuralNetwork replicate()
+	{
+		List<NeuronLayer> replicaLayers = new ArrayList<>(neuronLayers.size());
+
+		for (NeuronLayer neuronLayer : neuronLayers)
+		{
+			replicaLayers.add(new NeuronLayer(neuronLayer));
+		}
+
+		return new NeuralNetwork(replicaLayers, learningRate);
+	}
+
+	/**
+	 * Trains the neural network on a range of examples of a dataset
+	 * @param examples the dataset
+	 * @param first the index of the first example
+	 * @param last the index after the last example
+	 * @param batchSize the number of examples per parameter update
+	 */
+	public void train(Dataset examples, int first, int last, int batchSize)
+	{
+		if (batchSize > 1)
+		{
+			allocateBatch(batchSize);
+
+			for (int i = first; i < last; i += batchSize)
+			{
+				// The last batch can be smaller
+				int count = Math.min(batchSize, last - i);
+
+				loadBatch(examples, i, count, batchInputs, batchTargets);
+				train(batchInputs, batchTargets, count);
+			}
+		}
+		else
+		{
+			for (int i = first; i < last; i++)
+			{
+				long start = System.nanoTime();
+
+				int nonZeroCount = examples.getPixels(i, pixels, nonZeroIndices);
+
+				Arrays.fill(target, 0);
+				target[examples.getLabel(i)] = 1;
+
+				loadTime += System.nanoTime() - start;
+
+				train(pixels, nonZeroIndices, nonZeroCount, target);
+			}
+		}
+	}
+
+	/**
+	 * Reads a mini-batch from the dataset (measuring the time of the data loading)
+	 */
+	void loadBatch(Dataset examples, int first, int count, float[] inputs, float[] targets)
+	{
+		long start = System.nanoTime();
+
+		examples.getBatch(first, count, inputs, targets);
+
+		loadTime += System.nanoTime() - start;
+	}
+
 	/**
 	 * Trains the neural network on a single example using back-propagation
 	 * @param input the inputs of the example
 	 * @param target the targeted output
 	 */
 	public void train(float[] input, float[] target)
+	{
+		train(input, null, 0, target);
+	}
+
+	/**
+	 * Trains the neural network on a single example with sparse input using back-propagation
+	 * The first layer processes only the non-zero inputs (at the feed forward and at the update),
+	 * which gives the same result as the dense training
+	 * @param input the inputs of the example
+	 * @param nonZeroIndices the indices of the non-zero inputs in ascending order (null if the input is dense)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @param target the targeted output
+	 */
+	public void train(float[] input, int[] nonZeroIndices, int nonZeroCount, float[] target)
 	{
 		// Feed forward step, getting the output of the last layer
 		// Meanwhile the input and output will be stored at every layers
-		float[] output = feedForward(input);
+		float[] output = feedForward(input, nonZeroIndices, nonZeroCount);
 
 		// Calculate the errors on the output layer
-		float[] errors = new float[output.length];
 		for (int i = 0; i < output.length; i++)
 		{
-			errors[i] = output[i] - target[i];
+			outputErrors[i] = output[i] - target[i];
 		}
 
-		// Back-propagate the errors to the previous layers and update the parameters
-		float[] prevErrors = errors;
+		// Back-propagate the errors to the previous layers and update the parameters (in a single pass per layer)
+		// The errors of the input are not needed, so they aren't calculated at the first layer
+		float[] prevErrors = outputErrors;
 		for (int i = neuronLayers.size() - 1; i >= 0; i--)
 		{
-			NeuronLayer neuronLayer = neuronLayers.get(i);
-
-			// Back-propagate errors
-			prevErrors = neuronLayer.backPropagateErrors(prevErrors);
-
-			// Update parameters
-			neuronLayer.updateParameters(learningRate);
+			prevErrors = neuronLayers.get(i).backPropagateErrorsAndUpdate(prevErrors, learningRate, i > 0);
 		}
 	}
 
@@ -99,16 +254,32 @@ public class NeuralNetwork
 	 * Calculates the outputs of the neural network given the inputs
 	 * and stores the inputs and outputs at every layers
 	 * @param inputs the inputs
-	 * @return the outputs
+	 * @return the outputs (a buffer of the last layer, overwritten at the next call)
 	 */
 	public float[] feedForward(float[] inputs)
 	{
-		// Feed forward
-		float[] hiddenState = inputs;
+		return feedForward(inputs, null, 0);
+	}
 
-		for (NeuronLayer neuronLayer : neuronLayers)
+	/**
+	 * Calculates the outputs of the neural network given sparse inputs
+	 * and stores the inputs and outputs at every layers
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs in ascending order (null if the input is dense)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @return the outputs (a buffer of the last layer, overwritten at the next call)
+	 */
+	public float[] feedForward(float[] inputs, int[] nonZeroIndices, int nonZeroCount)
+	{
+		// Feed forward (the first layer can use the sparse inputs)
+		NeuronLayer firstLayer = neuronLayers.get(0);
+		float[] hiddenState = nonZeroIndices == null
+				? firstLayer.feedForward(inputs)
+				: firstLayer.feedForward(inputs, nonZeroIndices, nonZeroCount);
+
+		for (int i = 1; i < neuronLayers.size(); i++)
 		{
-			hiddenState = neuronLayer.feedForward(hiddenState);
+			hiddenState = neuronLayers.get(i).feedForward(hiddenState);
 		}
 
 		// Find the index of the highest output
@@ -116,18 +287,188 @@ public class NeuralNetwork
 	}
 
 	/**
-	 * Generates random weights (between -1 and 1)
+	 * Trains the neural network on a mini-batch of examples using back-propagation
+	 * The parameters are updated once per batch, using the average of the gradients
+	 * @param inputs the inputs of the examples (batchSize * inputCount values, one row per example)
+	 * @param targets the targeted outputs (batchSize * outputCount values, one row per example)
+	 * @param batchSize the number of examples in the batch
 	 */
-	private static float[][] generateRandomWeights(int inputCount, int neuronCount, Random rnd)
+	public void train(float[] inputs, float[] targets, int batchSize)
 	{
-		float[][] randomWeights = new float[neuronCount][inputCount];
+		// Feed forward step on the whole batch
+		float[] outputs = feedForward(inputs, batchSize);
 
-		for (int n = 0; n < neuronCount; n++)
+		// Calculate the errors on the output layer
+		float[] errors = calculateOutputErrors(outputs, targets, batchSize);
+
+		// Back-propagate the errors to the previous layers and update the parameters (in a single pass per layer)
+		// The errors of the input are not needed, so they aren't calculated at the first layer
+		float[] prevErrors = errors;
+		for (int i = neuronLayers.size() - 1; i >= 0; i--)
 		{
-			for (int x = 0; x < inputCount; x++)
+			prevErrors = neuronLayers.get(i).backPropagateErrorsAndUpdate(prevErrors, learningRate, batchSize, i > 0);
+		}
+	}
+
+	/**
+	 * Calculates the outputs of the neural network given the inputs, without changing the state of the network
+	 * The outputs of the layers are stored in the given context, so the network can be used
+	 * by multiple threads at the same time (using separate contexts)
+	 * @param inputs the inputs
+	 * @param context the inference context of the caller
+	 * @return the outputs (a buffer of the context, overwritten by the next inference)
+	 */
+	public float[] infer(float[] inputs, InferenceContext context)
+	{
+		return infer(inputs, context, context.getOutputs(neuronLayers.size() - 1));
+	}
+
+	/**
+	 * Calculates the outputs of the neural network given the inputs, using the inference context of the current thread
+	 * @param inputs the inputs
+	 * @return the outputs (a buffer of the thread's context, overwritten by the next inference on the same thread)
+	 */
+	public float[] infer(float[] inputs)
+	{
+		return infer(inputs, inferenceContexts.get());
+	}
+
+	/**
+	 * Calculates the outputs of the neural network given the inputs into the provided array,
+	 * using the inference context of the current thread
+	 * @param inputs the inputs
+	 * @param outputs the collector of the outputs
+	 */
+	public void infer(float[] inputs, float[] outputs)
+	{
+		infer(inputs, inferenceContexts.get(), outputs);
+	}
+
+	/**
+	 * Calculates the outputs of the neural network given the inputs into the provided array,
+	 * storing the outputs of the hidden layers in the given context
+	 * @param inputs the inputs
+	 * @param context the inference context of the caller
+	 * @param outputs the collector of the outputs
+	 * @return the outputs (the provided array)
+	 */
+	public float[] infer(float[] inputs, InferenceContext context, float[] outputs)
+	{
+		return infer(inputs, null, 0, context, outputs);
+	}
+
+	/**
+	 * Calculates the outputs of the neural network given sparse inputs into the provided array,
+	 * storing the outputs of the hidden layers in the given context
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs in ascending order (null if the input is dense)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @param context the inference context of the caller
+	 * @param outputs the collector of the outputs
+	 * @return the outputs (the provided array)
+	 */
+	public float[] infer(float[] inputs, int[] nonZeroIndices, int nonZeroCount, InferenceContext context, float[] outputs)
+	{
+		float[] hiddenState = inputs;
+
+		int lastLayer = neuronLayers.size() - 1;
+		for (int i = 0; i <= lastLayer; i++)
+		{
+			float[] layerOutputs = i == lastLayer ? outputs : context.getOutputs(i);
+
+			if (i == 0 && nonZeroIndices != null)
+			{
+				neuronLayers.get(i).feedForward(hiddenState, nonZeroIndices, nonZeroCount, layerOutputs);
+			}
+			else
 			{
-				randomWeights[n][x] = 2 * rnd.nextFloat() - 1;
+				neuronLayers.get(i).feedForward(hiddenState, layerOutputs);
 			}
+
+			hiddenState = layerOutputs;
+		}
+
+		return outputs;
+	}
+
+	/**
+	 * Calculates the gradients on a mini-batch of examples without updating the parameters
+	 * (The gradients are summed over the batch, and stored at every layers)
+	 * @param inputs the inputs of the examples (one row per example)
+	 * @param targets the targeted outputs (one row per example)
+	 * @param batchSize the number of examples in the batch
+	 */
+	public void calculateGradients(float[] inputs, float[] targets, int batchSize)
+	{
+		float[] outputs = feedForward(inputs, batchSize);
+
+		float[] prevErrors = calculateOutputErrors(outputs, targets, batchSize);
+		for (int i = neuronLayers.size() - 1; i >= 0; i--)
+		{
+			NeuronLayer neuronLayer = neuronLayers.get(i);
+
+			prevErrors = neuronLayer.backPropagateErrors(prevErrors, batchSize);
+			neuronLayer.calculateGradients();
+		}
+	}
+
+	/**
+	 * Calculates the outputs of the neural network for a mini-batch of examples
+	 * and stores the inputs and outputs at every layers
+	 * @param inputs the inputs (one row per example)
+	 * @param batchSize the number of examples in the batch
+	 * @return the outputs (one row per example)
+	 */
+	public float[] feedForward(float[] inputs, int batchSize)
+	{
+		float[] hiddenState = inputs;
+
+		for (NeuronLayer neuronLayer : neuronLayers)
+		{
+			hiddenState = neuronLayer.feedForward(hiddenState, batchSize);
+		}
+
+		return hiddenState;
+	}
+
+	/**
+	 * Calculates the errors on the output layer of a mini-batch (into the reusable workspace)
+	 */
+	private float[] calculateOutputErrors(float[] outputs, float[] targets, int batchSize)
+	{
+		allocateBatch(batchSize);
+
+		for (int i = 0; i < batchSize * getOutputCount(); i++)
+		{
+			batchOutputErrors[i] = outputs[i] - targets[i];
+		}
+
+		return batchOutputErrors;
+	}
+
+	/**
+	 * Allocates the mini-batch workspace if it doesn't exist or too small for the given batch size
+	 */
+	private void allocateBatch(int batchSize)
+	{
+		if (batchOutputErrors == null || batchOutputErrors.length < batchSize * getOutputCount())
+		{
+			batchInputs = new float[batchSize * pixels.length];
+			batchTargets = new float[batchSize * getOutputCount()];
+			batchOutputErrors = new float[batchSize * getOutputCount()];
+		}
+	}
+
+	/**
+	 * Generates random weights (between -1 and 1) in row-major order
+	 */
+	private static float[] generateRandomWeights(int inputCount, int neuronCount, Random rnd)
+	{
+		float[] randomWeights = new float[neuronCount * inputCount];
+
+		for (int i = 0; i < randomWeights.length; i++)
+		{
+			randomWeights[i] = 2 * rnd.nextFloat() - 1;
 		}
 
 		return randomWeights;
@@ -152,4 +493,30 @@ public class NeuralNetwork
 	{
 		return neuronLayers;
 	}
+
+	/**
+	 * Returns the cumulative time of reading (decoding) the training examples in nanoseconds
+	 */
+	public long getLoadTime()
+	{
+		return loadTime;
+	}
+
+	public float getLearningRate()
+	{
+		return learningRate;
+	}
+
+	/**
+	 * Changes the learning rate (see TrainingScheduler), must not be called parallel with the training
+	 */
+	public void setLearningRate(float learningRate)
+	{
+		this.learningRate = learningRate;
+	}
+
+	public int getOutputCount()
+	{
+		return neuronLayers.get(neuronLayers.size() - 1).getNeuronCount();
+	}
 }
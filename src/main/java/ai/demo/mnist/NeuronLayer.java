@@ -1,100 +1,232 @@
 package ai.demo.mnist;
 
 import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+import ai.demo.mnist.optimizer.Optimizer;
+
+import java.util.Arrays;
 
 /**
  * Represents a single layer in a feed forward neural network
  */
 public class NeuronLayer
 {
+	// Number of examples (or gradient rows) processed together in the mini-batch kernels (sharing the loaded values)
+	private static final int EXAMPLE_TILE = 4;
+
+	// Number of neurons processed together in the mini-batch kernels (their weights stay in the cache)
+	private static final int NEURON_TILE = 16;
+
+	// The input of the bias (a bias is updated as a weight with 1 as input)
+	private static final float[] BIAS_INPUT = {1};
+
 	private final int inputCount;
 	private final int neuronCount;
 
-	private final float[][] weights;
+	// Weights in row-major order: the weights of a neuron are stored contiguously (neuron * inputCount + input)
+	private final float[] weights;
 	private final float[] biases;
 
 	private final Activation activation;
+	private final Kernels kernels;
+
+	// The update rule with state (null: plain SGD, using the fused and sparse kernels), shared with the replicas
+	private Optimizer optimizer;
 
+	// Per-example state, the buffers are allocated once, and reused at every example
 	private float[] inputs;
-	private float[] outputs;
-	
-	private float[] errors;
+	private int[] nonZeroIndices;
+	private int nonZeroCount;
+	private final float[] outputs;
+	private final float[] errors;
+	private final float[] prevOutputErrors;
+
+	// Mini-batch state, matrices in row-major order (one row per example)
+	private int batchSize;
+	private float[] batchInputs;
+	private float[] batchOutputs;
+	private float[] batchErrors;
+	private float[] batchPrevOutputErrors;
+
+	// Accumulated gradients of a mini-batch
+	private float[] weightGradients;
+	private float[] biasGradients;
+
+	// Results of the dot products of an example tile
+	private final float[] tileSums = new float[EXAMPLE_TILE];
+
+	// Cumulative time of the training steps in nanoseconds (the stateless inference isn't measured)
+	// The fused back-propagation and update is counted as backward time
+	private long forwardTime;
+	private long backwardTime;
+	private long updateTime;
+
+	/**
+	 * Constructor (using the scalar kernels)
+	 */
+	public NeuronLayer(int inputCount, int neuronCount, float[] weights, float[] biases, Activation activation)
+	{
+		this(inputCount, neuronCount, weights, biases, activation, Kernels.getInstance("SCALAR"));
+	}
 
 	/**
 	 * Constructor
 	 */
-	public NeuronLayer(int inputCount, int neuronCount, float[][] weights, float[] biases, Activation activation)
+	public NeuronLayer(int inputCount, int neuronCount, float[] weights, float[] biases, Activation activation, Kernels kernels)
 	{
 		this.inputCount = inputCount;
 		this.neuronCount = neuronCount;
 		this.weights = weights;
 		this.biases = biases;
 		this.activation = activation;
+		this.kernels = kernels;
+
+		outputs = new float[neuronCount];
+		errors = new float[neuronCount];
+		prevOutputErrors = new float[inputCount];
+	}
+
+	/**
+	 * Creates a replica of a layer, which shares the parameters (weights and biases) with the original layer,
+	 * but has its own state (inputs, outputs, errors and gradients), so it can be used on a separate thread
+	 */
+	public NeuronLayer(NeuronLayer layer)
+	{
+		this(layer.inputCount, layer.neuronCount, layer.weights, layer.biases, layer.activation, layer.kernels);
+		this.optimizer = layer.optimizer;
 	}
 
 	/**
  	 * Calculates the output of a neural layer
-	 * Applies weights and biases and executes the activation function on all neurons
+	 * The inputs and outputs are saved, so the errors can be back-propagated
 	 * @param inputs the inputs
-	 * @return the outputs
+	 * @return the outputs (a buffer of the layer, overwritten at the next call)
 	 */
 	public float[] feedForward(float[] inputs)
 	{
+		long start = System.nanoTime();
+
+		// Save the inputs
+		this.inputs = inputs;
+		this.nonZeroIndices = null;
+
+		// The outputs are saved in the buffer of the layer
+		feedForward(inputs, outputs);
+
+		forwardTime += System.nanoTime() - start;
+
+		return outputs;
+	}
+
+	/**
+	 * Calculates the output of a neural layer using sparse inputs (only the non-zero inputs are processed)
+	 * The inputs and outputs are saved, so the errors can be back-propagated (and the update also skips the zero inputs)
+	 * If the inputs aren't sparse enough, the dense kernels are used
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs (in ascending order)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @return the outputs (a buffer of the layer, overwritten at the next call)
+	 */
+	public float[] feedForward(float[] inputs, int[] nonZeroIndices, int nonZeroCount)
+	{
+		if (!isSparse(nonZeroCount)) return feedForward(inputs);
+
+		long start = System.nanoTime();
+
 		// Save the inputs
 		this.inputs = inputs;
+		this.nonZeroIndices = nonZeroIndices;
+		this.nonZeroCount = nonZeroCount;
+
+		// The outputs are saved in the buffer of the layer
+		feedForward(inputs, nonZeroIndices, nonZeroCount, outputs);
 
-		// Collector of the outputs
-		float[] outputs = new float[neuronCount];
+		forwardTime += System.nanoTime() - start;
+
+		return outputs;
+	}
 
+	/**
+	 * Calculates the output of a neural layer using sparse inputs, without saving any state (only reads the parameters)
+	 * The result is the same as using the dense scalar kernels, because the skipped products are zero
+	 * (The vector backend always uses its dense kernels, see Kernels.isSparseFaster)
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs (in ascending order)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @param outputs the collector of the outputs
+	 */
+	public void feedForward(float[] inputs, int[] nonZeroIndices, int nonZeroCount, float[] outputs)
+	{
+		if (!isSparse(nonZeroCount))
+		{
+			feedForward(inputs, outputs);
+			return;
+		}
+
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			float sum = kernels.sparseDot(weights, neuron * inputCount, inputs, nonZeroIndices, nonZeroCount);
+			outputs[neuron] = sum + biases[neuron];
+		}
+
+		activation.forward(outputs, outputs, neuronCount);
+	}
+
+	/**
+	 * Decides whether the sparse kernels are faster than the dense ones (depends on the compute backend)
+	 */
+	private boolean isSparse(int nonZeroCount)
+	{
+		return kernels.isSparseFaster(nonZeroCount, inputCount);
+	}
+
+	/**
+	 * Calculates the output of a neural layer without saving any state (only reads the parameters),
+	 * so it can be called from multiple threads at the same time
+	 * Applies weights and biases and executes the activation function on all neurons
+	 * @param inputs the inputs
+	 * @param outputs the collector of the outputs
+	 */
+	public void feedForward(float[] inputs, float[] outputs)
+	{
 		// Iterating over on all neurons
 		for (int neuron = 0; neuron < neuronCount; neuron++)
 		{
-			// Iterating over on all inputs
-			for (int input = 0; input < inputCount; input++)
-			{
-				// Apply weight
-				outputs[neuron] += weights[neuron][input] * inputs[input];
-			}
+			// Apply weights (dot product of the weights of the neuron and the inputs)
+			float sum = kernels.dot(weights, neuron * inputCount, inputs, 0, inputCount);
 
 			// Apply bias
-			outputs[neuron] += biases[neuron];
-
-			// Apply activation function
-			outputs[neuron] = activation.forward(outputs[neuron]);
+			outputs[neuron] = sum + biases[neuron];
 		}
 
-		// Save the outputs
-		this.outputs = outputs;
-
-		return outputs;
+		// Apply activation function (on the whole array at once)
+		activation.forward(outputs, outputs, neuronCount);
 	}
 
 	/**
 	 * Back-propagates the errors from the output to the output of the previous layer
 	 * @param outputErrors the errors at the output
-	 * @return the errors at the output of the previous layer
+	 * @return the errors at the output of the previous layer (a buffer of the layer, overwritten at the next call)
 	 */
 	public float[] backPropagateErrors(float[] outputErrors)
 	{
+		long start = System.nanoTime();
+
 		// Back-propagate the errors from the output to the point before the activation function
 		// We have to store these errors, because it will be used when the weights will be updated
-		errors = new float[neuronCount];
-		for (int neuron = 0; neuron < neuronCount; neuron++)
-		{
-			errors[neuron] = activation.gradient(outputs[neuron]) * outputErrors[neuron];
-		}
+		calculateErrors(outputErrors);
 
 		// Back-propagate the errors to the output of the previous layer
 		// This will be the return value, so the same back-propagate process can be repeated at the previous layer
-		float[] prevOutputErrors = new float[inputCount];
-		for (int input = 0; input < inputCount; input++)
+		// (Iterating over the neurons in the outer loop, so the weights are read in storage order)
+		Arrays.fill(prevOutputErrors, 0);
+		for (int neuron = 0; neuron < neuronCount; neuron++)
 		{
-			for (int neuron = 0; neuron < neuronCount; neuron++)
-			{
-				prevOutputErrors[input] += weights[neuron][input] * errors[neuron];
-			}
+			kernels.axpy(errors[neuron], weights, neuron * inputCount, prevOutputErrors, 0, inputCount);
 		}
 
+		backwardTime += System.nanoTime() - start;
+
 		return prevOutputErrors;
 	}
 
@@ -104,20 +236,517 @@ public class NeuronLayer
 	 */
 	public void updateParameters(double learningRate)
 	{
+		long start = System.nanoTime();
+
+		if (optimizer != null) optimizer.nextStep();
+
 		for (int neuron = 0; neuron < neuronCount; neuron++)
 		{
-			// Update the weights
-			for (int input = 0; input < inputCount; input++)
+			if (optimizer != null)
 			{
-				weights[neuron][input] -= learningRate * inputs[input] * errors[neuron];
+				optimize(neuron, learningRate, errors[neuron], inputs, 0, BIAS_INPUT, 0);
+				continue;
 			}
 
+			// Update the weights
+			updateWeights(neuron, learningRate * errors[neuron]);
+
 			// Update the biases - treated as it would be a weight, with 1 as input
 			biases[neuron] -= learningRate * errors[neuron];
 		}
+
+		updateTime += System.nanoTime() - start;
 	}
 
-	public float[][] getWeights()
+	/**
+	 * Back-propagates the errors to the output of the previous layer and updates the parameters in a single pass
+	 * over the weights. The previous errors are calculated using the weights before the update,
+	 * so the result is the same as calling backPropagateErrors and updateParameters
+	 * @param outputErrors the errors at the output
+	 * @param learningRate the learning rate
+	 * @param isPropagated whether the errors of the previous layer are needed (not needed at the first layer)
+	 * @return the errors at the output of the previous layer (a buffer of the layer), or null if not propagated
+	 */
+	public float[] backPropagateErrorsAndUpdate(float[] outputErrors, double learningRate, boolean isPropagated)
+	{
+		long start = System.nanoTime();
+
+		calculateErrors(outputErrors);
+
+		if (isPropagated)
+		{
+			Arrays.fill(prevOutputErrors, 0);
+		}
+
+		if (optimizer != null) optimizer.nextStep();
+
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			int row = neuron * inputCount;
+			double rate = learningRate * errors[neuron];
+
+			if (optimizer != null)
+			{
+				// The optimizer updates every weight (the state changes even if the gradient is zero)
+				if (isPropagated) kernels.axpy(errors[neuron], weights, row, prevOutputErrors, 0, inputCount);
+				optimize(neuron, learningRate, errors[neuron], inputs, 0, BIAS_INPUT, 0);
+			}
+			else if (isPropagated)
+			{
+				kernels.backPropagateAndUpdate(errors[neuron], weights, row, prevOutputErrors, 0, rate, inputs, 0, inputCount);
+			}
+			else
+			{
+				updateWeights(neuron, rate);
+			}
+
+			if (optimizer == null) biases[neuron] -= learningRate * errors[neuron];
+		}
+
+		backwardTime += System.nanoTime() - start;
+
+		return isPropagated ? prevOutputErrors : null;
+	}
+
+	/**
+	 * Updates the weights of a neuron using the saved inputs (skipping the zero inputs if they are sparse)
+	 */
+	private void updateWeights(int neuron, double rate)
+	{
+		if (nonZeroIndices != null)
+		{
+			kernels.sparseUpdate(rate, inputs, nonZeroIndices, nonZeroCount, weights, neuron * inputCount);
+		}
+		else
+		{
+			kernels.update(rate, inputs, 0, weights, neuron * inputCount, inputCount);
+		}
+	}
+
+	/**
+	 * Updates the parameters of a neuron using the optimizer
+	 * The gradients of the weights are scale * x, the gradient of the bias is scale * biasX[biasIndex]
+	 */
+	private void optimize(int neuron, double learningRate, float scale, float[] x, int xOffset, float[] biasX, int biasIndex)
+	{
+		int row = neuron * inputCount;
+
+		optimizer.update(learningRate, scale, x, xOffset, weights, row, row, inputCount);
+		optimizer.update(learningRate, scale, biasX, biasIndex, biases, neuron, weights.length + neuron, 1);
+	}
+
+	/**
+	 * Calculates the errors before the activation function
+	 */
+	private void calculateErrors(float[] outputErrors)
+	{
+		activation.gradient(outputs, errors, neuronCount);
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			errors[neuron] *= outputErrors[neuron];
+		}
+	}
+
+	/**
+	 * Calculates the outputs of a neural layer for a mini-batch of examples
+	 * @param inputs the inputs (batchSize * inputCount values, one row per example)
+	 * @param batchSize the number of examples in the batch
+	 * @return the outputs (batchSize * neuronCount values, one row per example)
+	 */
+	public float[] feedForward(float[] inputs, int batchSize)
+	{
+		long start = System.nanoTime();
+
+		// Save the inputs
+		this.batchInputs = inputs;
+		this.batchSize = batchSize;
+
+		if (batchOutputs == null || batchOutputs.length < batchSize * neuronCount)
+		{
+			allocateBatch(batchSize);
+		}
+
+		// Apply weights (outputs = inputs * transposed weights)
+		multiplyTransposed(inputs, batchOutputs, batchSize);
+
+		// Apply bias
+		for (int example = 0; example < batchSize; example++)
+		{
+			kernels.axpy(1, biases, 0, batchOutputs, example * neuronCount, neuronCount);
+		}
+
+		// Apply activation function (on the whole batch at once)
+		activation.forward(batchOutputs, batchOutputs, batchSize * neuronCount);
+
+		forwardTime += System.nanoTime() - start;
+
+		return batchOutputs;
+	}
+
+	/**
+	 * Back-propagates the errors of a mini-batch from the output to the output of the previous layer
+	 * @param outputErrors the errors at the output (batchSize * neuronCount values)
+	 * @return the errors at the output of the previous layer (batchSize * inputCount values)
+	 */
+	public float[] backPropagateErrors(float[] outputErrors, int batchSize)
+	{
+		long start = System.nanoTime();
+
+		// Back-propagate the errors from the output to the point before the activation function
+		calculateBatchErrors(outputErrors, batchSize);
+
+		// Back-propagate the errors to the output of the previous layer (prevOutputErrors = errors * weights)
+		multiply(batchErrors, batchPrevOutputErrors, batchSize);
+
+		backwardTime += System.nanoTime() - start;
+
+		return batchPrevOutputErrors;
+	}
+
+	/**
+	 * Back-propagates the errors of a mini-batch and updates the parameters, processing the weights tile by tile:
+	 * a tile of weight rows is used for the previous errors and updated while it is in the cache.
+	 * The result is the same as calling backPropagateErrors and updateParameters
+	 * @param outputErrors the errors at the output (batchSize * neuronCount values)
+	 * @param learningRate the learning rate
+	 * @param batchSize the number of examples in the batch
+	 * @param isPropagated whether the errors of the previous layer are needed (not needed at the first layer)
+	 * @return the errors at the output of the previous layer (batchSize * inputCount values), or null if not propagated
+	 */
+	public float[] backPropagateErrorsAndUpdate(float[] outputErrors, double learningRate, int batchSize, boolean isPropagated)
+	{
+		long start = System.nanoTime();
+
+		calculateBatchErrors(outputErrors, batchSize);
+
+		if (isPropagated)
+		{
+			Arrays.fill(batchPrevOutputErrors, 0, batchSize * inputCount, 0);
+		}
+
+		double rate = learningRate / batchSize;
+
+		if (optimizer != null) optimizer.nextStep();
+
+		for (int firstNeuron = 0; firstNeuron < neuronCount; firstNeuron += NEURON_TILE)
+		{
+			int lastNeuron = Math.min(firstNeuron + NEURON_TILE, neuronCount);
+
+			// Previous errors using the weights of the tile before the update
+			if (isPropagated)
+			{
+				multiply(batchErrors, batchPrevOutputErrors, batchSize, firstNeuron, lastNeuron);
+			}
+
+			// Update the weights of the tile
+			calculateGradients(firstNeuron, lastNeuron);
+
+			for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+			{
+				if (optimizer != null)
+				{
+					optimize(neuron, learningRate, 1f / batchSize, weightGradients, neuron * inputCount, biasGradients, neuron);
+					continue;
+				}
+
+				kernels.update(rate, weightGradients, neuron * inputCount, weights, neuron * inputCount, inputCount);
+				biases[neuron] -= rate * biasGradients[neuron];
+			}
+		}
+
+		backwardTime += System.nanoTime() - start;
+
+		return isPropagated ? batchPrevOutputErrors : null;
+	}
+
+	/**
+	 * Calculates the errors of a mini-batch before the activation function
+	 */
+	private void calculateBatchErrors(float[] outputErrors, int batchSize)
+	{
+		activation.gradient(batchOutputs, batchErrors, batchSize * neuronCount);
+		for (int i = 0; i < batchSize * neuronCount; i++)
+		{
+			batchErrors[i] *= outputErrors[i];
+		}
+	}
+
+	/**
+	 * Updates the parameters once for the whole mini-batch, using the average of the gradients
+	 * @param learningRate the learning rate
+	 */
+	public void updateParameters(double learningRate, int batchSize)
+	{
+		calculateGradients();
+
+		long start = System.nanoTime();
+
+		double rate = learningRate / batchSize;
+
+		if (optimizer != null)
+		{
+			optimizer.nextStep();
+			optimizer.update(learningRate, 1f / batchSize, weightGradients, 0, weights, 0, 0, weights.length);
+			optimizer.update(learningRate, 1f / batchSize, biasGradients, 0, biases, 0, weights.length, neuronCount);
+		}
+		else
+		{
+			kernels.update(rate, weightGradients, 0, weights, 0, weights.length);
+
+			for (int neuron = 0; neuron < neuronCount; neuron++)
+			{
+				biases[neuron] -= rate * biasGradients[neuron];
+			}
+		}
+
+		updateTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Updates the parameters of a range of neurons using the sum of the gradients calculated by the replicas
+	 * The gradients are added in the order of the replicas, so the result doesn't depend on thread scheduling
+	 * (It is called by multiple threads at the same time, so the time is measured by the caller, see addUpdateTime,
+	 * and the optimizer step is started by the caller, see startUpdateStep)
+	 * @param replicas the replicas of this layer
+	 * @param replicaCount the number of replicas (from the first) which calculated gradients
+	 * @param learningRate the learning rate
+	 * @param batchSize the number of examples
+	 * @param firstNeuron the first neuron to update
+	 * @param lastNeuron the neuron after the last one to update
+	 */
+	void updateParameters(NeuronLayer[] replicas, int replicaCount, double learningRate, int batchSize,
+						  int firstNeuron, int lastNeuron)
+	{
+		double rate = learningRate / batchSize;
+
+		for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+		{
+			int row = neuron * inputCount;
+
+			// Use the gradient row of the first replica to collect the sum
+			float[] sum = replicas[0].weightGradients;
+			float[] biasSum = replicas[0].biasGradients;
+
+			for (int replica = 1; replica < replicaCount; replica++)
+			{
+				kernels.axpy(1, replicas[replica].weightGradients, row, sum, row, inputCount);
+				biasSum[neuron] += replicas[replica].biasGradients[neuron];
+			}
+
+			if (optimizer != null)
+			{
+				optimize(neuron, learningRate, 1f / batchSize, sum, row, biasSum, neuron);
+				continue;
+			}
+
+			kernels.update(rate, sum, row, weights, row, inputCount);
+
+			biases[neuron] -= rate * biasSum[neuron];
+		}
+	}
+
+	/**
+	 * Starts the next step of the optimizer (before the parallel update of the neuron ranges)
+	 */
+	void startUpdateStep()
+	{
+		if (optimizer != null) optimizer.nextStep();
+	}
+
+	/**
+	 * Returns the gradients of the weights (the sum over the last mini-batch, allocated at the first call)
+	 * They can also be filled from outside, for example by the parameter server (see updateParameters)
+	 */
+	float[] getWeightGradients()
+	{
+		if (weightGradients == null)
+		{
+			weightGradients = new float[weights.length];
+			biasGradients = new float[neuronCount];
+		}
+
+		return weightGradients;
+	}
+
+	/**
+	 * Returns the gradients of the biases (the sum over the last mini-batch, allocated at the first call)
+	 */
+	float[] getBiasGradients()
+	{
+		getWeightGradients();
+
+		return biasGradients;
+	}
+
+	/**
+	 * Calculates the sum of the gradients over the mini-batch (weightGradients = transposed errors * inputs)
+	 */
+	void calculateGradients()
+	{
+		long start = System.nanoTime();
+
+		calculateGradients(0, neuronCount);
+
+		backwardTime += System.nanoTime() - start;
+	}
+
+	/**
+	 * Calculates the sum of the gradients over the mini-batch for a range of neurons
+	 * The gradient rows of four neurons stay in the cache while the inputs of all examples are added,
+	 * and every loaded input is added to all four rows
+	 */
+	private void calculateGradients(int firstNeuron, int lastNeuron)
+	{
+		Arrays.fill(weightGradients, firstNeuron * inputCount, lastNeuron * inputCount, 0);
+
+		int neuron = firstNeuron;
+		for (; neuron + EXAMPLE_TILE <= lastNeuron; neuron += EXAMPLE_TILE)
+		{
+			int row = neuron * inputCount;
+
+			for (int example = 0; example < batchSize; example++)
+			{
+				int e = example * neuronCount + neuron;
+
+				kernels.axpy4(batchErrors[e], batchErrors[e + 1], batchErrors[e + 2], batchErrors[e + 3],
+						batchInputs, example * inputCount,
+						weightGradients, row, row + inputCount, row + 2 * inputCount, row + 3 * inputCount, inputCount);
+			}
+		}
+
+		for (; neuron < lastNeuron; neuron++)
+		{
+			for (int example = 0; example < batchSize; example++)
+			{
+				kernels.axpy(batchErrors[example * neuronCount + neuron], batchInputs, example * inputCount,
+						weightGradients, neuron * inputCount, inputCount);
+			}
+		}
+
+		for (neuron = firstNeuron; neuron < lastNeuron; neuron++)
+		{
+			float biasGradient = 0;
+
+			for (int example = 0; example < batchSize; example++)
+			{
+				biasGradient += batchErrors[example * neuronCount + neuron];
+			}
+
+			biasGradients[neuron] = biasGradient;
+		}
+	}
+
+	/**
+	 * Blocked matrix multiplication with the transposed weights (outputs = inputs * transposed weights)
+	 * Both the input rows and the weight rows are read with unit stride, a tile of weight rows is reused
+	 * for all examples, and every loaded weight is used for multiple examples
+	 */
+	private void multiplyTransposed(float[] inputs, float[] outputs, int batchSize)
+	{
+		for (int firstNeuron = 0; firstNeuron < neuronCount; firstNeuron += NEURON_TILE)
+		{
+			int lastNeuron = Math.min(firstNeuron + NEURON_TILE, neuronCount);
+
+			int example = 0;
+			for (; example + EXAMPLE_TILE <= batchSize; example += EXAMPLE_TILE)
+			{
+				int x0 = example * inputCount;
+
+				for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+				{
+					kernels.dot4(weights, neuron * inputCount, inputs,
+							x0, x0 + inputCount, x0 + 2 * inputCount, x0 + 3 * inputCount, inputCount, tileSums);
+
+					for (int i = 0; i < EXAMPLE_TILE; i++)
+					{
+						outputs[(example + i) * neuronCount + neuron] = tileSums[i];
+					}
+				}
+			}
+
+			for (; example < batchSize; example++)
+			{
+				for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+				{
+					outputs[example * neuronCount + neuron] =
+							kernels.dot(weights, neuron * inputCount, inputs, example * inputCount, inputCount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Blocked matrix multiplication with the weights (prevOutputErrors = errors * weights)
+	 * A tile of weight rows is reused for all examples, while it stays in the cache
+	 */
+	private void multiply(float[] errors, float[] prevOutputErrors, int batchSize)
+	{
+		Arrays.fill(prevOutputErrors, 0, batchSize * inputCount, 0);
+
+		for (int firstNeuron = 0; firstNeuron < neuronCount; firstNeuron += NEURON_TILE)
+		{
+			multiply(errors, prevOutputErrors, batchSize, firstNeuron, Math.min(firstNeuron + NEURON_TILE, neuronCount));
+		}
+	}
+
+	/**
+	 * Adds the contribution of a tile of weight rows to the previous errors of all examples
+	 * Every loaded weight is added to the rows of four examples
+	 */
+	private void multiply(float[] errors, float[] prevOutputErrors, int batchSize, int firstNeuron, int lastNeuron)
+	{
+		int example = 0;
+		for (; example + EXAMPLE_TILE <= batchSize; example += EXAMPLE_TILE)
+		{
+			int p0 = example * inputCount;
+
+			for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+			{
+				int e = example * neuronCount + neuron;
+
+				kernels.axpy4(errors[e], errors[e + neuronCount], errors[e + 2 * neuronCount], errors[e + 3 * neuronCount],
+						weights, neuron * inputCount,
+						prevOutputErrors, p0, p0 + inputCount, p0 + 2 * inputCount, p0 + 3 * inputCount, inputCount);
+			}
+		}
+
+		for (; example < batchSize; example++)
+		{
+			for (int neuron = firstNeuron; neuron < lastNeuron; neuron++)
+			{
+				kernels.axpy(errors[example * neuronCount + neuron], weights, neuron * inputCount,
+						prevOutputErrors, example * inputCount, inputCount);
+			}
+		}
+	}
+
+	/**
+	 * Allocates the mini-batch state for the given number of examples
+	 */
+	private void allocateBatch(int batchSize)
+	{
+		batchOutputs = new float[batchSize * neuronCount];
+		batchErrors = new float[batchSize * neuronCount];
+		batchPrevOutputErrors = new float[batchSize * inputCount];
+
+		if (weightGradients == null)
+		{
+			weightGradients = new float[weights.length];
+			biasGradients = new float[neuronCount];
+		}
+	}
+
+	public int getInputCount()
+	{
+		return inputCount;
+	}
+
+	public int getNeuronCount()
+	{
+		return neuronCount;
+	}
+
+	public float[] getWeights()
 	{
 		return weights;
 	}
@@ -126,4 +755,51 @@ public class NeuronLayer
 	{
 		return biases;
 	}
+
+	public Activation getActivation()
+	{
+		return activation;
+	}
+
+	public Optimizer getOptimizer()
+	{
+		return optimizer;
+	}
+
+	/**
+	 * Sets the update rule (null: plain SGD), must be set before the replicas are created
+	 */
+	public void setOptimizer(Optimizer optimizer)
+	{
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * Returns the cumulative time of the feed forward steps of the training in nanoseconds
+	 */
+	public long getForwardTime()
+	{
+		return forwardTime;
+	}
+
+	/**
+	 * Returns the cumulative time of the back-propagation (and the gradient calculation) in nanoseconds
+	 */
+	public long getBackwardTime()
+	{
+		return backwardTime;
+	}
+
+	/**
+	 * Returns the cumulative time of the separate parameter updates in nanoseconds
+	 */
+	public long getUpdateTime()
+	{
+		return updateTime;
+	}
+
+	void addUpdateTime(long time)
+	{
+		updateTime += time;
+	}
 }
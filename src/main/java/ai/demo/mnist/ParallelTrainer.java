@@ -0,0 +1,257 @@
+package ai.demo.mnist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Data-parallel training on multiple threads
+ * Every worker thread has its own replica of the network, which shares the parameters with the original network.
+ * Two strategies are supported:
+ * - SYNC: every mini-batch is split between the workers, the gradients are calculated in parallel,
+ *         and the parameters are updated once per batch using the sum of the gradients (in a fixed order)
+ * - HOGWILD: the epoch is split between the workers, which train and update the shared parameters
+ *            independently, without any locks (some updates can be lost, which doesn't hurt the training)
+ */
+public class ParallelTrainer
+{
+	public enum Strategy {SYNC, HOGWILD}
+
+	private final NeuralNetwork neuralNetwork;
+	private final int threads;
+	private final Strategy strategy;
+	private final int batchSize;
+
+	private final ForkJoinPool pool;
+
+	// The replicas of the network (one per worker thread)
+	private final NeuralNetwork[] replicas;
+
+	// The replicas of every layer (indexed by layer, then by worker)
+	private final NeuronLayer[][] layerReplicas;
+
+	// Mini-batch buffers of the workers (only for the synchronous strategy)
+	private final float[][] inputs;
+	private final float[][] targets;
+
+	// Tasks of the synchronous strategy, created once and reused at every mini-batch
+	private final List<Callable<Void>> gradientTasks = new ArrayList<>();
+	private final List<Callable<Void>> updateTasks = new ArrayList<>();
+
+	// The current mini-batch of the synchronous strategy (set before the tasks are executed)
+	private Dataset batchExamples;
+	private int batchFirst;
+	private int batchCount;
+	private int workerCount;
+
+	/**
+	 * Constructor
+	 * @param neuralNetwork the trained network
+	 * @param threads the number of worker threads
+	 * @param strategy the parallel strategy
+	 * @param batchSize the number of examples per parameter update
+	 */
+	public ParallelTrainer(NeuralNetwork neuralNetwork, int threads, Strategy strategy, int batchSize)
+	{
+		this.neuralNetwork = neuralNetwork;
+		this.threads = threads;
+		this.strategy = strategy;
+		this.batchSize = batchSize;
+
+		pool = new ForkJoinPool(threads);
+
+		replicas = new NeuralNetwork[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			replicas[i] = neuralNetwork.replicate();
+		}
+
+		int layerCount = neuralNetwork.getNeuronLayers().size();
+		layerReplicas = new NeuronLayer[layerCount][threads];
+		for (int layer = 0; layer < layerCount; layer++)
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				layerReplicas[layer][i] = replicas[i].getNeuronLayers().get(layer);
+			}
+		}
+
+		// The biggest share of a worker in a mini-batch
+		int shardSize = (batchSize + threads - 1) / threads;
+
+		inputs = new float[threads][shardSize * 28 * 28];
+		targets = new float[threads][shardSize * 10];
+
+		for (int i = 0; i < threads; i++)
+		{
+			int worker = i;
+			gradientTasks.add(() -> calculateGradients(worker));
+		}
+
+		for (int layer = 0; layer < layerCount; layer++)
+		{
+			for (int i = 0; i < threads; i++)
+			{
+				int layerIndex = layer;
+				int worker = i;
+				updateTasks.add(() -> updateParameters(layerIndex, worker));
+			}
+		}
+	}
+
+	/**
+	 * Trains the network on all examples of the dataset
+	 */
+	public void trainEpoch(Dataset examples)
+	{
+		train(examples, 0, examples.size());
+	}
+
+	/**
+	 * Trains the network on a range of the examples (the last example is exclusive)
+	 */
+	public void train(Dataset examples, int first, int last)
+	{
+		if (strategy == Strategy.SYNC) trainSynchronous(examples, first, last);
+		else trainHogwild(examples, first, last);
+	}
+
+	/**
+	 * Splits the range between the workers, which update the shared parameters independently
+	 */
+	private void trainHogwild(Dataset examples, int first, int last)
+	{
+		List<Callable<Void>> tasks = new ArrayList<>(threads);
+
+		for (int i = 0; i < threads; i++)
+		{
+			// The learning rate can change between the calls (see TrainingScheduler)
+			NeuralNetwork replica = replicas[i];
+			replica.setLearningRate(neuralNetwork.getLearningRate());
+
+			int shardFirst = first + shardStart(last - first, i);
+			int shardLast = first + shardStart(last - first, i + 1);
+
+			tasks.add(() -> {
+				replica.train(examples, shardFirst, shardLast, batchSize);
+				return null;
+			});
+		}
+
+		execute(tasks);
+	}
+
+	/**
+	 * Splits every mini-batch between the workers, and updates the parameters once per batch
+	 */
+	private void trainSynchronous(Dataset examples, int first, int last)
+	{
+		batchExamples = examples;
+
+		for (int start = first; start < last; start += batchSize)
+		{
+			// The last batch can be smaller
+			batchFirst = start;
+			batchCount = Math.min(batchSize, last - start);
+
+			// Calculate the gradients in parallel (using only as many workers as examples)
+			workerCount = Math.min(threads, batchCount);
+			execute(gradientTasks.subList(0, workerCount));
+
+			// Sum the gradients and update the parameters, split by neurons between the workers
+			for (NeuronLayer neuronLayer : neuralNetwork.getNeuronLayers()) neuronLayer.startUpdateStep();
+			execute(updateTasks);
+		}
+
+		batchExamples = null;
+	}
+
+	/**
+	 * Calculates the gradients on a worker's share of the current mini-batch
+	 */
+	private Void calculateGradients(int worker)
+	{
+		int shardFirst = shardStart(batchCount, worker, workerCount);
+		int shardCount = shardStart(batchCount, worker + 1, workerCount) - shardFirst;
+
+		replicas[worker].loadBatch(batchExamples, batchFirst + shardFirst, shardCount, inputs[worker], targets[worker]);
+		replicas[worker].calculateGradients(inputs[worker], targets[worker], shardCount);
+
+		return null;
+	}
+
+	/**
+	 * Updates the parameters of a worker's share of neurons in a layer, using the gradients of all workers
+	 */
+	private Void updateParameters(int layer, int worker)
+	{
+		NeuronLayer neuronLayer = neuralNetwork.getNeuronLayers().get(layer);
+
+		int firstNeuron = shardStart(neuronLayer.getNeuronCount(), worker);
+		int lastNeuron = shardStart(neuronLayer.getNeuronCount(), worker + 1);
+		long start = System.nanoTime();
+
+		neuronLayer.updateParameters(layerReplicas[layer], workerCount, neuralNetwork.getLearningRate(), batchCount,
+				firstNeuron, lastNeuron);
+
+		// Measured by the worker's replica, because the update of the shared layer runs on multiple threads
+		layerReplicas[layer][worker].addUpdateTime(System.nanoTime() - start);
+
+		return null;
+	}
+
+	/**
+	 * Calculates the start of a worker's share, if a range is split evenly between the workers
+	 */
+	private int shardStart(int size, int worker)
+	{
+		return shardStart(size, worker, threads);
+	}
+
+	/**
+	 * Calculates the start of a worker's share, if a range is split evenly between the given number of workers
+	 */
+	private static int shardStart(int size, int worker, int workerCount)
+	{
+		return (int) ((long) size * worker / workerCount);
+	}
+
+	/**
+	 * Executes the tasks on the pool, and waits for all of them
+	 */
+	private void execute(List<Callable<Void>> tasks)
+	{
+		try
+		{
+			for (Future<Void> future : pool.invokeAll(tasks))
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Training interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException("Training error: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the replicas of the network (one per worker thread)
+	 */
+	NeuralNetwork[] getReplicas()
+	{
+		return replicas;
+	}
+
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+}
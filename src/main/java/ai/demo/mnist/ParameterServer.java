@@ -0,0 +1,474 @@
+package ai.demo.mnist;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parameter server of the distributed training: the worker processes (see DistributedWorker) calculate the gradients
+ * on their shards of the training examples, the server updates the parameters and sends them back to the workers.
+ * The gradients and the parameters are exchanged over TCP, layer by layer (in the order of getNeuronLayers()).
+ * Two modes are supported:
+ * - SYNC: every step waits for the gradients of all workers, and the parameters are updated once using their sum
+ *         (the same as a mini-batch of workers * batch size examples)
+ * - ASYNC: the gradients of a worker are applied as soon as they arrive (every layer is locked separately,
+ *          so the updates of different workers can overlap on different layers). A worker can be ahead of the slowest
+ *          worker by at most the staleness bound (stale synchronous parallel), otherwise it waits for the parameters.
+ *
+ * Every worker trains an equal share of the training examples per epoch (the remainder of the division is skipped).
+ * After every epoch the server tests the network and reports the throughput, and the stop conditions of the
+ * scheduler decide whether the training continues (without any stop condition a single epoch is trained).
+ */
+public class ParameterServer
+{
+	public enum Mode {SYNC, ASYNC}
+
+	// Identifier of the protocol, sent by both sides at the start of the connection
+	static final int MAGIC = 0x4D505331;
+
+	// The answer of the server to the gradients of a step (followed by the parameters if the training continues)
+	static final int CONTINUE = 0;
+	static final int STOP = 1;
+
+	private final NeuralNetwork neuralNetwork;
+	private final Settings settings;
+	private final int workerCount;
+	private final Mode mode;
+	private final int staleness;
+	private final TrainingScheduler scheduler;
+
+	private ServerSocket serverSocket;
+	private final List<Socket> sockets = new ArrayList<>();
+
+	// The gradients received from the workers (a replica of every layer per worker, indexed by layer, then by worker)
+	private final NeuronLayer[][] layerSlots;
+
+	// The slot of every worker alone, as the replicas of an asynchronous update (indexed by worker, then by layer)
+	private final NeuronLayer[][][] workerSlots;
+
+	// Number of examples of the current step per worker (SYNC)
+	private final int[] stepExampleCounts;
+
+	// Number of finished steps per worker (ASYNC, guarded by itself)
+	private final int[] clocks;
+
+	private CyclicBarrier stepBarrier;
+	private CyclicBarrier epochBarrier;
+
+	// The training examples are read by the workers, the server only needs their number
+	private int trainSize;
+	private int shardSize;
+	private int stepsPerEpoch;
+	private Dataset testExamples;
+
+	private final AtomicLong exampleCount = new AtomicLong();
+	private volatile boolean isFinished;
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	// Measurements of the current epoch, and the throughputs of the finished epochs
+	private long epoch;
+	private long epochStartTime;
+	private long epochStartCount;
+	private final LongAdder updateTime = new LongAdder();
+	private final List<Double> throughputs = new ArrayList<>();
+
+	/**
+	 * Constructor
+	 * @param neuralNetwork the trained network (the parameters are updated by the server)
+	 * @param settings the settings of the training (batch size, scheduler, mode and staleness of the distributed training)
+	 * @param workerCount the number of worker processes
+	 */
+	public ParameterServer(NeuralNetwork neuralNetwork, Settings settings, int workerCount)
+	{
+		this.neuralNetwork = neuralNetwork;
+		this.settings = settings;
+		this.workerCount = workerCount;
+		this.mode = settings.getDistributedMode();
+		this.staleness = settings.getDistributedStaleness();
+		this.scheduler = settings.getScheduler();
+
+		int layerCount = neuralNetwork.getNeuronLayers().size();
+		layerSlots = new NeuronLayer[layerCount][workerCount];
+		workerSlots = new NeuronLayer[workerCount][layerCount][];
+		for (int worker = 0; worker < workerCount; worker++)
+		{
+			NeuralNetwork replica = neuralNetwork.replicate();
+			for (int layer = 0; layer < layerCount; layer++)
+			{
+				layerSlots[layer][worker] = replica.getNeuronLayers().get(layer);
+				workerSlots[worker][layer] = new NeuronLayer[] {layerSlots[layer][worker]};
+			}
+		}
+
+		stepExampleCounts = new int[workerCount];
+		clocks = new int[workerCount];
+	}
+
+	/**
+	 * Starts listening on a port (0: any free port)
+	 * The server has no authentication, so it should listen only on the loopback address or in a trusted network
+	 * @param host the address to listen on (for example localhost, or 0.0.0.0 for all interfaces)
+	 * @param port the port
+	 * @return the port
+	 */
+	public int bind(String host, int port) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Waits for the workers, and trains the network until the scheduler stops the training
+	 * @param trainSize the number of training examples (read by the workers)
+	 * @param testExamples the test examples (used by the server after every epoch)
+	 */
+	public void train(int trainSize, Dataset testExamples) throws Exception
+	{
+		// Every step exchanges the gradients and the parameters of all layers, so single examples would be dominated by the network
+		if (settings.getBatchSize() < 2) throw new Exception("The distributed training needs mini-batches (batch.size > 1).");
+
+		this.trainSize = trainSize;
+		this.testExamples = testExamples;
+
+		shardSize = trainSize / workerCount;
+		stepsPerEpoch = (shardSize + settings.getBatchSize() - 1) / settings.getBatchSize();
+		if (shardSize == 0) throw new Exception("There are more workers than training examples.");
+
+		stepBarrier = new CyclicBarrier(workerCount, this::updateSynchronous);
+		epochBarrier = new CyclicBarrier(workerCount, this::endEpoch);
+
+		if (scheduler.isInteractive()) System.out.println("There is no stop condition, a single epoch is trained.");
+		System.out.println(String.format("Parameter server: waiting for %d workers on port %d (%s%s, %d steps per epoch)",
+				workerCount, serverSocket.getLocalPort(), mode, mode == Mode.ASYNC ? ", staleness: " + staleness : "",
+				stepsPerEpoch));
+
+		// The training starts when all workers are connected
+		List<Thread> handlers = new ArrayList<>(workerCount);
+		try
+		{
+			for (int worker = 0; worker < workerCount; worker++)
+			{
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				synchronized (sockets)
+				{
+					sockets.add(socket);
+				}
+
+				System.out.println("Worker " + (worker + 1) + " connected: " + socket.getRemoteSocketAddress());
+
+				int workerIndex = worker;
+				handlers.add(new Thread(() -> handleWorker(workerIndex, socket), "parameter-server-" + worker));
+			}
+		}
+		finally
+		{
+			serverSocket.close();
+		}
+
+		epochStartTime = System.nanoTime();
+		for (Thread handler : handlers) handler.start();
+		for (Thread handler : handlers) handler.join();
+
+		if (failure.get() != null)
+		{
+			throw new Exception("Distributed training failed: " + failure.get(), failure.get());
+		}
+	}
+
+	/**
+	 * Exchanges the gradients and the parameters with a worker until the end of the training
+	 */
+	private void handleWorker(int worker, Socket socket)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			ByteBuffer buffer = createBuffer(neuralNetwork);
+
+			if (in.readInt() != MAGIC) throw new IOException("Unknown protocol of worker " + (worker + 1));
+
+			// The worker gets everything to build the network, and its shard of the training examples
+			out.writeInt(MAGIC);
+			out.writeInt(worker);
+			out.writeInt(workerCount);
+			out.writeInt(settings.getBatchSize());
+			out.writeInt(worker * shardSize);
+			out.writeInt(shardSize);
+			out.writeUTF(settings.getActivationName());
+			out.writeUTF(settings.getActivationMode());
+			out.writeUTF(settings.getComputeBackend());
+			out.writeInt(neuralNetwork.getNeuronLayers().size());
+			for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+			{
+				out.writeInt(layer.getInputCount());
+				out.writeInt(layer.getNeuronCount());
+			}
+			writeParameters(out, neuralNetwork, buffer);
+			out.flush();
+
+			for (int step = 1; ; step++)
+			{
+				int count = in.readInt();
+				for (NeuronLayer[] slots : layerSlots)
+				{
+					readFloats(in, slots[worker].getWeightGradients(), buffer);
+					readFloats(in, slots[worker].getBiasGradients(), buffer);
+				}
+
+				if (mode == Mode.SYNC)
+				{
+					stepExampleCounts[worker] = count;
+					await(stepBarrier);
+				}
+				else
+				{
+					updateAsynchronous(worker, count);
+					waitForSlowest(worker, step);
+				}
+
+				boolean isEpochEnd = step % stepsPerEpoch == 0;
+				if (isEpochEnd) await(epochBarrier);
+
+				if (isEpochEnd && isFinished)
+				{
+					out.writeInt(STOP);
+					out.flush();
+					break;
+				}
+
+				// In ASYNC mode the parameters can be updated by other workers during the writing (like in HOGWILD training)
+				out.writeInt(CONTINUE);
+				writeParameters(out, neuralNetwork, buffer);
+				out.flush();
+			}
+
+			socket.close();
+		}
+		catch (Throwable e)
+		{
+			fail(e);
+		}
+	}
+
+	/**
+	 * Updates the parameters using the sum of the gradients of all workers (SYNC, called by the last arriving worker)
+	 */
+	private void updateSynchronous()
+	{
+		long start = System.nanoTime();
+
+		int count = 0;
+		for (int workerExamples : stepExampleCounts) count += workerExamples;
+
+		// The learning rate in the middle of the step
+		double learningRate = scheduler.getLearningRate((exampleCount.get() + count / 2.0) / trainSize);
+
+		for (int layer = 0; layer < layerSlots.length; layer++)
+		{
+			NeuronLayer neuronLayer = neuralNetwork.getNeuronLayers().get(layer);
+
+			neuronLayer.startUpdateStep();
+			neuronLayer.updateParameters(layerSlots[layer], workerCount, learningRate, count, 0, neuronLayer.getNeuronCount());
+		}
+
+		exampleCount.addAndGet(count);
+		updateTime.add(System.nanoTime() - start);
+	}
+
+	/**
+	 * Updates the parameters using the gradients of a single worker (ASYNC)
+	 * The layers are locked one by one, so the workers can update different layers at the same time
+	 */
+	private void updateAsynchronous(int worker, int count)
+	{
+		long start = System.nanoTime();
+
+		double learningRate = scheduler.getLearningRate((exampleCount.get() + count / 2.0) / trainSize);
+
+		for (int layer = 0; layer < layerSlots.length; layer++)
+		{
+			NeuronLayer neuronLayer = neuralNetwork.getNeuronLayers().get(layer);
+
+			synchronized (neuronLayer)
+			{
+				neuronLayer.startUpdateStep();
+				neuronLayer.updateParameters(workerSlots[worker][layer], 1, learningRate, count, 0, neuronLayer.getNeuronCount());
+			}
+		}
+
+		exampleCount.addAndGet(count);
+		updateTime.add(System.nanoTime() - start);
+	}
+
+	/**
+	 * Waits until the slowest worker is at most the staleness bound behind the given worker (ASYNC)
+	 */
+	private void waitForSlowest(int worker, int step) throws InterruptedException, IOException
+	{
+		synchronized (clocks)
+		{
+			clocks[worker] = step;
+			clocks.notifyAll();
+
+			while (failure.get() == null && minimum(clocks) < step - staleness)
+			{
+				clocks.wait();
+			}
+		}
+
+		if (failure.get() != null) throw new IOException("Training aborted");
+	}
+
+	private static int minimum(int[] values)
+	{
+		int minimum = values[0];
+		for (int value : values) minimum = Math.min(minimum, value);
+
+		return minimum;
+	}
+
+	/**
+	 * Tests the network and reports the throughput at the end of an epoch (called by the last arriving worker)
+	 */
+	private void endEpoch()
+	{
+		long time = System.nanoTime() - epochStartTime;
+		long count = exampleCount.get() - epochStartCount;
+		double throughput = count / (time / 1e9);
+		throughputs.add(throughput);
+		epoch++;
+
+		ConfusionMatrix matrix = Evaluator.evaluate(neuralNetwork, testExamples);
+
+		System.out.println(String.format("\nEpoch %d: %d examples in %.2f s, %.0f examples/s (%d workers, %.0f per worker),"
+						+ " update: %.1f%% of the time", epoch, count, time / 1e9, throughput, workerCount,
+				throughput / workerCount, 100.0 * updateTime.sum() / time));
+		System.out.println(String.format("Test accuracy: %.2f%%", 100 * matrix.getAccuracy()));
+
+		isFinished = scheduler.isInteractive() || scheduler.isFinished(neuralNetwork, matrix.getAccuracy(), epoch);
+
+		// The test isn't counted in the time of the next epoch
+		updateTime.reset();
+		epochStartCount = exampleCount.get();
+		epochStartTime = System.nanoTime();
+	}
+
+	private static void await(CyclicBarrier barrier) throws InterruptedException, IOException
+	{
+		try
+		{
+			barrier.await();
+		}
+		catch (BrokenBarrierException e)
+		{
+			throw new IOException("Training aborted");
+		}
+	}
+
+	/**
+	 * Stops the training after an error: the connections are closed, and the waiting workers are released
+	 */
+	private void fail(Throwable e)
+	{
+		if (!failure.compareAndSet(null, e)) return;
+
+		synchronized (sockets)
+		{
+			for (Socket socket : sockets)
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException ignored)
+				{
+				}
+			}
+		}
+
+		stepBarrier.reset();
+		epochBarrier.reset();
+
+		synchronized (clocks)
+		{
+			clocks.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the throughputs of the finished epochs (examples per second, without the tests)
+	 */
+	public List<Double> getThroughputs()
+	{
+		return throughputs;
+	}
+
+	/**
+	 * Creates a buffer for the conversion of the biggest array of a network (weights of a layer)
+	 */
+	static ByteBuffer createBuffer(NeuralNetwork neuralNetwork)
+	{
+		int size = 0;
+		for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+		{
+			size = Math.max(size, layer.getWeights().length);
+		}
+
+		return ByteBuffer.allocate(4 * size);
+	}
+
+	/**
+	 * Writes the parameters of all layers (the weights and the biases of every layer)
+	 */
+	static void writeParameters(DataOutputStream out, NeuralNetwork neuralNetwork, ByteBuffer buffer) throws IOException
+	{
+		for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+		{
+			writeFloats(out, layer.getWeights(), buffer);
+			writeFloats(out, layer.getBiases(), buffer);
+		}
+	}
+
+	/**
+	 * Reads the parameters of all layers into the network
+	 */
+	static void readParameters(DataInputStream in, NeuralNetwork neuralNetwork, ByteBuffer buffer) throws IOException
+	{
+		for (NeuronLayer layer : neuralNetwork.getNeuronLayers())
+		{
+			readFloats(in, layer.getWeights(), buffer);
+			readFloats(in, layer.getBiases(), buffer);
+		}
+	}
+
+	/**
+	 * Writes an array of floats (converted at once using the buffer, big-endian like the DataOutputStream)
+	 */
+	static void writeFloats(DataOutputStream out, float[] values, ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		buffer.asFloatBuffer().put(values);
+
+		out.write(buffer.array(), 0, 4 * values.length);
+	}
+
+	static void readFloats(DataInputStream in, float[] values, ByteBuffer buffer) throws IOException
+	{
+		in.readFully(buffer.array(), 0, 4 * values.length);
+
+		buffer.clear();
+		buffer.asFloatBuffer().get(values);
+	}
+}
@@ -0,0 +1,182 @@
+package ai.demo.mnist;
+
+import ai.demo.mnist.activation.Activation;
+
+/**
+ * Inference-only neuron layer with int8 weights (post-training quantization)
+ * Every weight row (the weights of a neuron) has its own scale: weight = quantizedWeight * scale,
+ * where the scale maps the highest absolute weight of the row to 127.
+ * The inputs are quantized at every call in the same way (using the highest absolute input),
+ * so the dot products are calculated on integers with int32 accumulation, and only the sums are dequantized.
+ */
+public class QuantizedLayer
+{
+	// The maximum absolute value of a quantized number (symmetric range: -127..127)
+	private static final int MAX_QUANTIZED = 127;
+
+	private final int inputCount;
+	private final int neuronCount;
+
+	// Flat row-major storage: the weights of a neuron are stored at [neuron * inputCount, (neuron + 1) * inputCount)
+	private final byte[] weights;
+	private final float[] scales;
+	private final float[] biases;
+
+	private final Activation activation;
+
+	public QuantizedLayer(int inputCount, int neuronCount, byte[] weights, float[] scales, float[] biases, Activation activation)
+	{
+		this.inputCount = inputCount;
+		this.neuronCount = neuronCount;
+		this.weights = weights;
+		this.scales = scales;
+		this.biases = biases;
+		this.activation = activation;
+	}
+
+	/**
+	 * Quantizes the weights of a trained layer (the biases remain float, they are added after the dequantization)
+	 */
+	public static QuantizedLayer quantize(NeuronLayer neuronLayer)
+	{
+		int inputCount = neuronLayer.getInputCount();
+		int neuronCount = neuronLayer.getNeuronCount();
+		float[] floatWeights = neuronLayer.getWeights();
+
+		byte[] weights = new byte[floatWeights.length];
+		float[] scales = new float[neuronCount];
+
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			scales[neuron] = quantize(floatWeights, neuron * inputCount, weights, inputCount);
+		}
+
+		return new QuantizedLayer(inputCount, neuronCount, weights, scales, neuronLayer.getBiases().clone(),
+				neuronLayer.getActivation());
+	}
+
+	/**
+	 * Quantizes n values to the range of -127..127 using a common scale
+	 * @return the scale (value = quantized value * scale), zero if all values are zero
+	 */
+	private static float quantize(float[] values, int offset, byte[] quantized, int n)
+	{
+		float maxAbs = 0;
+		for (int i = 0; i < n; i++)
+		{
+			maxAbs = Math.max(maxAbs, Math.abs(values[offset + i]));
+		}
+
+		if (maxAbs == 0)
+		{
+			for (int i = 0; i < n; i++) quantized[offset + i] = 0;
+			return 0;
+		}
+
+		float scale = maxAbs / MAX_QUANTIZED;
+		float inverseScale = MAX_QUANTIZED / maxAbs;
+
+		for (int i = 0; i < n; i++)
+		{
+			quantized[offset + i] = (byte) Math.round(values[offset + i] * inverseScale);
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Calculates the outputs of the layer without saving any state (thread-safe)
+	 * @param inputs the inputs
+	 * @param quantizedInputs buffer of the quantized inputs (at least inputCount long)
+	 * @param outputs the collector of the outputs
+	 */
+	public void feedForward(float[] inputs, byte[] quantizedInputs, float[] outputs)
+	{
+		float inputScale = quantize(inputs, 0, quantizedInputs, inputCount);
+
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			int offset = neuron * inputCount;
+
+			// Integer dot product (127 * 127 * inputCount can't overflow an int below 133.000 inputs)
+			int sum = 0;
+			for (int i = 0; i < inputCount; i++)
+			{
+				sum += weights[offset + i] * quantizedInputs[i];
+			}
+
+			outputs[neuron] = sum * scales[neuron] * inputScale + biases[neuron];
+		}
+
+		activation.forward(outputs, outputs, neuronCount);
+	}
+
+	/**
+	 * Calculates the outputs of the layer using sparse inputs (only the non-zero inputs are processed)
+	 * A zero input is quantized to zero, so the result is the same as using the dense inputs
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @param quantizedInputs buffer of the quantized inputs (at least inputCount long)
+	 * @param outputs the collector of the outputs
+	 */
+	public void feedForward(float[] inputs, int[] nonZeroIndices, int nonZeroCount, byte[] quantizedInputs, float[] outputs)
+	{
+		float maxAbs = 0;
+		for (int i = 0; i < nonZeroCount; i++)
+		{
+			maxAbs = Math.max(maxAbs, Math.abs(inputs[nonZeroIndices[i]]));
+		}
+
+		float inputScale = maxAbs / MAX_QUANTIZED;
+		float inverseScale = maxAbs == 0 ? 0 : MAX_QUANTIZED / maxAbs;
+
+		// Only the non-zero inputs are quantized, the rest of the buffer isn't read
+		for (int i = 0; i < nonZeroCount; i++)
+		{
+			int index = nonZeroIndices[i];
+			quantizedInputs[index] = (byte) Math.round(inputs[index] * inverseScale);
+		}
+
+		for (int neuron = 0; neuron < neuronCount; neuron++)
+		{
+			int offset = neuron * inputCount;
+
+			int sum = 0;
+			for (int i = 0; i < nonZeroCount; i++)
+			{
+				int index = nonZeroIndices[i];
+				sum += weights[offset + index] * quantizedInputs[index];
+			}
+
+			outputs[neuron] = sum * scales[neuron] * inputScale + biases[neuron];
+		}
+
+		activation.forward(outputs, outputs, neuronCount);
+	}
+
+	public int getInputCount()
+	{
+		return inputCount;
+	}
+
+	public int getNeuronCount()
+	{
+		return neuronCount;
+	}
+
+	public byte[] getWeights()
+	{
+		return weights;
+	}
+
+	public float[] getScales()
+	{
+		return scales;
+	}
+
+	public float[] getBiases()
+	{
+		return biases;
+	}
+}
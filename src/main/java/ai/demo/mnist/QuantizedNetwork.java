@@ -0,0 +1,129 @@
+package ai.demo.mnist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inference-only neural network with int8 weights (see QuantizedLayer)
+ * The weights take a quarter of the float32 memory (plus a float scale per neuron)
+ */
+public class QuantizedNetwork
+{
+	private final List<QuantizedLayer> layers;
+
+	public QuantizedNetwork(List<QuantizedLayer> layers)
+	{
+		this.layers = layers;
+	}
+
+	/**
+	 * Quantizes a trained network (the original network isn't modified)
+	 */
+	public static QuantizedNetwork quantize(NeuralNetwork neuralNetwork)
+	{
+		List<QuantizedLayer> layers = new ArrayList<>(neuralNetwork.getNeuronLayers().size());
+
+		for (NeuronLayer neuronLayer : neuralNetwork.getNeuronLayers())
+		{
+			layers.add(QuantizedLayer.quantize(neuronLayer));
+		}
+
+		return new QuantizedNetwork(layers);
+	}
+
+	/**
+	 * Reads a quantized network from a parameters folder (its layers must match the float32 network)
+	 */
+	public static QuantizedNetwork read(String parametersPath, NeuralNetwork neuralNetwork)
+	{
+		return FileUtil.readQuantizedParameters(parametersPath, neuralNetwork);
+	}
+
+	/**
+	 * Creates the buffers of an inference (a workspace must not be used by multiple threads at the same time)
+	 */
+	public Workspace createWorkspace()
+	{
+		return new Workspace(layers);
+	}
+
+	/**
+	 * Calculates the outputs of the network
+	 * @param inputs the inputs
+	 * @param nonZeroIndices the indices of the non-zero inputs (null if the input is dense)
+	 * @param nonZeroCount the number of the non-zero inputs
+	 * @param workspace the workspace of the caller
+	 * @param outputs the collector of the outputs
+	 * @return the outputs (the provided array)
+	 */
+	public float[] infer(float[] inputs, int[] nonZeroIndices, int nonZeroCount, Workspace workspace, float[] outputs)
+	{
+		float[] hiddenState = inputs;
+
+		int lastLayer = layers.size() - 1;
+		for (int i = 0; i <= lastLayer; i++)
+		{
+			float[] layerOutputs = i == lastLayer ? outputs : workspace.outputs[i];
+
+			if (i == 0 && nonZeroIndices != null)
+			{
+				layers.get(i).feedForward(hiddenState, nonZeroIndices, nonZeroCount, workspace.quantizedInputs, layerOutputs);
+			}
+			else
+			{
+				layers.get(i).feedForward(hiddenState, workspace.quantizedInputs, layerOutputs);
+			}
+
+			hiddenState = layerOutputs;
+		}
+
+		return outputs;
+	}
+
+	/**
+	 * Returns the size of the weights and scales in bytes
+	 */
+	public long getParameterBytes()
+	{
+		long bytes = 0;
+		for (QuantizedLayer layer : layers)
+		{
+			bytes += layer.getWeights().length + 4L * (layer.getScales().length + layer.getBiases().length);
+		}
+
+		return bytes;
+	}
+
+	public List<QuantizedLayer> getLayers()
+	{
+		return layers;
+	}
+
+	public int getOutputCount()
+	{
+		return layers.get(layers.size() - 1).getNeuronCount();
+	}
+
+	/**
+	 * Caller-owned buffers of an inference: the quantized inputs and the outputs of the hidden layers
+	 */
+	public static class Workspace
+	{
+		private final byte[] quantizedInputs;
+		private final float[][] outputs;
+
+		private Workspace(List<QuantizedLayer> layers)
+		{
+			int maxInputCount = 0;
+			outputs = new float[layers.size()][];
+
+			for (int i = 0; i < layers.size(); i++)
+			{
+				maxInputCount = Math.max(maxInputCount, layers.get(i).getInputCount());
+				outputs[i] = new float[layers.get(i).getNeuronCount()];
+			}
+
+			quantizedInputs = new byte[maxInputCount];
+		}
+	}
+}
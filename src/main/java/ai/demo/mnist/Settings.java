@@ -1,6 +1,8 @@
 package ai.demo.mnist;
 
 import ai.demo.mnist.activation.Activation;
+import ai.demo.mnist.kernel.Kernels;
+import ai.demo.mnist.optimizer.Optimizer;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,15 +13,54 @@ import java.util.*;
  */
 public class Settings
 {
+    // Special values of the checkpoint interval
+    public static final int NO_CHECKPOINTS = -2;
+    public static final int EPOCH_CHECKPOINTS = -1;
+
     private final List<Integer> layerSizes;
     private final String activation;
+    private final String activationMode;
+    private final String computeBackend;
     private final float learningRate;
+    private final String optimizer;
+    private final float momentum;
+    private final float beta1;
+    private final float beta2;
+    private final float epsilon;
+    private final int batchSize;
+    private final int trainingThreads;
+    private final ParallelTrainer.Strategy parallelStrategy;
+    private final int checkpointInterval;
+    private final int checkpointKeep;
+    private final boolean isShuffle;
+    private final int pipelineThreads;
+    private final int pipelinePrefetch;
+    private final Augmenter augmenter;
+    private final List<String> metricsSinks;
+    private final int serverPort;
+    private final int serverBatchSize;
+    private final long serverBatchWait;
+    private final int scoringThreads;
+    private final String distributedHost;
+    private final int distributedPort;
+    private final int distributedWorkers;
+    private final ParameterServer.Mode distributedMode;
+    private final int distributedStaleness;
+    private final TrainingScheduler scheduler;
 
     public Settings(String modelPath) throws Exception
     {
         // Read all properties from the model.properties file
-        Map<String, String> properties = readProperties(modelPath + "/model.properties");
+        this(readProperties(modelPath + "/model.properties"));
+
+        print();
+    }
 
+    /**
+     * Creates the settings from properties (for example a modified copy of a model.properties file), without printing them
+     */
+    public Settings(Map<String, String> properties) throws Exception
+    {
         int hiddenLayers = toInt(properties.get("hidden.layers"));
         layerSizes = new ArrayList<>(hiddenLayers + 1);
         for (int i = 0; i < hiddenLayers; i++)
@@ -30,12 +71,179 @@ public class Settings
 
         activation = properties.get("activation");
 
+        // Optional: EXACT or FAST (lookup table approximation) activation function
+        activationMode = properties.getOrDefault("activation.mode", "EXACT");
+
+        // Optional: the implementation of the layer kernels (SCALAR or VECTOR)
+        computeBackend = properties.getOrDefault("compute.backend", "SCALAR");
+
         learningRate = toFloat(properties.get("learning.rate"));
 
+        // Optional: update rule (SGD, MOMENTUM, NESTEROV or ADAM) and its parameters
+        optimizer = properties.getOrDefault("optimizer", "SGD").toUpperCase();
+        momentum = toFloat(properties.getOrDefault("optimizer.momentum", "0.9"));
+        beta1 = toFloat(properties.getOrDefault("optimizer.beta1", "0.9"));
+        beta2 = toFloat(properties.getOrDefault("optimizer.beta2", "0.999"));
+        epsilon = toFloat(properties.getOrDefault("optimizer.epsilon", "1e-8"));
+        if (!Arrays.asList("SGD", "MOMENTUM", "NESTEROV", "ADAM").contains(optimizer))
+        {
+            throw new Exception("Unknown optimizer: " + optimizer + ". Valid values: SGD, MOMENTUM, NESTEROV or ADAM.");
+        }
+        if (momentum < 0 || momentum >= 1 || beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1 || epsilon <= 0)
+        {
+            throw new Exception("The optimizer.momentum, optimizer.beta1 and optimizer.beta2 must be in [0, 1),"
+                    + " the optimizer.epsilon must be positive.");
+        }
+
+        // Optional: number of examples per parameter update (1 means plain per-example training)
+        batchSize = toInt(properties.getOrDefault("batch.size", "1"));
+        if (batchSize < 1) throw new Exception("The batch.size must be at least 1 (" + batchSize + ").");
+
+        // Optional: number of training threads (0 means all available processors) and the parallel strategy
+        int threads = toInt(properties.getOrDefault("training.threads", "1"));
+        trainingThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        parallelStrategy = toStrategy(properties.getOrDefault("training.parallel", "SYNC"));
+
+        if (trainingThreads > 1 && parallelStrategy == ParallelTrainer.Strategy.SYNC && batchSize < trainingThreads)
+        {
+            throw new Exception("Synchronous parallel training needs batch.size >= training.threads ("
+                    + batchSize + " < " + trainingThreads + ").");
+        }
+
+        // The threads of the HOGWILD training share the optimizer of a layer, its state (moments, step count) isn't thread-safe
+        if (trainingThreads > 1 && parallelStrategy == ParallelTrainer.Strategy.HOGWILD && !optimizer.equals("SGD"))
+        {
+            throw new Exception("HOGWILD parallel training supports only the SGD optimizer (" + optimizer
+                    + "), use training.parallel = SYNC with the stateful optimizers.");
+        }
+
+        // Optional: checkpoint after every N trained examples, or EPOCH (at the end of every epoch), and the number of kept checkpoints
+        String interval = properties.get("checkpoint.interval");
+        if (interval == null) checkpointInterval = NO_CHECKPOINTS;
+        else if (interval.equalsIgnoreCase("EPOCH")) checkpointInterval = EPOCH_CHECKPOINTS;
+        else checkpointInterval = toInt(interval);
+        if (checkpointInterval == 0 || interval != null && interval.startsWith("-"))
+        {
+            throw new Exception("The checkpoint.interval must be a positive number or EPOCH (" + interval + ").");
+        }
+
+        checkpointKeep = toInt(properties.getOrDefault("checkpoint.keep", "3"));
+        if (checkpointKeep < 1) throw new Exception("The checkpoint.keep must be at least 1 (" + checkpointKeep + ").");
+
+        // Optional: shuffle the training examples at every epoch, using a pipeline of producer threads and prefetched blocks
+        isShuffle = toBoolean(properties.getOrDefault("training.shuffle", "false"));
+        pipelineThreads = toInt(properties.getOrDefault("pipeline.threads", "1"));
+        pipelinePrefetch = toInt(properties.getOrDefault("pipeline.prefetch", "4"));
+        if (pipelineThreads < 1 || pipelinePrefetch < 1)
+        {
+            throw new Exception("The pipeline.threads and pipeline.prefetch must be at least 1.");
+        }
+
+        // Optional: on-the-fly augmentation of the training images (executed by the pipeline threads)
+        if (toBoolean(properties.getOrDefault("augmentation", "false")))
+        {
+            augmenter = new Augmenter(
+                    toFloat(properties.getOrDefault("augmentation.shift", "1.5")),
+                    toFloat(properties.getOrDefault("augmentation.rotation", "10")),
+                    toFloat(properties.getOrDefault("augmentation.elastic.alpha", "0")),
+                    toFloat(properties.getOrDefault("augmentation.elastic.sigma", "4")),
+                    toFloat(properties.getOrDefault("augmentation.noise", "0")));
+        }
+        else augmenter = null;
+
+        // Optional: learning rate schedule (after an optional linear warmup)
+        TrainingScheduler.Schedule schedule = toSchedule(properties.getOrDefault("learning.rate.schedule", "CONSTANT"));
+        float warmupEpochs = toFloat(properties.getOrDefault("learning.rate.warmup", "0"));
+        float stepEpochs = toFloat(properties.getOrDefault("learning.rate.step.epochs", "1"));
+        float stepFactor = toFloat(properties.getOrDefault("learning.rate.step.factor", "0.5"));
+        float minLearningRate = toFloat(properties.getOrDefault("learning.rate.min", "0"));
+        if (warmupEpochs < 0 || stepEpochs <= 0 || stepFactor <= 0 || minLearningRate < 0)
+        {
+            throw new Exception("Invalid learning rate schedule (warmup: " + warmupEpochs + ", step: " + stepEpochs
+                    + " epochs, factor: " + stepFactor + ", minimum: " + minLearningRate + ").");
+        }
+
+        // Optional: stop conditions (maximum epochs, time limit in minutes, early stopping), without them the user is asked after every epoch
+        int maxEpochs = toInt(properties.getOrDefault("training.epochs", "0"));
+        float timeLimit = toFloat(properties.getOrDefault("training.time.limit", "0"));
+        int patience = toInt(properties.getOrDefault("early.stopping.patience", "0"));
+        float minDelta = toFloat(properties.getOrDefault("early.stopping.min.delta", "0.05"));
+        boolean isRestoreBest = toBoolean(properties.getOrDefault("early.stopping.restore", "true"));
+        if (maxEpochs < 0 || timeLimit < 0 || patience < 0 || minDelta < 0)
+        {
+            throw new Exception("The training.epochs, training.time.limit and early.stopping values must not be negative.");
+        }
+        if (schedule == TrainingScheduler.Schedule.COSINE && maxEpochs <= warmupEpochs)
+        {
+            throw new Exception("The cosine learning rate schedule needs training.epochs (greater than the warmup).");
+        }
+
+        scheduler = new TrainingScheduler(learningRate, schedule, warmupEpochs, stepEpochs, stepFactor, minLearningRate,
+                maxEpochs, timeLimit * 60.0, patience, minDelta / 100.0, isRestoreBest);
+
+        // Optional: the inference server (port, maximum batch size and maximum batch wait time in milliseconds)
+        serverPort = toInt(properties.getOrDefault("server.port", "8080"));
+        serverBatchSize = toInt(properties.getOrDefault("server.batch.size", "32"));
+        serverBatchWait = (long) (toFloat(properties.getOrDefault("server.batch.wait", "2")) * 1000);
+        if (serverPort < 0 || serverPort > 65535 || serverBatchSize < 1 || serverBatchWait < 0)
+        {
+            throw new Exception("Invalid server settings (port: " + serverPort + ", batch size: " + serverBatchSize + ").");
+        }
+
+        // Optional: number of decoder and inference threads of the bulk scoring (0 means all available processors)
+        threads = toInt(properties.getOrDefault("scoring.threads", "0"));
+        scoringThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+        // Optional: distributed training (address and port of the parameter server, number of worker processes,
+        // SYNC or ASYNC updates, and the maximum number of steps a worker can be ahead of the slowest one in ASYNC mode)
+        distributedHost = properties.getOrDefault("distributed.host", "localhost");
+        distributedPort = toInt(properties.getOrDefault("distributed.port", "9090"));
+        distributedWorkers = toInt(properties.getOrDefault("distributed.workers", "2"));
+        distributedMode = toMode(properties.getOrDefault("distributed.mode", "SYNC"));
+        distributedStaleness = toInt(properties.getOrDefault("distributed.staleness", "2"));
+        if (distributedPort < 0 || distributedPort > 65535 || distributedWorkers < 1 || distributedStaleness < 0)
+        {
+            throw new Exception("Invalid distributed settings (port: " + distributedPort + ", workers: " + distributedWorkers
+                    + ", staleness: " + distributedStaleness + ").");
+        }
+
+        // Optional: receivers of the per-epoch training measurements (comma separated list of CONSOLE, CSV and JMX, or NONE)
+        metricsSinks = new ArrayList<>();
+        for (String sink : properties.getOrDefault("metrics", "CONSOLE").toUpperCase().split(","))
+        {
+            sink = sink.trim();
+            if (sink.isEmpty() || sink.equals("NONE")) continue;
+
+            if (!sink.equals("CONSOLE") && !sink.equals("CSV") && !sink.equals("JMX"))
+            {
+                throw new Exception("Unknown metrics sink: " + sink + ". Valid values: CONSOLE, CSV, JMX or NONE.");
+            }
+            metricsSinks.add(sink);
+        }
+    }
+
+    /**
+     * Prints the main settings
+     */
+    public void print()
+    {
         System.out.print("Layers: (784)");
         for (int size : layerSizes) System.out.print(" - " + size);
-        System.out.println("\nActivation function: " + activation);
-        System.out.println("Learning rate: " + learningRate + "\n");
+        System.out.println("\nActivation function: " + activation + " (" + activationMode + ")");
+        System.out.println("Compute backend: " + computeBackend);
+        System.out.println("Learning rate: " + learningRate + ", schedule: " + scheduler);
+        System.out.println("Optimizer: " + optimizer + (optimizer.equals("ADAM") ? " (beta1: " + beta1 + ", beta2: " + beta2
+                + ", epsilon: " + epsilon + ")" : (optimizer.equals("SGD") ? "" : " (momentum: " + momentum + ")")));
+        System.out.println("Batch size: " + batchSize);
+        System.out.println("Training threads: " + trainingThreads
+                + (trainingThreads > 1 ? " (" + parallelStrategy + ")" : ""));
+        System.out.println("Checkpoints: " + (checkpointInterval == NO_CHECKPOINTS ? "none"
+                : (checkpointInterval == EPOCH_CHECKPOINTS ? "every epoch" : "every " + checkpointInterval + " examples")
+                + ", keep " + checkpointKeep));
+        System.out.println("Shuffle: " + (isShuffle ? "yes" : "no") + ", augmentation: " + (augmenter != null ? "yes" : "no")
+                + (isShuffle || augmenter != null ? " (pipeline threads: " + pipelineThreads
+                + ", prefetch: " + pipelinePrefetch + " blocks)" : ""));
+        System.out.println("Metrics: " + (metricsSinks.isEmpty() ? "none" : String.join(", ", metricsSinks)) + "\n");
     }
 
     public static Map<String, String> readProperties(String fileName) throws Exception
@@ -93,6 +301,61 @@ public class Settings
         }
     }
 
+    private boolean toBoolean(String value) throws Exception
+    {
+        if (value.equalsIgnoreCase("true")) return true;
+        if (value.equalsIgnoreCase("false")) return false;
+
+        throw new Exception("The provided properties value can't be converted to boolean (" + value + ").");
+    }
+
+    private ParallelTrainer.Strategy toStrategy(String value) throws Exception
+    {
+        try
+        {
+            return ParallelTrainer.Strategy.valueOf(value.toUpperCase());
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Unknown parallel training strategy (" + value + ").");
+        }
+    }
+
+    private TrainingScheduler.Schedule toSchedule(String value) throws Exception
+    {
+        try
+        {
+            return TrainingScheduler.Schedule.valueOf(value.toUpperCase());
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Unknown learning rate schedule (" + value + ").");
+        }
+    }
+
+    private ParameterServer.Mode toMode(String value) throws Exception
+    {
+        try
+        {
+            return ParameterServer.Mode.valueOf(value.toUpperCase());
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Unknown distributed training mode (" + value + ").");
+        }
+    }
+
+    /**
+     * Creates the optimizer of a layer, or returns null for plain SGD (which is built into the layers)
+     * @param parameterCount the number of parameters (weights and biases) of the layer
+     */
+    public Optimizer createOptimizer(int parameterCount)
+    {
+        if (optimizer.equals("SGD")) return null;
+
+        return Optimizer.getInstance(optimizer, parameterCount, momentum, beta1, beta2, epsilon);
+    }
+
     public int getLayerCount()
     {
         return layerSizes.size();
@@ -105,11 +368,157 @@ public class Settings
 
     public Activation getActivation()
     {
-        return Activation.getInstance(activation);
+        return Activation.getInstance(activation, activationMode);
+    }
+
+    public String getActivationName()
+    {
+        return activation;
+    }
+
+    public String getActivationMode()
+    {
+        return activationMode;
+    }
+
+    public String getOptimizerName()
+    {
+        return optimizer;
+    }
+
+    public String getComputeBackend()
+    {
+        return computeBackend;
+    }
+
+    public Kernels getKernels()
+    {
+        return Kernels.getInstance(computeBackend);
     }
 
     public float getLearningRate()
     {
         return learningRate;
     }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public int getTrainingThreads()
+    {
+        return trainingThreads;
+    }
+
+    public ParallelTrainer.Strategy getParallelStrategy()
+    {
+        return parallelStrategy;
+    }
+
+    /**
+     * Returns the number of examples between checkpoints, or NO_CHECKPOINTS or EPOCH_CHECKPOINTS
+     */
+    public int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    public int getCheckpointKeep()
+    {
+        return checkpointKeep;
+    }
+
+    public boolean isShuffle()
+    {
+        return isShuffle;
+    }
+
+    public int getPipelineThreads()
+    {
+        return pipelineThreads;
+    }
+
+    public int getPipelinePrefetch()
+    {
+        return pipelinePrefetch;
+    }
+
+    /**
+     * Returns the augmentation of the training images, or null if the augmentation is disabled
+     */
+    public Augmenter getAugmenter()
+    {
+        return augmenter;
+    }
+
+    /**
+     * Returns the names of the metrics sinks (see MetricsSink.getInstance)
+     */
+    public List<String> getMetricsSinks()
+    {
+        return metricsSinks;
+    }
+
+    /**
+     * Returns the scheduler of the training (learning rate schedule and stop conditions)
+     */
+    public TrainingScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    public int getServerPort()
+    {
+        return serverPort;
+    }
+
+    public int getServerBatchSize()
+    {
+        return serverBatchSize;
+    }
+
+    /**
+     * Returns the maximum wait time of a micro-batch of the inference server in microseconds
+     */
+    public long getServerBatchWait()
+    {
+        return serverBatchWait;
+    }
+
+    public int getScoringThreads()
+    {
+        return scoringThreads;
+    }
+
+    /**
+     * Returns the address the parameter server listens on (the loopback address by default, 0.0.0.0: all interfaces)
+     */
+    public String getDistributedHost()
+    {
+        return distributedHost;
+    }
+
+    public int getDistributedPort()
+    {
+        return distributedPort;
+    }
+
+    public int getDistributedWorkers()
+    {
+        return distributedWorkers;
+    }
+
+    public ParameterServer.Mode getDistributedMode()
+    {
+        return distributedMode;
+    }
+
+    /**
+     * Returns the maximum number of steps a worker can be ahead of the slowest worker (ASYNC mode)
+     */
+    public int getDistributedStaleness()
+    {
+        return distributedStaleness;
+    }
 }
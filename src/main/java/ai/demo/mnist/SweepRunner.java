@@ -0,0 +1,533 @@
+package ai.demo.mnist;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Hyperparameter sweep: trains variants of a model concurrently, and ranks them by the test accuracy
+ * The variants (candidates) are the model.properties file overridden by the values of a sweep file:
+ * every combination of the listed values (grid search), or randomly chosen values and ranges (random search).
+ *
+ * The candidates are pruned by successive halving: all of them are trained for a short budget (a fraction of an epoch),
+ * then only the best 1 / reduction of them continue to the next rung, with a budget multiplied by the reduction,
+ * until the last rung (the full number of epochs of the sweep). The training of a candidate continues from where
+ * the previous rung stopped, and the learning rate schedule spans the full number of epochs.
+ *
+ * The candidates of a rung are trained concurrently, as long as the sum of their threads fits into the core budget,
+ * and the sum of their estimated memory fits into the memory budget (a candidate which doesn't fit runs alone).
+ * All candidates read the same (memory mapped, read-only) train and test datasets.
+ */
+public class SweepRunner
+{
+	public enum Mode {GRID, RANDOM}
+
+	// Number of examples between the learning rate updates of a variable schedule (rounded up to whole mini-batches)
+	private static final int LEARNING_RATE_STEP = 1024;
+
+	private final String modelPath;
+	private final Map<String, String> baseProperties;
+
+	// The swept properties and their values (in the order of the property names)
+	private final Map<String, List<String>> sweptValues = new TreeMap<>();
+
+	private final Mode mode;
+	private final int samples;
+	private final float epochs;
+	private final int reduction;
+	private final int coreBudget;
+	private final long memoryBudget;
+	private final double targetAccuracy;
+	private final long seed;
+
+	// Resources used by the running candidates
+	private int runningCount;
+	private int usedCores;
+	private long usedMemory;
+
+	/**
+	 * Constructor
+	 * @param modelPath the folder of the model (the base properties)
+	 * @param sweepFile the file of the sweep settings and the swept values
+	 */
+	public SweepRunner(String modelPath, String sweepFile) throws Exception
+	{
+		this.modelPath = modelPath;
+		baseProperties = Settings.readProperties(modelPath + "/model.properties");
+
+		Map<String, String> properties = Settings.readProperties(sweepFile);
+
+		mode = Mode.valueOf(properties.getOrDefault("sweep.mode", "GRID").toUpperCase());
+		samples = Integer.parseInt(properties.getOrDefault("sweep.samples", "16"));
+		epochs = Float.parseFloat(properties.getOrDefault("sweep.epochs", "4"));
+		reduction = Integer.parseInt(properties.getOrDefault("sweep.reduction", "2"));
+		targetAccuracy = Float.parseFloat(properties.getOrDefault("sweep.target", "95")) / 100.0;
+		seed = Long.parseLong(properties.getOrDefault("sweep.seed", "1"));
+
+		int threads = Integer.parseInt(properties.getOrDefault("sweep.threads", "0"));
+		coreBudget = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+		// Default memory budget: 3/4 of the heap which isn't used yet
+		long memory = Long.parseLong(properties.getOrDefault("sweep.memory", "0")) << 20;
+		Runtime runtime = Runtime.getRuntime();
+		memoryBudget = memory > 0 ? memory : (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) / 4 * 3;
+
+		if (samples < 1 || epochs <= 0 || reduction < 2)
+		{
+			throw new Exception("Invalid sweep settings: sweep.samples must be at least 1, sweep.epochs must be positive,"
+					+ " sweep.reduction must be at least 2.");
+		}
+
+		// Every other property is swept (comma separated values)
+		for (Map.Entry<String, String> entry : properties.entrySet())
+		{
+			if (entry.getKey().startsWith("sweep.")) continue;
+
+			List<String> values = new ArrayList<>();
+			for (String value : entry.getValue().split(","))
+			{
+				if (!value.trim().isEmpty()) values.add(value.trim());
+			}
+			sweptValues.put(entry.getKey(), values);
+		}
+
+		if (sweptValues.isEmpty()) throw new Exception("There are no swept properties in the sweep file: " + sweepFile);
+	}
+
+	/**
+	 * Runs the sweep, and prints the ranked results (also saved to sweep-results.csv in the model folder)
+	 */
+	public void run() throws Exception
+	{
+		List<Candidate> candidates = createCandidates();
+		if (candidates.isEmpty()) throw new Exception("There are no valid candidates.");
+
+		Dataset trainExamples = FileUtil.readTrainExamples();
+		Dataset testExamples = FileUtil.readTestExamples();
+
+		// The number of rungs: the candidates are reduced to one by the last rung
+		int rungCount = 1;
+		for (long count = candidates.size(); count >= reduction; count /= reduction) rungCount++;
+
+		System.out.println(String.format("Sweep: %d candidates (%s), %d rungs (reduction: %d, last rung: %s epochs)",
+				candidates.size(), mode, rungCount, reduction, epochs));
+		System.out.println(String.format("Budget: %d cores, %d MB", coreBudget, memoryBudget >> 20));
+
+		ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "sweep-candidate");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		List<Candidate> survivors = new ArrayList<>(candidates);
+		long start = System.nanoTime();
+
+		try
+		{
+			for (int rung = 0; rung < rungCount; rung++)
+			{
+				double rungEpochs = epochs * Math.pow(reduction, rung - rungCount + 1);
+				long exampleCount = Math.round(rungEpochs * trainExamples.size());
+
+				System.out.println(String.format("\nRung %d: %d candidates, %.3g epochs", rung + 1, survivors.size(), rungEpochs));
+
+				List<Future<?>> futures = new ArrayList<>();
+				for (Candidate candidate : survivors)
+				{
+					futures.add(executor.submit(() -> {
+						trainCandidate(candidate, trainExamples, testExamples, exampleCount);
+						return null;
+					}));
+				}
+
+				for (int i = 0; i < futures.size(); i++)
+				{
+					try
+					{
+						futures.get(i).get();
+					}
+					catch (ExecutionException e)
+					{
+						survivors.get(i).error = String.valueOf(e.getCause());
+						System.out.println("  #" + survivors.get(i).id + " failed: " + e.getCause());
+					}
+				}
+
+				// The best candidates continue, the networks of the others are released
+				survivors.removeIf(candidate -> candidate.error != null);
+				survivors.sort(Comparator.comparingDouble((Candidate candidate) -> candidate.accuracy).reversed());
+
+				int keepCount = rung == rungCount - 1 ? 0 : Math.max(1, survivors.size() / reduction);
+				for (Candidate candidate : survivors.subList(keepCount, survivors.size()))
+				{
+					candidate.network = null;
+				}
+				survivors = new ArrayList<>(survivors.subList(0, keepCount));
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		report(candidates, trainExamples.size(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Creates the candidates: the combinations of the swept values (grid) or random samples of them
+	 * The duplicates are dropped (for example the size of a hidden layer which doesn't exist in a candidate)
+	 */
+	private List<Candidate> createCandidates()
+	{
+		List<Map<String, String>> variants = new ArrayList<>();
+
+		if (mode == Mode.GRID)
+		{
+			variants.add(new TreeMap<>());
+			for (Map.Entry<String, List<String>> entry : sweptValues.entrySet())
+			{
+				List<Map<String, String>> extended = new ArrayList<>();
+				for (Map<String, String> variant : variants)
+				{
+					for (String value : entry.getValue())
+					{
+						Map<String, String> copy = new TreeMap<>(variant);
+						copy.put(entry.getKey(), value);
+						extended.add(copy);
+					}
+				}
+				variants = extended;
+			}
+		}
+		else
+		{
+			Random random = new Random(seed);
+			for (int i = 0; i < samples; i++)
+			{
+				Map<String, String> variant = new TreeMap<>();
+				for (Map.Entry<String, List<String>> entry : sweptValues.entrySet())
+				{
+					String value = entry.getValue().get(random.nextInt(entry.getValue().size()));
+					variant.put(entry.getKey(), value.contains("..") ? sampleRange(value, random) : value);
+				}
+				variants.add(variant);
+			}
+		}
+
+		Set<String> descriptions = new HashSet<>();
+		List<Candidate> candidates = new ArrayList<>();
+
+		for (Map<String, String> variant : variants)
+		{
+			Map<String, String> properties = new HashMap<>(baseProperties);
+			properties.putAll(variant);
+
+			// The schedule spans the whole sweep, the sweep decides when to stop
+			properties.put("training.epochs", String.valueOf((int) Math.ceil(epochs)));
+			properties.put("early.stopping.patience", "0");
+			properties.put("training.time.limit", "0");
+			properties.put("metrics", "NONE");
+
+			// Only the sizes of the existing hidden layers are relevant
+			int layerCount = Integer.parseInt(properties.getOrDefault("hidden.layers", "0").trim());
+			variant.keySet().removeIf(name -> name.matches("hidden\\.\\d+\\.size")
+					&& Integer.parseInt(name.split("\\.")[1]) >= layerCount);
+
+			if (!descriptions.add(variant.toString())) continue;
+
+			try
+			{
+				candidates.add(new Candidate(candidates.size() + 1, variant, new Settings(properties)));
+			}
+			catch (Exception e)
+			{
+				System.out.println("Invalid candidate " + variant + ": " + e.getMessage());
+			}
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Samples a value of a range (min..max): integers uniformly, positive decimals log-uniformly
+	 */
+	private static String sampleRange(String range, Random random)
+	{
+		String[] bounds = range.split("\\.\\.");
+		String min = bounds[0].trim();
+		String max = bounds[1].trim();
+
+		if (min.matches("-?\\d+") && max.matches("-?\\d+"))
+		{
+			int low = Integer.parseInt(min);
+			return String.valueOf(low + random.nextInt(Integer.parseInt(max) - low + 1));
+		}
+
+		double low = Double.parseDouble(min);
+		double high = Double.parseDouble(max);
+
+		double value = low > 0 && high > 0
+				? Math.exp(Math.log(low) + random.nextDouble() * (Math.log(high) - Math.log(low)))
+				: low + random.nextDouble() * (high - low);
+
+		return String.format(Locale.ROOT, "%.3g", value);
+	}
+
+	/**
+	 * Trains a candidate until the given number of examples, when there are enough free cores and memory
+	 */
+	private void trainCandidate(Candidate candidate, Dataset trainExamples, Dataset testExamples, long exampleCount)
+			throws InterruptedException
+	{
+		acquire(candidate.cores, candidate.memory);
+		try
+		{
+			train(candidate, trainExamples, testExamples, exampleCount);
+		}
+		finally
+		{
+			release(candidate.cores, candidate.memory);
+		}
+
+		System.out.println(String.format("  #%d %s: %.2f%% after %.3g epochs (%.1f s)", candidate.id, candidate.values,
+				100 * candidate.accuracy, (double) candidate.exampleCount / trainExamples.size(), candidate.trainTime / 1e9));
+	}
+
+	/**
+	 * Waits until the resources of a candidate are free (a candidate bigger than the budgets runs alone)
+	 */
+	private synchronized void acquire(int cores, long memory) throws InterruptedException
+	{
+		while (runningCount > 0 && (usedCores + cores > coreBudget || usedMemory + memory > memoryBudget))
+		{
+			wait();
+		}
+
+		runningCount++;
+		usedCores += cores;
+		usedMemory += memory;
+	}
+
+	private synchronized void release(int cores, long memory)
+	{
+		runningCount--;
+		usedCores -= cores;
+		usedMemory -= memory;
+
+		notifyAll();
+	}
+
+	/**
+	 * Trains the network of a candidate (created at the first rung) until the given number of examples
+	 * The test accuracy is measured at the end of every epoch and at the end of the rung
+	 */
+	private void train(Candidate candidate, Dataset trainExamples, Dataset testExamples, long exampleCount)
+	{
+		Settings settings = candidate.settings;
+		int batchSize = settings.getBatchSize();
+		int size = trainExamples.size();
+
+		if (candidate.network == null)
+		{
+			candidate.network = NeuralNetwork.createNeuralNetwork(settings, modelPath, null);
+			candidate.network.createOptimizers(settings);
+		}
+		NeuralNetwork neuralNetwork = candidate.network;
+
+		ParallelTrainer parallelTrainer = null;
+		if (settings.getTrainingThreads() > 1)
+		{
+			parallelTrainer = new ParallelTrainer(neuralNetwork, settings.getTrainingThreads(),
+					settings.getParallelStrategy(), batchSize);
+		}
+
+		TrainingPipeline pipeline = null;
+		if (settings.isShuffle() || settings.getAugmenter() != null)
+		{
+			pipeline = new TrainingPipeline(trainExamples, settings.isShuffle(), settings.getAugmenter(),
+					batchSize, settings.getPipelineThreads(), settings.getPipelinePrefetch());
+		}
+
+		// The evaluation uses the cores of the candidate, not the common pool, so it doesn't slow down the other candidates
+		ForkJoinPool evaluationPool = new ForkJoinPool(candidate.cores);
+
+		TrainingScheduler scheduler = settings.getScheduler();
+		int learningRateStep = (LEARNING_RATE_STEP + batchSize - 1) / batchSize * batchSize;
+
+		try
+		{
+			while (candidate.exampleCount < exampleCount)
+			{
+				long epoch = candidate.exampleCount / size;
+				long epochStart = epoch * size;
+				long end = Math.min(exampleCount, epochStart + size);
+
+				if (pipeline != null) pipeline.startEpoch(epoch, (int) (candidate.exampleCount - epochStart));
+
+				long start = System.nanoTime();
+
+				while (candidate.exampleCount < end)
+				{
+					Dataset block;
+					int first;
+					int last;
+
+					if (pipeline != null)
+					{
+						block = pipeline.next();
+						first = 0;
+						last = (int) Math.min(block.size(), end - candidate.exampleCount);
+					}
+					else
+					{
+						block = trainExamples;
+						first = (int) (candidate.exampleCount - epochStart);
+						last = (int) Math.min(end - epochStart, (first / learningRateStep + 1) * learningRateStep);
+					}
+
+					// The learning rate in the middle of the range
+					neuralNetwork.setLearningRate(scheduler.getLearningRate(
+							(candidate.exampleCount + (last - first) / 2.0) / size));
+
+					if (parallelTrainer != null) parallelTrainer.train(block, first, last);
+					else neuralNetwork.train(block, first, last, batchSize);
+
+					candidate.exampleCount += last - first;
+				}
+
+				candidate.trainTime += System.nanoTime() - start;
+
+				candidate.accuracy = Evaluator.evaluate(neuralNetwork, testExamples, evaluationPool).getAccuracy();
+				if (candidate.targetTime < 0 && candidate.accuracy >= targetAccuracy)
+				{
+					candidate.targetTime = candidate.trainTime;
+				}
+			}
+		}
+		finally
+		{
+			if (parallelTrainer != null) parallelTrainer.shutdown();
+			if (pipeline != null) pipeline.shutdown();
+			evaluationPool.shutdown();
+		}
+	}
+
+	/**
+	 * Prints the ranked results (the candidates of later rungs first, then by accuracy), and saves them to a csv file
+	 */
+	private void report(List<Candidate> candidates, int size, long time) throws Exception
+	{
+		List<Candidate> ranking = new ArrayList<>(candidates);
+		ranking.sort(Comparator.comparingLong((Candidate candidate) -> candidate.exampleCount)
+				.thenComparingDouble(candidate -> candidate.accuracy).reversed());
+
+		System.out.println(String.format("\nResults (%.1f s, time to accuracy: training time until %.2f%%):",
+				time / 1e9, 100 * targetAccuracy));
+		System.out.println(String.format("%4s %5s %8s %9s %10s %10s  %s",
+				"Rank", "#", "Epochs", "Accuracy", "To target", "Train time", "Values"));
+
+		File resultFile = new File(modelPath + "/sweep-results.csv");
+		try (PrintWriter writer = new PrintWriter(resultFile))
+		{
+			writer.println("rank,candidate,epochs,accuracy,time_to_target,train_time," + String.join(",", sweptValues.keySet()));
+
+			for (int i = 0; i < ranking.size(); i++)
+			{
+				Candidate candidate = ranking.get(i);
+				double trainedEpochs = (double) candidate.exampleCount / size;
+				String targetTime = candidate.targetTime < 0 ? "-" : String.format(Locale.ROOT, "%.1f", candidate.targetTime / 1e9);
+
+				System.out.println(String.format("%4d %5s %8.3g %8.2f%% %9s%s %9.1fs  %s%s", i + 1, "#" + candidate.id,
+						trainedEpochs, 100 * candidate.accuracy, targetTime, candidate.targetTime < 0 ? " " : "s",
+						candidate.trainTime / 1e9, candidate.values, candidate.error == null ? "" : " (failed)"));
+
+				StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%d,%d,%.3f,%.4f,%s,%.1f",
+						i + 1, candidate.id, trainedEpochs, candidate.accuracy, candidate.targetTime < 0 ? "" : targetTime,
+						candidate.trainTime / 1e9));
+				for (String name : sweptValues.keySet())
+				{
+					line.append(',').append(candidate.values.getOrDefault(name, ""));
+				}
+				writer.println(line);
+			}
+		}
+
+		System.out.println("\nThe results are saved to: " + resultFile.getPath());
+		System.out.println("Best values: " + ranking.get(0).values);
+	}
+
+	/**
+	 * Estimates the memory used by the training of a candidate in bytes
+	 * (the parameters, the optimizer state, the mini-batch buffers of the network and its replicas, the pipeline blocks)
+	 */
+	private static long estimateMemory(Settings settings)
+	{
+		int batchSize = settings.getBatchSize();
+		int threads = settings.getTrainingThreads();
+		int networkCount = threads > 1 ? threads + 1 : 1;
+		int stateArrays = settings.getOptimizerName().equals("ADAM") ? 2 : (settings.getOptimizerName().equals("SGD") ? 0 : 1);
+
+		long memory = 0;
+		int inputCount = 28 * 28;
+		for (int neuronCount : settings.getLayerSizes())
+		{
+			long parameters = (long) inputCount * neuronCount + neuronCount;
+
+			memory += 4 * parameters * (1 + stateArrays);
+			if (batchSize > 1)
+			{
+				// Gradients and the batch buffers (outputs, errors, previous errors) of every network
+				memory += 4 * networkCount * (parameters + (long) batchSize * (2 * neuronCount + inputCount));
+			}
+
+			inputCount = neuronCount;
+		}
+
+		if (settings.isShuffle() || settings.getAugmenter() != null)
+		{
+			memory += TrainingPipeline.getBufferMemory(batchSize, settings.getPipelinePrefetch());
+		}
+
+		return memory;
+	}
+
+	/**
+	 * A variant of the model, and the state of its training
+	 */
+	private static class Candidate
+	{
+		private final int id;
+		private final Map<String, String> values;
+		private final Settings settings;
+
+		// Resources needed by the training
+		private final int cores;
+		private final long memory;
+
+		private NeuralNetwork network;
+		private long exampleCount;
+		private double accuracy;
+
+		// Training time in nanoseconds (without the tests), and until the target accuracy was reached (-1: not reached)
+		private long trainTime;
+		private long targetTime = -1;
+
+		private String error;
+
+		private Candidate(int id, Map<String, String> values, Settings settings)
+		{
+			this.id = id;
+			this.values = values;
+			this.settings = settings;
+
+			boolean isPipeline = settings.isShuffle() || settings.getAugmenter() != null;
+			cores = settings.getTrainingThreads() + (isPipeline ? settings.getPipelineThreads() : 0);
+			memory = estimateMemory(settings);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package ai.demo.mnist;
+
+import ai.demo.mnist.metrics.EpochMetrics;
+import ai.demo.mnist.metrics.EventRecorder;
+import ai.demo.mnist.metrics.MetricsSink;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Collects the measurements of the training epochs, and reports them to the metrics sinks and as JFR events
+ * The layers and the networks measure their own times (cheap, always-on counters),
+ * the monitor only takes the differences of the counters at the start and end of an epoch
+ * (summed over the network and its replicas, if the training is multi-threaded)
+ */
+public class TrainingMonitor
+{
+	private final NeuralNetwork[] networks;
+	private final TrainingPipeline pipeline;
+	private final List<MetricsSink> sinks;
+	private final EventRecorder eventRecorder;
+
+	private int epoch;
+	private Object epochEvent;
+
+	// Counters at the start of the epoch
+	private long startTime;
+	private long startExampleCount;
+	private Counters startCounters;
+
+	// Differences at the end of the epoch
+	private long time;
+	private long exampleCount;
+	private Counters counters;
+
+	/**
+	 * Constructor
+	 * @param neuralNetwork the trained network
+	 * @param parallelTrainer the multi-threaded trainer of the network, or null
+	 * @param pipeline the input pipeline, or null
+	 * @param sinks the receivers of the measurements
+	 * @param eventRecorder the recorder of the JFR events
+	 */
+	public TrainingMonitor(NeuralNetwork neuralNetwork, ParallelTrainer parallelTrainer, TrainingPipeline pipeline,
+						   List<MetricsSink> sinks, EventRecorder eventRecorder)
+	{
+		if (parallelTrainer == null)
+		{
+			networks = new NeuralNetwork[] {neuralNetwork};
+		}
+		else
+		{
+			// The original network is also counted, because the updates of the parallel training are measured there
+			NeuralNetwork[] replicas = parallelTrainer.getReplicas();
+			networks = new NeuralNetwork[replicas.length + 1];
+			networks[0] = neuralNetwork;
+			System.arraycopy(replicas, 0, networks, 1, replicas.length);
+		}
+
+		this.pipeline = pipeline;
+		this.sinks = sinks;
+		this.eventRecorder = eventRecorder;
+	}
+
+	/**
+	 * Called before the training of an epoch
+	 * @param totalExampleCount the number of trained examples since the start of the training
+	 */
+	public void startEpoch(long totalExampleCount)
+	{
+		epoch++;
+		epochEvent = eventRecorder.beginEpoch();
+
+		startExampleCount = totalExampleCount;
+		startCounters = readCounters();
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Called after the training of an epoch (before the test)
+	 * @param totalExampleCount the number of trained examples since the start of the training
+	 */
+	public void endEpoch(long totalExampleCount)
+	{
+		time = System.nanoTime() - startTime;
+		exampleCount = totalExampleCount - startExampleCount;
+		counters = readCounters().subtract(startCounters);
+
+		eventRecorder.endEpoch(epochEvent);
+	}
+
+	/**
+	 * Reports the measurements of the last epoch
+	 * @param accuracy the accuracy on the test dataset after the epoch
+	 */
+	public void report(double accuracy)
+	{
+		EpochMetrics metrics = new EpochMetrics(epoch, exampleCount, time, accuracy,
+				counters.loadTime, pipeline == null ? 0 : pipeline.getWaitTime(),
+				counters.forwardTimes, counters.backwardTimes, counters.updateTimes,
+				counters.gcCount, counters.gcTime, counters.allocatedBytes);
+
+		for (MetricsSink sink : sinks)
+		{
+			sink.report(metrics);
+		}
+
+		eventRecorder.commitEpoch(epochEvent, metrics);
+	}
+
+	public void close()
+	{
+		for (MetricsSink sink : sinks)
+		{
+			sink.close();
+		}
+	}
+
+	private Counters readCounters()
+	{
+		int layerCount = networks[0].getNeuronLayers().size();
+		Counters counters = new Counters(layerCount);
+
+		for (NeuralNetwork network : networks)
+		{
+			counters.loadTime += network.getLoadTime();
+
+			for (int i = 0; i < layerCount; i++)
+			{
+				NeuronLayer layer = network.getNeuronLayers().get(i);
+				counters.forwardTimes[i] += layer.getForwardTime();
+				counters.backwardTimes[i] += layer.getBackwardTime();
+				counters.updateTimes[i] += layer.getUpdateTime();
+			}
+		}
+
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			counters.gcCount += Math.max(0, collector.getCollectionCount());
+			counters.gcTime += Math.max(0, collector.getCollectionTime());
+		}
+
+		counters.allocatedBytes = readAllocatedBytes();
+
+		return counters;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the live threads (-1 if it isn't supported by the JVM)
+	 */
+	private static long readAllocatedBytes()
+	{
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) return -1;
+
+		long sum = 0;
+		for (long bytes : allocationBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+		{
+			// -1 for a thread which has ended since the ids were listed
+			if (bytes > 0) sum += bytes;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Values of the cumulative counters
+	 */
+	private static class Counters
+	{
+		private long loadTime;
+		private final long[] forwardTimes;
+		private final long[] backwardTimes;
+		private final long[] updateTimes;
+		private long gcCount;
+		private long gcTime;
+		private long allocatedBytes;
+
+		private Counters(int layerCount)
+		{
+			forwardTimes = new long[layerCount];
+			backwardTimes = new long[layerCount];
+			updateTimes = new long[layerCount];
+		}
+
+		/**
+		 * Calculates the difference to an earlier reading
+		 */
+		private Counters subtract(Counters start)
+		{
+			Counters difference = new Counters(forwardTimes.length);
+
+			difference.loadTime = loadTime - start.loadTime;
+
+			for (int i = 0; i < forwardTimes.length; i++)
+			{
+				difference.forwardTimes[i] = forwardTimes[i] - start.forwardTimes[i];
+				difference.backwardTimes[i] = backwardTimes[i] - start.backwardTimes[i];
+				difference.updateTimes[i] = updateTimes[i] - start.updateTimes[i];
+			}
+
+			difference.gcCount = gcCount - start.gcCount;
+			difference.gcTime = gcTime - start.gcTime;
+
+			// The threads which ended during the epoch are missing from the second reading
+			difference.allocatedBytes = allocatedBytes < 0 ? -1 : Math.max(0, allocatedBytes - start.allocatedBytes);
+
+			return difference;
+		}
+	}
+}
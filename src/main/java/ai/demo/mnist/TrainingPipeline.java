@@ -0,0 +1,286 @@
+package ai.demo.mnist;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming input of the training: the examples of an epoch are delivered in blocks (small in-memory datasets),
+ * which are filled by producer threads ahead of the training (prefetch), so reading the records overlaps with the compute.
+ * The order of the examples can be shuffled by a new permutation at every epoch,
+ * and the images can be augmented by the producer threads (see Augmenter).
+ *
+ * The blocks use the binary record format (8 bit pixels), so a block takes 785 bytes per example,
+ * and the memory usage is bounded by the number of prefetched blocks, independently of the size of the dataset.
+ * The permutation is seeded by a fixed seed and the epoch number, the augmentation of an example by the epoch
+ * and the position of the example, and the blocks are aligned to multiples of the block size in the epoch,
+ * so a resumed training replays the same examples with the same augmentation, independently of the thread scheduling.
+ * (The batches and the learning rate steps are also the same when resuming from a checkpoint with the same batch.size.)
+ */
+public class TrainingPipeline
+{
+	// Minimum number of examples in a block (rounded up to a multiple of the batch size)
+	private static final int MIN_BLOCK_SIZE = 1024;
+
+	private static final long SEED = 20240101L;
+
+	private final Dataset examples;
+	private final boolean isShuffled;
+	private final Augmenter augmenter;
+	private final int blockSize;
+
+	private final ExecutorService producers;
+
+	// Buffers of the blocks which aren't being filled or consumed
+	private final BlockingQueue<byte[]> freeBuffers;
+
+	// The blocks being filled (in the order of the consumption)
+	private final ArrayDeque<Future<Block>> pendingBlocks = new ArrayDeque<>();
+
+	// The block returned by the last call of next() (released at the next call)
+	private Block currentBlock;
+
+	// The order of the examples in the current epoch (null if not shuffled)
+	private int[] order;
+
+	// The current epoch, the position of the next block to fill, and the end of the epoch
+	private long epoch;
+	private int position;
+	private int end;
+
+	// Time spent by the training waiting for the blocks in the current epoch
+	private long waitTime;
+
+	/**
+	 * Constructor
+	 * @param examples the training examples
+	 * @param isShuffled whether to shuffle the examples at every epoch
+	 * @param augmenter the augmentation of the images (null: no augmentation)
+	 * @param batchSize the size of the mini-batches (the blocks contain whole batches)
+	 * @param threads the number of producer threads
+	 * @param prefetch the number of blocks filled ahead of the training
+	 */
+	public TrainingPipeline(Dataset examples, boolean isShuffled, Augmenter augmenter, int batchSize, int threads, int prefetch)
+	{
+		this.examples = examples;
+		this.isShuffled = isShuffled;
+		this.augmenter = augmenter;
+		this.blockSize = getBlockSize(batchSize);
+
+		producers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "training-pipeline");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		// One more buffer than the prefetch, for the block being consumed
+		freeBuffers = new ArrayBlockingQueue<>(prefetch + 1);
+		for (int i = 0; i <= prefetch; i++)
+		{
+			freeBuffers.add(new byte[blockSize * FileUtil.RECORD_SIZE]);
+		}
+	}
+
+	/**
+	 * Returns the number of examples in a block (the minimum block size rounded up to whole batches)
+	 */
+	public static int getBlockSize(int batchSize)
+	{
+		return (MIN_BLOCK_SIZE + batchSize - 1) / batchSize * batchSize;
+	}
+
+	/**
+	 * Returns the memory of the block buffers in bytes
+	 * @param batchSize the size of the mini-batches
+	 * @param prefetch the number of blocks filled ahead of the training
+	 */
+	public static long getBufferMemory(int batchSize, int prefetch)
+	{
+		return (prefetch + 1L) * getBlockSize(batchSize) * FileUtil.RECORD_SIZE;
+	}
+
+	/**
+	 * Starts an epoch (the blocks of a previously started epoch are dropped)
+	 * @param epoch the number of the epoch (the seed of the permutation)
+	 * @param first the position of the first example in the epoch (a resumed training can start in the middle of an epoch)
+	 */
+	public void startEpoch(long epoch, int first)
+	{
+		releaseBlocks();
+
+		this.epoch = epoch;
+		waitTime = 0;
+
+		if (isShuffled)
+		{
+			if (order == null) order = new int[examples.size()];
+
+			// Fisher-Yates shuffle of the identity permutation
+			Random random = new Random(SEED + epoch);
+			for (int i = 0; i < order.length; i++)
+			{
+				int j = random.nextInt(i + 1);
+				order[i] = order[j];
+				order[j] = i;
+			}
+		}
+
+		position = first;
+		end = examples.size();
+
+		fillBlocks();
+	}
+
+	/**
+	 * Returns the next block of the epoch (waits if it isn't filled yet), or null at the end of the epoch
+	 * The block returned by the previous call must not be used after this call (its buffer is reused)
+	 */
+	public Dataset next()
+	{
+		if (currentBlock != null)
+		{
+			freeBuffers.add(currentBlock.buffer);
+			currentBlock = null;
+		}
+
+		fillBlocks();
+
+		Future<Block> future = pendingBlocks.poll();
+		if (future == null) return null;
+
+		long start = System.nanoTime();
+		currentBlock = getBlock(future);
+		waitTime += System.nanoTime() - start;
+
+		return currentBlock.examples;
+	}
+
+	/**
+	 * Starts filling blocks while there are free buffers
+	 */
+	private void fillBlocks()
+	{
+		byte[] buffer;
+		while (position < end && (buffer = freeBuffers.poll()) != null)
+		{
+			// A training resumed in the middle of a block continues with the rest of the block
+			int first = position;
+			int count = Math.min(blockSize - first % blockSize, end - first);
+			byte[] records = buffer;
+			long blockEpoch = epoch;
+
+			pendingBlocks.add(producers.submit(() -> fillBlock(records, first, count, blockEpoch)));
+
+			position += count;
+		}
+	}
+
+	/**
+	 * Fills a block (executed on a producer thread)
+	 */
+	private Block fillBlock(byte[] buffer, int first, int count, long epoch)
+	{
+		examples.copyRecords(order, first, count, buffer);
+
+		if (augmenter != null)
+		{
+			// Every example has its own seed, so the augmentation doesn't depend on the blocks
+			Random random = new Random();
+			for (int i = 0; i < count; i++)
+			{
+				random.setSeed(seed(epoch, first + i));
+				augmenter.augmentRecord(buffer, i, random);
+			}
+		}
+
+		return new Block(buffer, new Dataset(ByteBuffer.wrap(buffer), 0, count));
+	}
+
+	/**
+	 * Returns the seed of the augmentation of an example
+	 * The epoch and the position are mixed by the SplitMix64 finalizer, so the seeds of different epochs don't overlap
+	 */
+	private static long seed(long epoch, int position)
+	{
+		return mix(mix(SEED + epoch) + position);
+	}
+
+	private static long mix(long z)
+	{
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private Block getBlock(Future<Block> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Training interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException("Training input error: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for the pending blocks, and releases all buffers
+	 */
+	private void releaseBlocks()
+	{
+		if (currentBlock != null)
+		{
+			freeBuffers.add(currentBlock.buffer);
+			currentBlock = null;
+		}
+
+		Future<Block> future;
+		while ((future = pendingBlocks.poll()) != null)
+		{
+			freeBuffers.add(getBlock(future).buffer);
+		}
+	}
+
+	/**
+	 * Returns the time spent by the training waiting for the blocks in the current epoch (in nanoseconds)
+	 * If it is significant, the producer threads are the bottleneck
+	 */
+	public long getWaitTime()
+	{
+		return waitTime;
+	}
+
+	public void shutdown()
+	{
+		releaseBlocks();
+		producers.shutdown();
+	}
+
+	/**
+	 * A filled block: the buffer and the dataset view of it
+	 */
+	private static class Block
+	{
+		private final byte[] buffer;
+		private final Dataset examples;
+
+		private Block(byte[] buffer, Dataset examples)
+		{
+			this.buffer = buffer;
+			this.examples = examples;
+		}
+	}
+}
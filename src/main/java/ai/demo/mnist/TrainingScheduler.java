@@ -0,0 +1,234 @@
+package ai.demo.mnist;
+
+import java.util.List;
+
+/**
+ * Decides the learning rate during the training, and when to stop the training
+ * The training stops after a maximum number of epochs, if the next epoch wouldn't fit into the time limit,
+ * or if the test accuracy hasn't improved for a number of epochs (early stopping, the best parameters can be restored).
+ * The learning rate is a function of the (fractional) epoch: an optional linear warmup, followed by a constant,
+ * step decay or cosine decay schedule. Because it depends only on the number of trained examples,
+ * a resumed training continues with the same learning rates.
+ * If no stop condition is configured, the user is asked after every epoch whether to continue.
+ */
+public class TrainingScheduler
+{
+	public enum Schedule
+	{
+		CONSTANT,	// the base learning rate
+		STEP,		// multiplied by a factor after every N epochs
+		COSINE		// cosine decay from the base to the minimum learning rate over the maximum number of epochs
+	}
+
+	private final float learningRate;
+	private final Schedule schedule;
+	private final float warmupEpochs;
+	private final float stepEpochs;
+	private final float stepFactor;
+	private final float minLearningRate;
+
+	private final int maxEpochs;
+	private final long timeLimit;
+	private final int patience;
+	private final double minDelta;
+	private final boolean isRestoreBest;
+
+	private long startTime;
+	private long epochStartTime;
+
+	// The best test accuracy, the epoch and the parameters at that point (the parameters only if they are restored)
+	private double bestAccuracy;
+	private long bestEpoch;
+	private float[][] bestWeights;
+	private float[][] bestBiases;
+
+	/**
+	 * Constructor
+	 * @param learningRate the base learning rate
+	 * @param schedule the learning rate schedule
+	 * @param warmupEpochs the length of the linear warmup in epochs (0: no warmup)
+	 * @param stepEpochs the number of epochs between the decays of the step schedule
+	 * @param stepFactor the multiplier of the step schedule
+	 * @param minLearningRate the final learning rate of the cosine schedule
+	 * @param maxEpochs the maximum number of epochs (0: no limit)
+	 * @param timeLimit the time limit of the training in seconds (0: no limit)
+	 * @param patience the number of epochs without improvement before the training stops (0: no early stopping)
+	 * @param minDelta the minimum accuracy increase which counts as an improvement
+	 * @param isRestoreBest whether to restore the parameters of the best epoch at early stopping
+	 */
+	public TrainingScheduler(float learningRate, Schedule schedule, float warmupEpochs, float stepEpochs, float stepFactor,
+							 float minLearningRate, int maxEpochs, double timeLimit, int patience, double minDelta,
+							 boolean isRestoreBest)
+	{
+		this.learningRate = learningRate;
+		this.schedule = schedule;
+		this.warmupEpochs = warmupEpochs;
+		this.stepEpochs = stepEpochs;
+		this.stepFactor = stepFactor;
+		this.minLearningRate = minLearningRate;
+		this.maxEpochs = maxEpochs;
+		this.timeLimit = (long) (timeLimit * 1e9);
+		this.patience = patience;
+		this.minDelta = minDelta;
+		this.isRestoreBest = isRestoreBest;
+	}
+
+	/**
+	 * Returns whether there is no stop condition (the user decides after every epoch)
+	 */
+	public boolean isInteractive()
+	{
+		return maxEpochs == 0 && timeLimit == 0 && patience == 0;
+	}
+
+	/**
+	 * Returns whether the learning rate changes during the training
+	 */
+	public boolean isVariable()
+	{
+		return schedule != Schedule.CONSTANT || warmupEpochs > 0;
+	}
+
+	/**
+	 * Called before the training, with the result of the initial test
+	 * @param neuralNetwork the trained network
+	 * @param accuracy the test accuracy of the initial parameters
+	 * @param epoch the number of epochs trained before (non-zero for a resumed training)
+	 */
+	public void start(NeuralNetwork neuralNetwork, double accuracy, long epoch)
+	{
+		startTime = System.nanoTime();
+		epochStartTime = startTime;
+
+		bestAccuracy = accuracy;
+		bestEpoch = epoch;
+		if (patience > 0 && isRestoreBest) saveBest(neuralNetwork);
+	}
+
+	/**
+	 * Returns the learning rate at a point of the training
+	 * @param epoch the number of trained epochs (fractional, the position in the current epoch is included)
+	 */
+	public float getLearningRate(double epoch)
+	{
+		if (epoch < warmupEpochs) return (float) (learningRate * epoch / warmupEpochs);
+
+		double decayEpoch = epoch - warmupEpochs;
+
+		switch (schedule)
+		{
+			case STEP:
+				return (float) (learningRate * Math.pow(stepFactor, Math.floor(decayEpoch / stepEpochs)));
+
+			case COSINE:
+				double progress = Math.min(1, decayEpoch / (maxEpochs - warmupEpochs));
+				return (float) (minLearningRate + (learningRate - minLearningRate) * (1 + Math.cos(Math.PI * progress)) / 2);
+
+			default:
+				return learningRate;
+		}
+	}
+
+	/**
+	 * Called after every epoch, decides whether to continue the training
+	 * At early stopping the parameters of the best epoch are restored (if configured)
+	 * @param neuralNetwork the trained network
+	 * @param accuracy the test accuracy after the epoch
+	 * @param epoch the number of trained epochs
+	 * @return whether the training should stop
+	 */
+	public boolean isFinished(NeuralNetwork neuralNetwork, double accuracy, long epoch)
+	{
+		long now = System.nanoTime();
+		long epochTime = now - epochStartTime;
+		epochStartTime = now;
+
+		if (accuracy > bestAccuracy + minDelta)
+		{
+			bestAccuracy = accuracy;
+			bestEpoch = epoch;
+			if (patience > 0 && isRestoreBest) saveBest(neuralNetwork);
+		}
+
+		if (patience > 0 && epoch - bestEpoch >= patience)
+		{
+			System.out.println(String.format("\nEarly stopping: no improvement in %d epochs (best: %.2f%% after epoch %d)",
+					epoch - bestEpoch, 100 * bestAccuracy, bestEpoch));
+
+			if (isRestoreBest && bestWeights != null)
+			{
+				restoreBest(neuralNetwork);
+				System.out.println("The parameters of epoch " + bestEpoch + " are restored.");
+			}
+			return true;
+		}
+
+		if (maxEpochs > 0 && epoch >= maxEpochs)
+		{
+			System.out.println("\nThe training is finished: " + maxEpochs + " epochs");
+			return true;
+		}
+
+		// The next epoch is expected to take as long as the last one
+		if (timeLimit > 0 && now - startTime + epochTime > timeLimit)
+		{
+			System.out.println(String.format("\nThe training is finished: the next epoch wouldn't fit into the time limit"
+					+ " (%.2f of %.2f minutes used)", (now - startTime) / 60e9, timeLimit / 60e9));
+			return true;
+		}
+
+		return false;
+	}
+
+	private void saveBest(NeuralNetwork neuralNetwork)
+	{
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+		if (bestWeights == null)
+		{
+			bestWeights = new float[neuronLayers.size()][];
+			bestBiases = new float[neuronLayers.size()][];
+
+			for (int i = 0; i < neuronLayers.size(); i++)
+			{
+				bestWeights[i] = new float[neuronLayers.get(i).getWeights().length];
+				bestBiases[i] = new float[neuronLayers.get(i).getBiases().length];
+			}
+		}
+
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			System.arraycopy(neuronLayers.get(i).getWeights(), 0, bestWeights[i], 0, bestWeights[i].length);
+			System.arraycopy(neuronLayers.get(i).getBiases(), 0, bestBiases[i], 0, bestBiases[i].length);
+		}
+	}
+
+	private void restoreBest(NeuralNetwork neuralNetwork)
+	{
+		List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+
+		for (int i = 0; i < neuronLayers.size(); i++)
+		{
+			System.arraycopy(bestWeights[i], 0, neuronLayers.get(i).getWeights(), 0, bestWeights[i].length);
+			System.arraycopy(bestBiases[i], 0, neuronLayers.get(i).getBiases(), 0, bestBiases[i].length);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		String text = schedule.toString();
+		if (schedule == Schedule.STEP) text += " (x" + stepFactor + " every " + stepEpochs + " epochs)";
+		else if (schedule == Schedule.COSINE) text += " (to " + minLearningRate + ")";
+		if (warmupEpochs > 0) text += ", warmup: " + warmupEpochs + " epochs";
+
+		if (isInteractive()) return text + "; stop: interactive";
+
+		text += "; stop:";
+		if (maxEpochs > 0) text += " " + maxEpochs + " epochs";
+		if (timeLimit > 0) text += String.format(" %.2f minutes", timeLimit / 60e9);
+		if (patience > 0) text += " no improvement (>" + String.format("%.2f", 100 * minDelta) + "%) in " + patience + " epochs";
+
+		return text;
+	}
+}
@@ -6,13 +6,53 @@ public interface Activation
 
     float gradient(float x);
 
+    /**
+     * Applies the activation function on the first n values of an array (in and out can be the same array)
+     */
+    default void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = forward(in[i]);
+        }
+    }
+
+    /**
+     * Calculates the gradient on the first n values of an array (in and out can be the same array)
+     */
+    default void gradient(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = gradient(in[i]);
+        }
+    }
+
     static Activation getInstance(String activation)
     {
+        return getInstance(activation, "EXACT");
+    }
+
+    /**
+     * Creates an activation function
+     * @param activation the name of the function (SIGMOID, TANH or GELU)
+     * @param mode EXACT or FAST (approximation using a lookup table, see SigmoidTable for the error bounds)
+     */
+    static Activation getInstance(String activation, String mode)
+    {
+        boolean isFast;
+        switch (mode.toUpperCase())
+        {
+            case "EXACT": isFast = false; break;
+            case "FAST": isFast = true; break;
+            default: throw new RuntimeException("Unknown activation mode: " + mode);
+        }
+
         switch (activation.toUpperCase())
         {
-            case "SIGMOID": return new Sigmoid();
-            case "TANH": return new HyperbolicTangent();
-            case "GELU": return new GELU();
+            case "SIGMOID": return isFast ? new FastSigmoid() : new Sigmoid();
+            case "TANH": return isFast ? new FastHyperbolicTangent() : new HyperbolicTangent();
+            case "GELU": return isFast ? new FastGELU() : new GELU();
         }
 
         throw new RuntimeException("Unknown activation function: " + activation);
@@ -0,0 +1,41 @@
+package ai.demo.mnist.activation;
+
+/**
+ * GELU using the sigmoid lookup table, calculated in float
+ * Uses the identities: 0.5 * (1 + tanh(a)) = sigmoid(2a) and 1 / cosh(a)^2 = 4 * sigmoid(2a) * (1 - sigmoid(2a))
+ * Maximum error of the forward function: 1.2e-5 * |x| (relative error 1.2e-5)
+ * Maximum absolute error of the gradient: 2e-5 for |x| <= 8
+ */
+public class FastGELU implements Activation
+{
+    private static final float C = (float) Math.sqrt(2f / Math.PI);
+
+    public float forward(float x)
+    {
+        return x * SigmoidTable.sigmoid(2 * C * (x + 0.044715f * x * x * x));
+    }
+
+    public float gradient(float x)
+    {
+        float x3 = x * x * x;
+        float s = SigmoidTable.sigmoid(2 * (0.0356774f * x3 + 0.797885f * x));
+
+        return s + (0.0535161f * x3 + 0.398942f * x) * 4 * s * (1 - s);
+    }
+
+    public void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = forward(in[i]);
+        }
+    }
+
+    public void gradient(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = gradient(in[i]);
+        }
+    }
+}
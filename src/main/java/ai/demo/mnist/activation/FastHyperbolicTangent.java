@@ -0,0 +1,22 @@
+package ai.demo.mnist.activation;
+
+/**
+ * Hyperbolic tangent using the sigmoid lookup table: tanh(x / 2) = 2 * sigmoid(x) - 1
+ * (maximum absolute error of the forward function: 2.4e-5)
+ * The gradient is calculated from the output, so it is the same as the exact version
+ */
+public class FastHyperbolicTangent extends HyperbolicTangent
+{
+    public float forward(float x)
+    {
+        return 2 * SigmoidTable.sigmoid(x) - 1;
+    }
+
+    public void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = 2 * SigmoidTable.sigmoid(in[i]) - 1;
+        }
+    }
+}
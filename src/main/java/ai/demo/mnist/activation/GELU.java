@@ -26,4 +26,20 @@ public class GELU implements Activation
 
         return (float) ( (1 + tanh(a)) * 0.5 + (0.0535161 * x * x * x + 0.398942 * x) / c / c );
     }
+
+    public void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = forward(in[i]);
+        }
+    }
+
+    public void gradient(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = gradient(in[i]);
+        }
+    }
 }
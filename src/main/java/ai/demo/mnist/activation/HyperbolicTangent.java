@@ -13,4 +13,20 @@ public class HyperbolicTangent implements Activation
     {
         return (float) (0.5 * (1 - x * x));
     }
+
+    public void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = (float) tanh(0.5 * in[i]);
+        }
+    }
+
+    public void gradient(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = 0.5f * (1 - in[i] * in[i]);
+        }
+    }
 }
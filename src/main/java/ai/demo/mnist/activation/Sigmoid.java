@@ -11,4 +11,20 @@ public class Sigmoid implements Activation
     {
         return x * (1 - x);
     }
+
+    public void forward(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = (float) (1.0 / (1.0 + Math.exp(-in[i])));
+        }
+    }
+
+    public void gradient(float[] in, float[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = in[i] * (1 - in[i]);
+        }
+    }
 }
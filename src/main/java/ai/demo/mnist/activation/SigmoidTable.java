@@ -0,0 +1,39 @@
+package ai.demo.mnist.activation;
+
+/**
+ * Fast approximation of the sigmoid function using a lookup table with linear interpolation
+ * The table covers [-16, 16] with 1/32 steps (1025 values, fits into the L1 cache), outside it the limits are used.
+ * Maximum absolute error: 1.2e-5 (interpolation error: step^2 / 8 * max|sigmoid''|, plus float rounding)
+ * The tanh and GELU approximations are derived from this using tanh(x) = 2 * sigmoid(2x) - 1
+ */
+final class SigmoidTable
+{
+    private static final float RANGE = 16;
+    private static final float SCALE = 32;
+
+    private static final float[] TABLE = new float[(int) (2 * RANGE * SCALE) + 2];
+
+    static
+    {
+        for (int i = 0; i < TABLE.length; i++)
+        {
+            TABLE[i] = (float) (1.0 / (1.0 + Math.exp(-(i / SCALE - RANGE))));
+        }
+    }
+
+    private SigmoidTable()
+    {
+    }
+
+    static float sigmoid(float x)
+    {
+        if (x <= -RANGE) return 0;
+        if (x >= RANGE) return 1;
+
+        float position = (x + RANGE) * SCALE;
+        int index = (int) position;
+        float fraction = position - index;
+
+        return TABLE[index] + fraction * (TABLE[index + 1] - TABLE[index]);
+    }
+}
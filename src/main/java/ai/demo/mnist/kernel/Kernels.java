@@ -0,0 +1,83 @@
+package ai.demo.mnist.kernel;
+
+/**
+ * Compute backend of the inner loops of the layers (vector operations on segments of float arrays)
+ */
+public interface Kernels
+{
+    /**
+     * Dot product of two segments
+     */
+    float dot(float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Four dot products of a segment with four other segments of the same array (sharing the loaded values of x)
+     */
+    void dot4(float[] x, int xOffset, float[] y, int y0, int y1, int y2, int y3, int length, float[] results);
+
+    /**
+     * Adds a scaled segment to another (y += a * x)
+     */
+    void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Adds a scaled segment to four other segments of the same array (y0 += a0 * x, ... sharing the loaded values of x)
+     */
+    void axpy4(float a0, float a1, float a2, float a3, float[] x, int xOffset,
+               float[] y, int y0, int y1, int y2, int y3, int length);
+
+    /**
+     * Subtracts a scaled segment from another (y -= rate * x), used by the parameter updates
+     */
+    void update(double rate, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Back-propagates through a weight segment and updates it in the same pass (prev += a * w, then w -= rate * x)
+     * The previous errors are calculated using the weights before the update
+     */
+    void backPropagateAndUpdate(float a, float[] w, int wOffset, float[] prev, int prevOffset,
+                                double rate, float[] x, int xOffset, int length);
+
+    /**
+     * Decides whether the sparse kernels are faster than the dense ones for a vector with the given number of non-zero values
+     */
+    boolean isSparseFaster(int nonZeroCount, int length);
+
+    /**
+     * Dot product of a segment and a sparse vector (only the listed indices of y are used)
+     */
+    float sparseDot(float[] x, int xOffset, float[] y, int[] indices, int count);
+
+    /**
+     * Subtracts a scaled sparse vector from a segment (only the listed indices are updated)
+     */
+    void sparseUpdate(double rate, float[] x, int[] indices, int count, float[] y, int yOffset);
+
+    static Kernels getInstance(String backend)
+    {
+        switch (backend.toUpperCase())
+        {
+            case "SCALAR": return new ScalarKernels();
+            case "VECTOR": return createVectorKernels();
+        }
+
+        throw new RuntimeException("Unknown compute backend: " + backend);
+    }
+
+    /**
+     * Creates the Vector API backend, or falls back to the scalar backend if it isn't available
+     * (The Vector API needs Java 16+ and the jdk.incubator.vector module: --add-modules jdk.incubator.vector)
+     */
+    static Kernels createVectorKernels()
+    {
+        try
+        {
+            return (Kernels) Class.forName("ai.demo.mnist.kernel.VectorKernels").getDeclaredConstructor().newInstance();
+        }
+        catch (Exception | LinkageError e)
+        {
+            System.out.println("WARNING: Vector API isn't available, using scalar kernels. (" + e + ")");
+            return new ScalarKernels();
+        }
+    }
+}
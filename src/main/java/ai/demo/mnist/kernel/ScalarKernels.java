@@ -0,0 +1,107 @@
+package ai.demo.mnist.kernel;
+
+/**
+ * Plain Java implementation of the kernels (works on every JDK, relies on the auto-vectorization of the JIT)
+ */
+public class ScalarKernels implements Kernels
+{
+    public float dot(float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            sum += x[xOffset + i] * y[yOffset + i];
+        }
+
+        return sum;
+    }
+
+    public void dot4(float[] x, int xOffset, float[] y, int y0, int y1, int y2, int y3, int length, float[] results)
+    {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            float value = x[xOffset + i];
+            s0 += value * y[y0 + i];
+            s1 += value * y[y1 + i];
+            s2 += value * y[y2 + i];
+            s3 += value * y[y3 + i];
+        }
+
+        results[0] = s0;
+        results[1] = s1;
+        results[2] = s2;
+        results[3] = s3;
+    }
+
+    public void axpy(float a, float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            y[yOffset + i] += x[xOffset + i] * a;
+        }
+    }
+
+    public void axpy4(float a0, float a1, float a2, float a3, float[] x, int xOffset,
+                      float[] y, int y0, int y1, int y2, int y3, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            float value = x[xOffset + i];
+            y[y0 + i] += value * a0;
+            y[y1 + i] += value * a1;
+            y[y2 + i] += value * a2;
+            y[y3 + i] += value * a3;
+        }
+    }
+
+    public void update(double rate, float[] x, int xOffset, float[] y, int yOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            y[yOffset + i] -= rate * x[xOffset + i];
+        }
+    }
+
+    public void backPropagateAndUpdate(float a, float[] w, int wOffset, float[] prev, int prevOffset,
+                                       double rate, float[] x, int xOffset, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            float weight = w[wOffset + i];
+
+            prev[prevOffset + i] += weight * a;
+            w[wOffset + i] = (float) (weight - rate * x[xOffset + i]);
+        }
+    }
+
+    public boolean isSparseFaster(int nonZeroCount, int length)
+    {
+        // At least half of the values are zero
+        return nonZeroCount * 2 <= length;
+    }
+
+    public float sparseDot(float[] x, int xOffset, float[] y, int[] indices, int count)
+    {
+        float sum = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            int index = indices[i];
+            sum += x[xOffset + index] * y[index];
+        }
+
+        return sum;
+    }
+
+    public void sparseUpdate(double rate, float[] x, int[] indices, int count, float[] y, int yOffset)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int index = indices[i];
+            y[yOffset + index] -= rate * x[index];
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Prints the measurements of every epoch to the standard output
+ */
+public class ConsoleSink implements MetricsSink
+{
+    @Override
+    public void report(EpochMetrics metrics)
+    {
+        System.out.println(String.format("Epoch %d: %d examples, %.3f s, %.0f examples/s",
+                metrics.getEpoch(), metrics.getExampleCount(), metrics.getTime() / 1e9, metrics.getExamplesPerSecond()));
+
+        System.out.println(String.format("  Input: reading %.3f s, waiting for pipeline %.3f s",
+                metrics.getLoadTime() / 1e9, metrics.getInputWaitTime() / 1e9));
+
+        for (int i = 0; i < metrics.getLayerCount(); i++)
+        {
+            System.out.println(String.format("  Layer %d: forward %.3f s, backward %.3f s, update %.3f s", i,
+                    metrics.getForwardTime(i) / 1e9, metrics.getBackwardTime(i) / 1e9, metrics.getUpdateTime(i) / 1e9));
+        }
+
+        System.out.println(String.format("  GC: %d collections, %.3f s, allocated: %s",
+                metrics.getGcCount(), metrics.getGcTime() / 1e3,
+                metrics.getAllocatedBytes() < 0 ? "n/a" : String.format("%.1f MB", metrics.getAllocatedBytes() / 1e6)));
+    }
+}
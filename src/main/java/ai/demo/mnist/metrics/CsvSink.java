@@ -0,0 +1,63 @@
+package ai.demo.mnist.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Appends the measurements of every epoch to a csv file (one line per epoch, times in seconds)
+ * The header is written if the file is new, so the lines of multiple runs can be collected in the same file
+ * (The layer columns are written for the layer count of the first run.)
+ */
+public class CsvSink implements MetricsSink
+{
+    private final File file;
+
+    public CsvSink(String fileName)
+    {
+        this.file = new File(fileName);
+    }
+
+    @Override
+    public void report(EpochMetrics metrics)
+    {
+        boolean isNew = !file.exists();
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, true)))
+        {
+            if (isNew)
+            {
+                StringBuilder header = new StringBuilder("epoch,examples,seconds,examples_per_second,accuracy,"
+                        + "load_seconds,input_wait_seconds,gc_count,gc_seconds,allocated_bytes");
+
+                for (int i = 0; i < metrics.getLayerCount(); i++)
+                {
+                    header.append(",layer").append(i).append("_forward_seconds")
+                            .append(",layer").append(i).append("_backward_seconds")
+                            .append(",layer").append(i).append("_update_seconds");
+                }
+
+                writer.println(header);
+            }
+
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%d,%d,%.6f,%.1f,%.6f,%.6f,%.6f,%d,%.3f,%d",
+                    metrics.getEpoch(), metrics.getExampleCount(), metrics.getTime() / 1e9, metrics.getExamplesPerSecond(),
+                    metrics.getAccuracy(), metrics.getLoadTime() / 1e9, metrics.getInputWaitTime() / 1e9,
+                    metrics.getGcCount(), metrics.getGcTime() / 1e3, metrics.getAllocatedBytes()));
+
+            for (int i = 0; i < metrics.getLayerCount(); i++)
+            {
+                line.append(String.format(Locale.ROOT, ",%.6f,%.6f,%.6f", metrics.getForwardTime(i) / 1e9,
+                        metrics.getBackwardTime(i) / 1e9, metrics.getUpdateTime(i) / 1e9));
+            }
+
+            writer.println(line);
+        }
+        catch (IOException e)
+        {
+            System.out.println("WARNING: Metrics file write error: " + file + " (" + e + ")");
+        }
+    }
+}
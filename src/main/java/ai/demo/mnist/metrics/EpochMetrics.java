@@ -0,0 +1,128 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Measurements of a training epoch (times in nanoseconds)
+ */
+public class EpochMetrics
+{
+    private final int epoch;
+    private final long exampleCount;
+    private final long time;
+    private final double accuracy;
+
+    // Reading the examples: decoding on the training threads, and waiting for the input pipeline
+    private final long loadTime;
+    private final long inputWaitTime;
+
+    // Per-layer cumulative times (summed over the training threads)
+    private final long[] forwardTimes;
+    private final long[] backwardTimes;
+    private final long[] updateTimes;
+
+    private final long gcCount;
+    private final long gcTime;
+    private final long allocatedBytes;
+
+    public EpochMetrics(int epoch, long exampleCount, long time, double accuracy, long loadTime, long inputWaitTime,
+                        long[] forwardTimes, long[] backwardTimes, long[] updateTimes,
+                        long gcCount, long gcTime, long allocatedBytes)
+    {
+        this.epoch = epoch;
+        this.exampleCount = exampleCount;
+        this.time = time;
+        this.accuracy = accuracy;
+        this.loadTime = loadTime;
+        this.inputWaitTime = inputWaitTime;
+        this.forwardTimes = forwardTimes;
+        this.backwardTimes = backwardTimes;
+        this.updateTimes = updateTimes;
+        this.gcCount = gcCount;
+        this.gcTime = gcTime;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public int getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of examples trained in the epoch
+     */
+    public long getExampleCount()
+    {
+        return exampleCount;
+    }
+
+    /**
+     * Returns the wall-clock time of the training in the epoch (without the test)
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    public double getExamplesPerSecond()
+    {
+        return time > 0 ? exampleCount * 1e9 / time : 0;
+    }
+
+    /**
+     * Returns the accuracy on the test dataset after the epoch (between 0 and 1)
+     */
+    public double getAccuracy()
+    {
+        return accuracy;
+    }
+
+    public long getLoadTime()
+    {
+        return loadTime;
+    }
+
+    public long getInputWaitTime()
+    {
+        return inputWaitTime;
+    }
+
+    public int getLayerCount()
+    {
+        return forwardTimes.length;
+    }
+
+    public long getForwardTime(int layer)
+    {
+        return forwardTimes[layer];
+    }
+
+    public long getBackwardTime(int layer)
+    {
+        return backwardTimes[layer];
+    }
+
+    public long getUpdateTime(int layer)
+    {
+        return updateTimes[layer];
+    }
+
+    public long getGcCount()
+    {
+        return gcCount;
+    }
+
+    /**
+     * Returns the accumulated collection time (in milliseconds, as reported by the JVM)
+     */
+    public long getGcTime()
+    {
+        return gcTime;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the live threads during the epoch (-1 if not supported by the JVM)
+     */
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes;
+    }
+}
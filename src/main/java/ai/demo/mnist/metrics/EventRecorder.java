@@ -0,0 +1,45 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Records the epochs and checkpoints as Java Flight Recorder events
+ * The JFR implementation is built only on Java 11+ (and the events are recorded only if a recording is running),
+ * otherwise the events are ignored
+ */
+public interface EventRecorder
+{
+    /**
+     * Starts the event of an epoch
+     * @return the event (to be ended and committed), or null
+     */
+    Object beginEpoch();
+
+    /**
+     * Ends the time measurement of the epoch event (the event is committed later, when the test result is known)
+     */
+    void endEpoch(Object event);
+
+    void commitEpoch(Object event, EpochMetrics metrics);
+
+    /**
+     * Starts the event of a checkpoint write
+     * @return the event (to be committed), or null
+     */
+    Object beginCheckpoint();
+
+    void commitCheckpoint(Object event, long exampleCount, String fileName);
+
+    /**
+     * Creates the JFR event recorder, or a recorder which ignores the events if JFR isn't available
+     */
+    static EventRecorder getInstance()
+    {
+        try
+        {
+            return (EventRecorder) Class.forName("ai.demo.mnist.metrics.JfrEventRecorder").getDeclaredConstructor().newInstance();
+        }
+        catch (Exception | LinkageError e)
+        {
+            return new NoEventRecorder();
+        }
+    }
+}
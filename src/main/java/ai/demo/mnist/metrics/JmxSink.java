@@ -0,0 +1,102 @@
+package ai.demo.mnist.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes the measurements of the last epoch as a JMX MBean (ai.demo.mnist:type=Training),
+ * so a running training can be watched by JConsole, VisualVM or any JMX client
+ */
+public class JmxSink implements MetricsSink, JmxSinkMBean
+{
+    private static final String OBJECT_NAME = "ai.demo.mnist:type=Training";
+
+    private volatile EpochMetrics metrics;
+
+    public JmxSink()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        catch (JMException e)
+        {
+            throw new RuntimeException("JMX registration error: " + e);
+        }
+    }
+
+    @Override
+    public void report(EpochMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int getEpoch()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getEpoch();
+    }
+
+    @Override
+    public long getExampleCount()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getExampleCount();
+    }
+
+    @Override
+    public double getEpochSeconds()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getTime() / 1e9;
+    }
+
+    @Override
+    public double getExamplesPerSecond()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getExamplesPerSecond();
+    }
+
+    @Override
+    public double getAccuracy()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getAccuracy();
+    }
+
+    @Override
+    public double getLoadSeconds()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getLoadTime() / 1e9;
+    }
+
+    @Override
+    public double getInputWaitSeconds()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getInputWaitTime() / 1e9;
+    }
+
+    @Override
+    public long getGcCount()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getGcCount();
+    }
+
+    @Override
+    public long getAllocatedBytes()
+    {
+        EpochMetrics last = metrics;
+        return last == null ? 0 : last.getAllocatedBytes();
+    }
+}
@@ -0,0 +1,25 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Management interface of the JMX sink (the measurements of the last epoch)
+ */
+public interface JmxSinkMBean
+{
+    int getEpoch();
+
+    long getExampleCount();
+
+    double getEpochSeconds();
+
+    double getExamplesPerSecond();
+
+    double getAccuracy();
+
+    double getLoadSeconds();
+
+    double getInputWaitSeconds();
+
+    long getGcCount();
+
+    long getAllocatedBytes();
+}
@@ -0,0 +1,36 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Receiver of the training measurements (console, csv file or JMX)
+ */
+public interface MetricsSink
+{
+    /**
+     * Called after every epoch (on the training thread)
+     */
+    void report(EpochMetrics metrics);
+
+    /**
+     * Called at the end of the training
+     */
+    default void close()
+    {
+    }
+
+    /**
+     * Creates a metrics sink
+     * @param name the name of the sink (CONSOLE, CSV or JMX)
+     * @param modelPath the folder of the model (the csv file is created there)
+     */
+    static MetricsSink getInstance(String name, String modelPath)
+    {
+        switch (name.trim().toUpperCase())
+        {
+            case "CONSOLE": return new ConsoleSink();
+            case "CSV": return new CsvSink(modelPath + "/metrics.csv");
+            case "JMX": return new JmxSink();
+        }
+
+        throw new RuntimeException("Unknown metrics sink: " + name);
+    }
+}
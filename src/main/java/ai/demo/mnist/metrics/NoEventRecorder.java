@@ -0,0 +1,34 @@
+package ai.demo.mnist.metrics;
+
+/**
+ * Event recorder which ignores the events (used if JFR isn't available)
+ */
+class NoEventRecorder implements EventRecorder
+{
+    @Override
+    public Object beginEpoch()
+    {
+        return null;
+    }
+
+    @Override
+    public void endEpoch(Object event)
+    {
+    }
+
+    @Override
+    public void commitEpoch(Object event, EpochMetrics metrics)
+    {
+    }
+
+    @Override
+    public Object beginCheckpoint()
+    {
+        return null;
+    }
+
+    @Override
+    public void commitCheckpoint(Object event, long exampleCount, String fileName)
+    {
+    }
+}
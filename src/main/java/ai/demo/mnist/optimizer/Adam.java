@@ -0,0 +1,92 @@
+package ai.demo.mnist.optimizer;
+
+/**
+ * Adam: adaptive learning rate per parameter, using the bias-corrected first and second moments of the gradients
+ * m = beta1 * m + (1 - beta1) * g
+ * v = beta2 * v + (1 - beta2) * g^2
+ * p -= rate * (m / (1 - beta1^t)) / (sqrt(v / (1 - beta2^t)) + epsilon)
+ * (A much lower learning rate is needed than for SGD, typically 0.001.)
+ */
+public class Adam implements Optimizer
+{
+    private final float beta1;
+    private final float beta2;
+    private final float epsilon;
+
+    private final float[] firstMoments;
+    private final float[] secondMoments;
+
+    // The step t
+    private long stepCount;
+
+    // beta1^t and beta2^t, and the bias corrections of the current step
+    private double beta1Power = 1;
+    private double beta2Power = 1;
+    private double correction1;
+    private float correction2;
+
+    public Adam(int parameterCount, float beta1, float beta2, float epsilon)
+    {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+
+        firstMoments = new float[parameterCount];
+        secondMoments = new float[parameterCount];
+    }
+
+    /**
+     * Calculates the bias corrections of the next step
+     * (With the lock-free parallel training the replicas share the state, so every update of any replica is a step.)
+     */
+    @Override
+    public void nextStep()
+    {
+        stepCount++;
+
+        beta1Power *= beta1;
+        beta2Power *= beta2;
+
+        correction1 = 1 / (1 - beta1Power);
+        correction2 = (float) (1 / (1 - beta2Power));
+    }
+
+    @Override
+    public float[][] getState()
+    {
+        return new float[][] {firstMoments, secondMoments};
+    }
+
+    @Override
+    public long getStepCount()
+    {
+        return stepCount;
+    }
+
+    @Override
+    public void setStepCount(long stepCount)
+    {
+        this.stepCount = stepCount;
+
+        beta1Power = Math.pow(beta1, stepCount);
+        beta2Power = Math.pow(beta2, stepCount);
+    }
+
+    @Override
+    public void update(double learningRate, float scale, float[] x, int xOffset, float[] parameters, int offset, int stateOffset, int length)
+    {
+        float rate = (float) (learningRate * correction1);
+
+        for (int i = 0; i < length; i++)
+        {
+            float gradient = scale * x[xOffset + i];
+
+            float m = beta1 * firstMoments[stateOffset + i] + (1 - beta1) * gradient;
+            float v = beta2 * secondMoments[stateOffset + i] + (1 - beta2) * gradient * gradient;
+            firstMoments[stateOffset + i] = m;
+            secondMoments[stateOffset + i] = v;
+
+            parameters[offset + i] -= rate * m / ((float) Math.sqrt(v * correction2) + epsilon);
+        }
+    }
+}
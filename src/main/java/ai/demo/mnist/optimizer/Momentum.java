@@ -0,0 +1,75 @@
+package ai.demo.mnist.optimizer;
+
+/**
+ * SGD with momentum (heavy ball) or Nesterov momentum
+ * v = momentum * v + g
+ * p -= rate * v                   (momentum)
+ * p -= rate * (g + momentum * v)  (Nesterov)
+ */
+public class Momentum implements Optimizer
+{
+    private final float momentum;
+    private final boolean isNesterov;
+
+    private final float[] velocities;
+
+    private long stepCount;
+
+    public Momentum(int parameterCount, float momentum, boolean isNesterov)
+    {
+        this.momentum = momentum;
+        this.isNesterov = isNesterov;
+
+        velocities = new float[parameterCount];
+    }
+
+    @Override
+    public void nextStep()
+    {
+        stepCount++;
+    }
+
+    @Override
+    public float[][] getState()
+    {
+        return new float[][] {velocities};
+    }
+
+    @Override
+    public long getStepCount()
+    {
+        return stepCount;
+    }
+
+    @Override
+    public void setStepCount(long stepCount)
+    {
+        this.stepCount = stepCount;
+    }
+
+    @Override
+    public void update(double learningRate, float scale, float[] x, int xOffset, float[] parameters, int offset, int stateOffset, int length)
+    {
+        float rate = (float) learningRate;
+
+        if (isNesterov)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                float gradient = scale * x[xOffset + i];
+                float velocity = momentum * velocities[stateOffset + i] + gradient;
+                velocities[stateOffset + i] = velocity;
+                parameters[offset + i] -= rate * (gradient + momentum * velocity);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < length; i++)
+            {
+                float velocity = momentum * velocities[stateOffset + i] + scale * x[xOffset + i];
+                velocities[stateOffset + i] = velocity;
+                parameters[offset + i] -= rate * velocity;
+            }
+        }
+    }
+}
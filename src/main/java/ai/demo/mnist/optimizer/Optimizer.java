@@ -0,0 +1,67 @@
+package ai.demo.mnist.optimizer;
+
+/**
+ * Parameter update rule with state (moments) of a layer
+ * The plain SGD update has no state, it is built into the layers (using the fused and sparse kernels),
+ * the optimizers are used only if they are configured.
+ *
+ * The state is stored in flat arrays, allocated once per layer: the weights (in their row-major order) followed by the biases,
+ * so a state index is the position of the weight, or the weight count plus the position of the bias.
+ * The updates don't allocate memory.
+ */
+public interface Optimizer
+{
+    /**
+     * Starts the next update step of the layer (called once before the parameters of the layer are updated)
+     */
+    void nextStep();
+
+    /**
+     * Updates a segment of parameters
+     * @param learningRate the learning rate
+     * @param scale the scale of the gradients (for example the error of the neuron, or 1 / batch size)
+     * @param x the gradients (multiplied by the scale)
+     * @param xOffset the position of the first gradient
+     * @param parameters the parameters (weights or biases)
+     * @param offset the position of the first parameter
+     * @param stateOffset the position of the state of the first parameter
+     * @param length the number of parameters
+     */
+    void update(double learningRate, float scale, float[] x, int xOffset, float[] parameters, int offset, int stateOffset, int length);
+
+    /**
+     * Returns the state arrays (always the same arrays, so a checkpoint can copy them, and a resumed training can fill them)
+     */
+    float[][] getState();
+
+    /**
+     * Returns the number of steps (started by nextStep)
+     */
+    long getStepCount();
+
+    /**
+     * Continues the step counting from a checkpoint (the state arrays are restored separately)
+     */
+    void setStepCount(long stepCount);
+
+    /**
+     * Creates an optimizer
+     * @param name the name of the optimizer (MOMENTUM, NESTEROV or ADAM)
+     * @param parameterCount the number of parameters (weights and biases) of the layer
+     * @param momentum the momentum of MOMENTUM and NESTEROV
+     * @param beta1 the decay rate of the first moment of ADAM
+     * @param beta2 the decay rate of the second moment of ADAM
+     * @param epsilon the term added to the denominator of ADAM
+     */
+    static Optimizer getInstance(String name, int parameterCount, float momentum, float beta1, float beta2, float epsilon)
+    {
+        switch (name.toUpperCase())
+        {
+            case "MOMENTUM": return new Momentum(parameterCount, momentum, false);
+            case "NESTEROV": return new Momentum(parameterCount, momentum, true);
+            case "ADAM": return new Adam(parameterCount, beta1, beta2, epsilon);
+        }
+
+        throw new RuntimeException("Unknown optimizer: " + name);
+    }
+}
@@ -0,0 +1,261 @@
+package ai.demo.mnist.server;
+
+import ai.demo.mnist.NeuralNetwork;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Local HTTP inference server (using the HTTP server of the JDK, bound to the loopback address)
+ *
+ * POST /predict: the body is an image, either 784 bytes (application/octet-stream) or 784 numbers separated by commas
+ * or whitespace (pixel values between 0 and 255, row by row, at most 8 bytes per pixel), the response is the recognized digit and the outputs:
+ * {"label":7,"outputs":[...]}
+ * GET /stats: the counters of the server (requests, batches, throughput, latency percentiles, see ServerStats)
+ *
+ * The requests are handled on virtual threads if the JVM supports them (Java 21+), otherwise on a cached thread pool,
+ * and the inference requests are collected into micro-batches (see MicroBatcher).
+ */
+public class InferenceServer
+{
+    private static final int PIXEL_COUNT = 28 * 28;
+
+    // The largest valid body: the text format with 3 digits and a few separator characters per pixel
+    private static final int MAX_BODY_SIZE = PIXEL_COUNT * 8;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MicroBatcher batcher;
+    private final ServerStats stats = new ServerStats();
+
+    /**
+     * Constructor
+     * @param neuralNetwork the network
+     * @param port the port of the server
+     * @param maxBatchSize the maximum number of requests in a batch
+     * @param maxWait the maximum wait time of a batch in microseconds
+     */
+    public InferenceServer(NeuralNetwork neuralNetwork, int port, int maxBatchSize, long maxWait) throws IOException
+    {
+        // Without TCP_NODELAY the small responses can wait for the delayed ACK of the client (tens of milliseconds)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        batcher = new MicroBatcher(neuralNetwork, maxBatchSize, maxWait, stats);
+        executor = newRequestExecutor("inference-server");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/predict", this::predict);
+        server.createContext("/stats", this::stats);
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        batcher.shutdown();
+        executor.shutdown();
+    }
+
+    public ServerStats getStats()
+    {
+        return stats;
+    }
+
+    private void predict(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+            {
+                send(exchange, 405, "{\"error\":\"Use POST\"}");
+                return;
+            }
+
+            float[] pixels = parsePixels(readBody(exchange.getRequestBody()),
+                    exchange.getRequestHeaders().getFirst("Content-Type"));
+
+            float[] outputs = batcher.infer(pixels);
+
+            StringBuilder response = new StringBuilder(32 + 16 * outputs.length);
+            response.append("{\"label\":").append(getLabel(outputs)).append(",\"outputs\":[");
+            for (int i = 0; i < outputs.length; i++)
+            {
+                if (i > 0) response.append(',');
+                response.append(outputs[i]);
+            }
+            response.append("]}");
+
+            send(exchange, 200, response.toString());
+            stats.recordRequest(System.nanoTime() - start);
+        }
+        catch (IllegalArgumentException e)
+        {
+            stats.recordError();
+            send(exchange, 400, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+        }
+        catch (InterruptedException | RuntimeException e)
+        {
+            stats.recordError();
+            send(exchange, 500, "{\"error\":\"" + escape(e.toString()) + "\"}");
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException
+    {
+        send(exchange, 200, stats.toJson());
+    }
+
+    /**
+     * Converts the payload to normalized pixels (between 0 and 1)
+     */
+    private static float[] parsePixels(byte[] body, String contentType)
+    {
+        float[] pixels = new float[PIXEL_COUNT];
+
+        if (contentType != null && contentType.startsWith("application/octet-stream"))
+        {
+            if (body.length != PIXEL_COUNT)
+            {
+                throw new IllegalArgumentException("The image must have " + PIXEL_COUNT + " bytes (" + body.length + ")");
+            }
+
+            for (int i = 0; i < PIXEL_COUNT; i++) pixels[i] = (float) ((body[i] & 0xFF) / 255.0);
+
+            return pixels;
+        }
+
+        String[] values = new String(body, StandardCharsets.US_ASCII).trim().split("[,\\s]+");
+        if (values.length != PIXEL_COUNT)
+        {
+            throw new IllegalArgumentException("The image must have " + PIXEL_COUNT + " values (" + values.length + ")");
+        }
+
+        for (int i = 0; i < PIXEL_COUNT; i++)
+        {
+            int value;
+            try
+            {
+                value = Integer.parseInt(values[i]);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid pixel value: " + values[i]);
+            }
+
+            if (value < 0 || value > 255) throw new IllegalArgumentException("Invalid pixel value: " + value);
+            pixels[i] = (float) (value / 255.0);
+        }
+
+        return pixels;
+    }
+
+    private static int getLabel(float[] outputs)
+    {
+        int label = 0;
+        for (int i = 1; i < outputs.length; i++)
+        {
+            if (outputs[i] > outputs[label]) label = i;
+        }
+        return label;
+    }
+
+    /**
+     * Reads the body of a request (a body bigger than any valid image is rejected without reading the rest)
+     */
+    private static byte[] readBody(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(PIXEL_COUNT * 4);
+        byte[] buffer = new byte[4096];
+
+        int count;
+        while ((count = input.read(buffer)) > 0)
+        {
+            if (body.size() + count > MAX_BODY_SIZE)
+            {
+                throw new IllegalArgumentException("The request body is too large (maximum: " + MAX_BODY_SIZE + " bytes)");
+            }
+
+            body.write(buffer, 0, count);
+        }
+
+        return body.toByteArray();
+    }
+
+    /**
+     * Escapes a text for a JSON string (quotes, backslashes and control characters)
+     */
+    private static String escape(String text)
+    {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c == '"' || c == '\\') escaped.append('\\').append(c);
+            else if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+            else escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream output = exchange.getResponseBody())
+        {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread (Java 21+),
+     * or a cached thread pool if virtual threads aren't available (the source is compiled for Java 8, so reflection is used)
+     * @param name the name of the platform threads
+     */
+    public static ExecutorService newRequestExecutor(String name)
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Returns whether the requests are handled on virtual threads
+     */
+    public boolean isVirtualThreads()
+    {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+}
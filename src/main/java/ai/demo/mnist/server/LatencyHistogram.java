@@ -0,0 +1,82 @@
+package ai.demo.mnist.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, for the percentiles (p50, p99) of the request latency
+ * The buckets are logarithmic with 16 sub-buckets per power of two (below 32 microseconds every value has its own bucket),
+ * so the relative error of a percentile is at most 1/16, and the histogram has a fixed size (no allocation per value).
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Enough buckets for any non-negative long value
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+    /**
+     * Records a latency (can be called from multiple threads at the same time)
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        counts.incrementAndGet(getBucket(Math.max(0, nanos / 1000)));
+    }
+
+    /**
+     * Returns the bucket of a value: the position of the highest bit selects the group, the next 4 bits the sub-bucket
+     */
+    private static int getBucket(long micros)
+    {
+        if (micros < 2 * SUB_BUCKETS) return (int) micros;
+
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    /**
+     * Returns the middle of a bucket in microseconds
+     */
+    private static double getValue(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS) return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+
+        return lowest + ((1L << shift) - 1) / 2.0;
+    }
+
+    /**
+     * Returns the number of recorded values
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies in milliseconds (0 if there is no value)
+     * @param percentile the percentile (for example 99)
+     */
+    public double getPercentile(double percentile)
+    {
+        long count = getCount();
+        if (count == 0) return 0;
+
+        // The rank of the percentile value (at least the first value)
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+
+        long sum = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            sum += counts.get(i);
+            if (sum >= rank) return getValue(i) / 1000;
+        }
+
+        return getValue(counts.length() - 1) / 1000;
+    }
+}
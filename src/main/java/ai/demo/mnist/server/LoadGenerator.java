@@ -0,0 +1,174 @@
+package ai.demo.mnist.server;
+
+import ai.demo.mnist.Dataset;
+import ai.demo.mnist.FileUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator of the inference server: concurrent clients send the images of the test dataset,
+ * and the client-side throughput, latency percentiles and accuracy are measured (and the server counters are printed)
+ */
+public class LoadGenerator
+{
+    private final String url;
+    private final int clients;
+    private final int requestCount;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+    private final AtomicLong correct = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param address the address of the server (host:port)
+     * @param clients the number of concurrent clients
+     * @param requestCount the total number of requests
+     */
+    public LoadGenerator(String address, int clients, int requestCount)
+    {
+        this.url = "http://" + address;
+        this.clients = clients;
+        this.requestCount = requestCount;
+    }
+
+    public void run() throws Exception
+    {
+        Dataset examples = FileUtil.readTestExamples();
+
+        System.out.println("Load test: " + url + "/predict, " + clients + " clients, " + requestCount + " requests");
+
+        ExecutorService executor = InferenceServer.newRequestExecutor("load-generator");
+        List<Future<?>> futures = new ArrayList<>(clients);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < clients; i++)
+        {
+            futures.add(executor.submit(() -> {
+                sendRequests(examples);
+                return null;
+            }));
+        }
+
+        for (Future<?> future : futures) future.get();
+
+        long time = System.nanoTime() - start;
+        executor.shutdown();
+
+        long completed = latencies.getCount();
+        System.out.println(String.format("Completed: %d requests, %d errors, %.3f s, %.1f requests/s",
+                completed, errors.get(), time / 1e9, completed / (time / 1e9)));
+        System.out.println(String.format("Latency (client): p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms",
+                latencies.getPercentile(50), latencies.getPercentile(90),
+                latencies.getPercentile(99), latencies.getPercentile(99.9)));
+        System.out.println(String.format("Accuracy: %.2f%%", completed == 0 ? 0.0 : 100.0 * correct.get() / completed));
+
+        System.out.println("Server: " + new String(get(url + "/stats"), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The loop of a client: sends requests until the total number of requests is reached
+     */
+    private void sendRequests(Dataset examples)
+    {
+        byte[] record = new byte[FileUtil.RECORD_SIZE];
+        byte[] pixels = new byte[FileUtil.RECORD_SIZE - 1];
+
+        int index;
+        while ((index = nextRequest.getAndIncrement()) < requestCount)
+        {
+            int example = index % examples.size();
+            examples.copyRecords(null, example, 1, record);
+            System.arraycopy(record, 1, pixels, 0, pixels.length);
+
+            long start = System.nanoTime();
+            try
+            {
+                String response = new String(post(url + "/predict", pixels), StandardCharsets.UTF_8);
+                latencies.record(System.nanoTime() - start);
+
+                if (getLabel(response) == examples.getLabel(example)) correct.incrementAndGet();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if (errors.incrementAndGet() == 1) System.out.println("Request error: " + e);
+            }
+        }
+    }
+
+    private static int getLabel(String response)
+    {
+        int position = response.indexOf("\"label\":");
+        if (position < 0) throw new RuntimeException("Invalid response: " + response);
+
+        return response.charAt(position + 8) - '0';
+    }
+
+    private static byte[] post(String url, byte[] body) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+        // The body is buffered (no streaming mode), so the headers and the body are sent together
+
+        try (OutputStream output = connection.getOutputStream())
+        {
+            output.write(body);
+        }
+
+        return read(connection);
+    }
+
+    private static byte[] get(String url) throws IOException
+    {
+        return read((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    /**
+     * Reads the response fully (so the connection can be reused by the keep-alive cache)
+     */
+    private static byte[] read(HttpURLConnection connection) throws IOException
+    {
+        if (connection.getResponseCode() != 200)
+        {
+            try (InputStream error = connection.getErrorStream())
+            {
+                throw new IOException("HTTP " + connection.getResponseCode() + ": "
+                        + new String(readAll(error), StandardCharsets.UTF_8));
+            }
+        }
+
+        try (InputStream input = connection.getInputStream())
+        {
+            return readAll(input);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(256);
+        if (input == null) return result.toByteArray();
+
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = input.read(buffer)) > 0) result.write(buffer, 0, count);
+
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,222 @@
+package ai.demo.mnist.server;
+
+import ai.demo.mnist.NeuralNetwork;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dynamic micro-batching of concurrent inference requests
+ * The requests are queued, and a single batching thread collects them into mini-batches:
+ * a batch is closed if it reaches the maximum size, or the maximum wait time has passed since the arrival of its first request.
+ * The batch is calculated by the mini-batch kernels of the layers (the loaded weights are reused for multiple examples),
+ * so under load the throughput is higher than with per-request inference, and without load a request waits at most the maximum wait time.
+ */
+public class MicroBatcher
+{
+    private final NeuralNetwork neuralNetwork;
+    private final int inputCount;
+    private final int outputCount;
+    private final int maxBatchSize;
+    private final long maxWait;
+    private final ServerStats stats;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+
+    // Workspace of the batching thread
+    private final Request[] batch;
+    private final float[] inputs;
+
+    /**
+     * Constructor (starts the batching thread)
+     * @param neuralNetwork the network (a replica is used, so the network can be shared with other users)
+     * @param maxBatchSize the maximum number of requests in a batch
+     * @param maxWait the maximum wait time of the first request of a batch in microseconds
+     * @param stats the counters of the server
+     */
+    public MicroBatcher(NeuralNetwork neuralNetwork, int maxBatchSize, long maxWait, ServerStats stats)
+    {
+        this.neuralNetwork = neuralNetwork.replicate();
+        this.inputCount = neuralNetwork.getNeuronLayers().get(0).getInputCount();
+        this.outputCount = neuralNetwork.getOutputCount();
+        this.maxBatchSize = maxBatchSize;
+        this.maxWait = TimeUnit.MICROSECONDS.toNanos(maxWait);
+        this.stats = stats;
+
+        batch = new Request[maxBatchSize];
+        inputs = new float[maxBatchSize * inputCount];
+
+        // Allocate the batch buffers of the layers for the maximum batch size
+        this.neuralNetwork.feedForward(inputs, maxBatchSize);
+
+        thread = new Thread(this::run, "micro-batcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Calculates the outputs of the network for an example (waits for the batch of the request)
+     * Can be called from multiple threads at the same time
+     * @param pixels the normalized pixels
+     * @return the outputs
+     */
+    public float[] infer(float[] pixels) throws InterruptedException
+    {
+        if (pixels.length != inputCount)
+        {
+            throw new IllegalArgumentException("The input must have " + inputCount + " values (" + pixels.length + ").");
+        }
+
+        if (!isRunning) throw new IllegalStateException("The server is stopped.");
+
+        Request request = new Request(pixels);
+        queue.put(request);
+
+        // The batcher could be stopped after the check, then the request must not wait in the queue forever
+        if (!isRunning) failQueued();
+
+        try
+        {
+            return request.outputs.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException("Inference error: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * The loop of the batching thread
+     */
+    private void run()
+    {
+        int count = 0;
+
+        try
+        {
+            while (isRunning)
+            {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+
+                batch[0] = first;
+                count = 1;
+
+                long deadline = first.arrivalTime + maxWait;
+                while (count < maxBatchSize)
+                {
+                    // Take the already queued requests without waiting, then wait until the deadline
+                    Request next = queue.poll();
+                    if (next == null)
+                    {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+
+                    batch[count++] = next;
+                }
+
+                process(count);
+                count = 0;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Stopped while collecting a batch (the requests still in the queue are failed by shutdown)
+            for (int i = 0; i < count; i++)
+            {
+                batch[i].outputs.completeExceptionally(new IllegalStateException("The server is stopped."));
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Calculates a batch, and completes its requests
+     */
+    private void process(int count)
+    {
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                System.arraycopy(batch[i].pixels, 0, inputs, i * inputCount, inputCount);
+            }
+
+            float[] outputs = neuralNetwork.feedForward(inputs, count);
+
+            for (int i = 0; i < count; i++)
+            {
+                float[] result = new float[outputCount];
+                System.arraycopy(outputs, i * outputCount, result, 0, outputCount);
+
+                batch[i].outputs.complete(result);
+            }
+
+            stats.recordBatch(count);
+        }
+        catch (RuntimeException e)
+        {
+            for (int i = 0; i < count; i++) batch[i].outputs.completeExceptionally(e);
+        }
+        finally
+        {
+            for (int i = 0; i < count; i++) batch[i] = null;
+        }
+    }
+
+    /**
+     * Stops the batching thread, and fails the requests which weren't calculated (new requests are rejected)
+     */
+    public void shutdown()
+    {
+        isRunning = false;
+        thread.interrupt();
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        failQueued();
+    }
+
+    /**
+     * Fails the queued requests (after the batching thread is stopped)
+     */
+    private void failQueued()
+    {
+        Request request;
+        while ((request = queue.poll()) != null)
+        {
+            request.outputs.completeExceptionally(new IllegalStateException("The server is stopped."));
+        }
+    }
+
+    /**
+     * A queued inference request
+     */
+    private static class Request
+    {
+        private final float[] pixels;
+        private final long arrivalTime = System.nanoTime();
+        private final CompletableFuture<float[]> outputs = new CompletableFuture<>();
+
+        private Request(float[] pixels)
+        {
+            this.pixels = pixels;
+        }
+    }
+}
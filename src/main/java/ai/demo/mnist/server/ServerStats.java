@@ -0,0 +1,55 @@
+package ai.demo.mnist.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the inference server: requests, batches, errors and the latency distribution
+ * (The latency is measured from the arrival of the request payload to the completion of the inference.)
+ */
+public class ServerStats
+{
+    private final long startTime = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedExamples = new LongAdder();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public void recordRequest(long latency)
+    {
+        requests.increment();
+        latencies.record(latency);
+    }
+
+    public void recordError()
+    {
+        errors.increment();
+    }
+
+    public void recordBatch(int size)
+    {
+        batches.increment();
+        batchedExamples.add(size);
+    }
+
+    /**
+     * Returns the counters as a JSON object (latencies in milliseconds, throughput in requests per second since the start)
+     */
+    public String toJson()
+    {
+        double uptime = (System.nanoTime() - startTime) / 1e9;
+        long requestCount = requests.sum();
+        long batchCount = batches.sum();
+
+        return String.format(Locale.ROOT, "{\"requests\":%d,\"errors\":%d,\"batches\":%d,\"averageBatchSize\":%.2f,"
+                        + "\"uptimeSeconds\":%.3f,\"requestsPerSecond\":%.1f,"
+                        + "\"latencyMs\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f}}",
+                requestCount, errors.sum(), batchCount, batchCount == 0 ? 0.0 : (double) batchedExamples.sum() / batchCount,
+                uptime, requestCount / uptime,
+                latencies.getPercentile(50), latencies.getPercentile(90),
+                latencies.getPercentile(99), latencies.getPercentile(99.9));
+    }
+}